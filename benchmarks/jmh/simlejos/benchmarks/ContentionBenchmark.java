@@ -0,0 +1,116 @@
+package simlejos.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import simlejos.ExecutionController;
+import simlejos.hardware.backend.webots.WebotsBackend;
+import simlejos.hardware.motor.Motor;
+import simlejos.hardware.port.SensorPort;
+import simlejos.hardware.sensor.EV3ColorSensor;
+import simlejos.hardware.sensor.EV3UltrasonicSensor;
+import simlejos.robotics.RegulatedMotor;
+import simlejos.robotics.SampleProvider;
+
+/**
+ * Measures different devices used by 4 threads at the same time, like an odometer reading the
+ * left motor while a controller drives the right motor, or two threads polling two sensors. Each
+ * group runs with the calls into the Webots controller library serialized and not, which shows the
+ * cost of that lock separately from the locks of the devices themselves.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentionBenchmark {
+
+  @Param({"true", "false"})
+  public boolean serializeNativeCalls;
+
+  private RegulatedMotor leftMotor;
+  private RegulatedMotor rightMotor;
+  private SampleProvider distance;
+  private SampleProvider red;
+
+  /**
+   * The sample buffer of each benchmark thread.
+   */
+  @State(Scope.Thread)
+  public static class Sample {
+    final float[] values = new float[1];
+  }
+
+  /**
+   * Creates the devices and takes a step so that they have sampled a value.
+   */
+  @Setup
+  public void setup() {
+    WebotsBackend.setSerializingNativeCalls(serializeNativeCalls);
+    WebotsBackend.resetNativeCallStatistics();
+    leftMotor = Motor.A;
+    rightMotor = Motor.D;
+    leftMotor.setSpeed(180);
+    leftMotor.forward();
+    distance = new EV3UltrasonicSensor(SensorPort.S1).getDistanceMode();
+    red = new EV3ColorSensor(SensorPort.S2).getRedMode();
+    ExecutionController.performPhysicsStep();
+  }
+
+  /**
+   * Prints how much the native calls were contended during the trial.
+   */
+  @TearDown
+  public void tearDown() {
+    if (serializeNativeCalls) {
+      System.out.println("Native calls: " + WebotsBackend.getNativeCallCount() + ", contended: "
+          + WebotsBackend.getContendedNativeCallCount() + ", waited "
+          + WebotsBackend.getNativeWaitTime() + " ms");
+    }
+    WebotsBackend.setSerializingNativeCalls(false);
+  }
+
+  @Benchmark
+  @Group("drive")
+  @GroupThreads(2)
+  public int leftTachoCount() {
+    return leftMotor.getTachoCount();
+  }
+
+  @Benchmark
+  @Group("drive")
+  @GroupThreads(2)
+  public void rightSetSpeed() {
+    rightMotor.setSpeed(180);
+  }
+
+  @Benchmark
+  @Group("sensors")
+  @GroupThreads(2)
+  public float distance(Sample sample) {
+    distance.fetchSample(sample.values, 0);
+    return sample.values[0];
+  }
+
+  @Benchmark
+  @Group("sensors")
+  @GroupThreads(2)
+  public float red(Sample sample) {
+    red.fetchSample(sample.values, 0);
+    return sample.values[0];
+  }
+
+}
@@ -0,0 +1,79 @@
+package simlejos.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import simlejos.ExecutionController;
+import simlejos.hardware.motor.Motor;
+import simlejos.robotics.RegulatedMotor;
+
+/**
+ * Measures the command and read paths of {@code RegulatedMotor}. All benchmark threads share the
+ * same motor, so running with {@code -t 1}, {@code -t 2}, ... shows how the motor behaves
+ * under contention, like a navigation thread and an odometer thread using the same motors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MotorBenchmark {
+
+  private RegulatedMotor motor;
+
+  /**
+   * Starts the motor and takes a step so that its position sensor has a value.
+   */
+  @Setup
+  public void setup() {
+    motor = Motor.A;
+    motor.setSpeed(180);
+    motor.forward();
+    ExecutionController.performPhysicsStep();
+  }
+
+  @Benchmark
+  public int getTachoCount() {
+    return motor.getTachoCount();
+  }
+
+  @Benchmark
+  public int getSpeed() {
+    return motor.getSpeed();
+  }
+
+  @Benchmark
+  public boolean isMoving() {
+    return motor.isMoving();
+  }
+
+  @Benchmark
+  public double getTorque() {
+    return motor.getTorque();
+  }
+
+  @Benchmark
+  public void setSpeed() {
+    motor.setSpeed(180);
+  }
+
+  @Benchmark
+  public void forward() {
+    motor.forward();
+  }
+
+  @Benchmark
+  public void rotateImmediateReturn() {
+    motor.rotate(90, true);
+  }
+
+}
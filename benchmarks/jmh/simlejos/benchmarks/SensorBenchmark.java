@@ -0,0 +1,127 @@
+package simlejos.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import simlejos.ExecutionController;
+import simlejos.hardware.port.SensorPort;
+import simlejos.hardware.sensor.EV3ColorSensor;
+import simlejos.hardware.sensor.EV3TouchSensor;
+import simlejos.hardware.sensor.EV3UltrasonicSensor;
+import simlejos.robotics.SampleProvider;
+
+/**
+ * Measures {@code fetchSample()} on every mode of every sensor, the calls controllers make
+ * thousands of times per second.
+ * 
+ * <p>The sensors memoize their samples for the current physics step, so the plain benchmarks only
+ * measure reads of the memoized samples. The {@code AfterStep} benchmarks take a step before each
+ * fetch, so the fetch reads the device. Subtract the score of {@link StepBenchmark} with one party
+ * to get the cost of the fetch alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SensorBenchmark {
+
+  private SampleProvider distance;
+  private SampleProvider red;
+  private SampleProvider rgb;
+  private SampleProvider ambient;
+  private SampleProvider touch;
+  private SampleProvider analog;
+
+  /**
+   * The sample buffer of each benchmark thread.
+   */
+  @State(Scope.Thread)
+  public static class Sample {
+    final float[] values = new float[3];
+  }
+
+  /**
+   * Creates the sensors and takes a step so that they have sampled a value.
+   */
+  @Setup
+  public void setup() {
+    EV3UltrasonicSensor ultrasonicSensor = new EV3UltrasonicSensor(SensorPort.S1);
+    EV3ColorSensor colorSensor = new EV3ColorSensor(SensorPort.S2);
+    EV3TouchSensor touchSensor = new EV3TouchSensor(SensorPort.S3);
+    distance = ultrasonicSensor.getDistanceMode();
+    red = colorSensor.getRedMode();
+    ambient = colorSensor.getAmbientMode();
+    rgb = colorSensor.getRGBMode();
+    touch = touchSensor.getTouchMode();
+    analog = touchSensor.getAnalogMode();
+    ExecutionController.performPhysicsStep();
+  }
+
+  @Benchmark
+  public float[] ultrasonicDistance(Sample sample) {
+    distance.fetchSample(sample.values, 0);
+    return sample.values;
+  }
+
+  @Benchmark
+  public float[] colorRed(Sample sample) {
+    red.fetchSample(sample.values, 0);
+    return sample.values;
+  }
+
+  @Benchmark
+  public float[] colorRgb(Sample sample) {
+    rgb.fetchSample(sample.values, 0);
+    return sample.values;
+  }
+
+  @Benchmark
+  public float[] colorAmbient(Sample sample) {
+    ambient.fetchSample(sample.values, 0);
+    return sample.values;
+  }
+
+  @Benchmark
+  public float[] touch(Sample sample) {
+    touch.fetchSample(sample.values, 0);
+    return sample.values;
+  }
+
+  @Benchmark
+  public float[] touchAnalog(Sample sample) {
+    analog.fetchSample(sample.values, 0);
+    return sample.values;
+  }
+
+  @Benchmark
+  public float[] ultrasonicDistanceAfterStep(Sample sample) {
+    ExecutionController.performPhysicsStep();
+    distance.fetchSample(sample.values, 0);
+    return sample.values;
+  }
+
+  @Benchmark
+  public float[] colorRgbAfterStep(Sample sample) {
+    ExecutionController.performPhysicsStep();
+    rgb.fetchSample(sample.values, 0);
+    return sample.values;
+  }
+
+  @Benchmark
+  public float[] touchAfterStep(Sample sample) {
+    ExecutionController.performPhysicsStep();
+    touch.fetchSample(sample.values, 0);
+    return sample.values;
+  }
+
+}
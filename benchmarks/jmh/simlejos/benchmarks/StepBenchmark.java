@@ -0,0 +1,80 @@
+package simlejos.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import simlejos.ExecutionController;
+
+/**
+ * Measures {@code ExecutionController.performPhysicsStep()} with several parties. The benchmark
+ * thread performs the steps while the other parties wait for every step, so the score is the
+ * synchronization cost of one step, the physics of the offline robot being almost free.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class StepBenchmark {
+
+  @Param({"1", "2", "4", "8"})
+  public int parties;
+
+  private volatile boolean running;
+
+  private final List<Thread> waiters = new ArrayList<>();
+
+  /**
+   * Starts the parties that wait for every step.
+   */
+  @Setup(Level.Trial)
+  public void setup() {
+    running = true;
+    for (int i = 1; i < parties; i++) {
+      waiters.add(ExecutionController.startParty("waiter-" + i, () -> {
+        while (running) {
+          ExecutionController.waitUntilNextStep();
+        }
+      }));
+    }
+  }
+
+  /**
+   * Stops the parties, stepping until they have all left.
+   * 
+   * @throws InterruptedException if interrupted while waiting for the parties
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    running = false;
+    for (Thread waiter : waiters) {
+      while (waiter.isAlive()) {
+        ExecutionController.performPhysicsStep();
+        waiter.join(1);
+      }
+    }
+    waiters.clear();
+  }
+
+  @Benchmark
+  public boolean performPhysicsStep() {
+    return ExecutionController.performPhysicsStep();
+  }
+
+}
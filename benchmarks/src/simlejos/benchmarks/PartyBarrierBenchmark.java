@@ -0,0 +1,113 @@
+package simlejos.benchmarks;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures how many physics steps per second the step barrier sustains for 2, 8 and 64 parties.
+ * The step itself is a no-op, so the result is the synchronization cost alone. Each step takes two
+ * rounds, one before and one after the step, like {@code ExecutionController}.
+ * 
+ * <p>Compares the original scheme (a {@link CyclicBarrier} with platform threads) to the
+ * {@link Phaser} used by the execution controller, on platform threads and on virtual threads.
+ * Requires Java 21.
+ * 
+ * <p>Usage: {@code java simlejos.benchmarks.PartyBarrierBenchmark [seconds per run]}
+ */
+public class PartyBarrierBenchmark {
+  
+  private static final int[] PARTY_COUNTS = {2, 8, 64};
+  
+  /**
+   * The step barrier under test.
+   */
+  private interface StepBarrier {
+    /**
+     * Waits until all parties arrive.
+     */
+    void await() throws InterruptedException, BrokenBarrierException;
+  }
+
+  /**
+   * Runs the benchmark.
+   * 
+   * @param args the optional number of seconds per run
+   */
+  public static void main(String[] args) throws Exception {
+    double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2;
+    System.out.printf("%-28s %8s %14s%n", "barrier", "parties", "steps/s");
+    for (int parties : PARTY_COUNTS) {
+      CyclicBarrier cyclicBarrier = new CyclicBarrier(parties);
+      report("CyclicBarrier platform", parties,
+          run(cyclicBarrier::await, parties, Thread.ofPlatform().factory(), seconds));
+      Phaser platformPhaser = new Phaser(parties);
+      report("Phaser platform", parties,
+          run(() -> platformPhaser.awaitAdvanceInterruptibly(platformPhaser.arrive()), parties,
+              Thread.ofPlatform().factory(), seconds));
+      Phaser virtualPhaser = new Phaser(parties);
+      report("Phaser virtual", parties,
+          run(() -> virtualPhaser.awaitAdvanceInterruptibly(virtualPhaser.arrive()), parties,
+              Thread.ofVirtual().factory(), seconds));
+    }
+  }
+  
+  /**
+   * Runs one configuration: one stepping party and {@code parties - 1} waiting parties.
+   * 
+   * @param barrier the barrier under test
+   * @param parties the number of parties
+   * @param factory the factory for the waiting parties
+   * @param seconds the duration of the measurement, after an equal warm-up
+   * @return the number of steps per second
+   */
+  private static double run(StepBarrier barrier, int parties, ThreadFactory factory,
+      double seconds) throws Exception {
+    AtomicBoolean running = new AtomicBoolean(true);
+    Thread[] waiters = new Thread[parties - 1];
+    for (int i = 0; i < waiters.length; i++) {
+      waiters[i] = factory.newThread(() -> {
+        try {
+          do {
+            barrier.await();
+            barrier.await();
+          } while (running.get());
+        } catch (Exception e) {
+          // The run is over
+        }
+      });
+      waiters[i].start();
+    }
+    long warmupEnd = System.nanoTime() + (long) (seconds * 1e9);
+    while (System.nanoTime() < warmupEnd) {
+      barrier.await();
+      barrier.await();
+    }
+    long steps = 0;
+    long start = System.nanoTime();
+    long end = start + (long) (seconds * 1e9);
+    long now = start;
+    while (now < end) {
+      barrier.await();
+      // the physics step would be performed here
+      barrier.await();
+      steps++;
+      now = System.nanoTime();
+    }
+    // Release the waiting parties with one last step
+    barrier.await();
+    running.set(false);
+    barrier.await();
+    for (Thread waiter : waiters) {
+      waiter.join();
+    }
+    return steps / ((now - start) / 1e9);
+  }
+  
+  private static void report(String barrier, int parties, double stepsPerSecond) {
+    System.out.printf("%-28s %8d %14.0f%n", barrier, parties, stepsPerSecond);
+  }
+
+}
@@ -0,0 +1,60 @@
+package com.cyberbotics.webots.controller;
+
+/**
+ * Offline stand-in for the Webots camera, which returns a 1 x 1 gray image that slowly varies with
+ * the simulation time, like the camera of the simulated color sensor.
+ */
+public class Camera extends Device {
+
+  private final Robot robot;
+
+  private volatile int samplingPeriod = 0;
+
+  Camera(String name, Robot robot) {
+    super(name);
+    this.robot = robot;
+  }
+
+  public void enable(int samplingPeriod) {
+    this.samplingPeriod = samplingPeriod;
+  }
+
+  public void disable() {
+    samplingPeriod = 0;
+  }
+
+  public int getSamplingPeriod() {
+    return samplingPeriod;
+  }
+
+  public int[] getImage() {
+    int gray = (int) (128 + 100 * Math.sin(robot.getTime()));
+    return new int[] {(gray << 16) | (gray << 8) | gray};
+  }
+
+  public int getWidth() {
+    return 1;
+  }
+
+  public int getHeight() {
+    return 1;
+  }
+
+  public static int imageGetRed(int[] image, int width, int x, int y) {
+    return (image[y * width + x] >> 16) & 0xff;
+  }
+
+  public static int imageGetGreen(int[] image, int width, int x, int y) {
+    return (image[y * width + x] >> 8) & 0xff;
+  }
+
+  public static int imageGetBlue(int[] image, int width, int x, int y) {
+    return image[y * width + x] & 0xff;
+  }
+
+  public static int imageGetGray(int[] image, int width, int x, int y) {
+    return (imageGetRed(image, width, x, y) + imageGetGreen(image, width, x, y)
+        + imageGetBlue(image, width, x, y)) / 3;
+  }
+
+}
@@ -0,0 +1,19 @@
+package com.cyberbotics.webots.controller;
+
+/**
+ * Offline stand-in for the Webots device base class, used to benchmark simlejos without Webots.
+ * Only the methods used by simlejos are provided.
+ */
+public abstract class Device {
+
+  private final String name;
+
+  protected Device(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+}
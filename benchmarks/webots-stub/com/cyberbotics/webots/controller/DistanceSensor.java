@@ -0,0 +1,34 @@
+package com.cyberbotics.webots.controller;
+
+/**
+ * Offline stand-in for the Webots distance sensor, which reads a distance that slowly varies with
+ * the simulation time.
+ */
+public class DistanceSensor extends Device {
+
+  private final Robot robot;
+
+  private volatile int samplingPeriod = 0;
+
+  DistanceSensor(String name, Robot robot) {
+    super(name);
+    this.robot = robot;
+  }
+
+  public void enable(int samplingPeriod) {
+    this.samplingPeriod = samplingPeriod;
+  }
+
+  public void disable() {
+    samplingPeriod = 0;
+  }
+
+  public int getSamplingPeriod() {
+    return samplingPeriod;
+  }
+
+  public double getValue() {
+    return samplingPeriod == 0 ? Double.NaN : 100 + 50 * Math.sin(robot.getTime());
+  }
+
+}
@@ -0,0 +1,22 @@
+package com.cyberbotics.webots.controller;
+
+/**
+ * Offline stand-in for the Webots LED.
+ */
+public class LED extends Device {
+
+  private volatile int value = 0;
+
+  LED(String name) {
+    super(name);
+  }
+
+  public void set(int value) {
+    this.value = value;
+  }
+
+  public int get() {
+    return value;
+  }
+
+}
@@ -0,0 +1,82 @@
+package com.cyberbotics.webots.controller;
+
+/**
+ * Offline stand-in for the Webots rotational motor: the position moves toward the target at the
+ * set velocity, without any dynamics.
+ */
+public class Motor extends Device {
+
+  private final PositionSensor sensor;
+
+  private volatile double targetPosition = 0;
+
+  private volatile double velocity = 0;
+
+  private volatile double acceleration = -1;
+
+  private volatile int torqueFeedbackSamplingPeriod = 0;
+
+  Motor(String name) {
+    super(name);
+    sensor = new PositionSensor(name + "-sensor", this);
+  }
+
+  PositionSensor getPositionSensor() {
+    return sensor;
+  }
+
+  /**
+   * Moves the motor during a step.
+   */
+  void update(double dt) {
+    double position = sensor.position;
+    double distance = targetPosition - position;
+    double move = Math.min(Math.abs(distance), Math.abs(velocity) * dt);
+    sensor.position = position + Math.copySign(move, distance);
+  }
+
+  public void setPosition(double position) {
+    targetPosition = position;
+  }
+
+  public void setVelocity(double velocity) {
+    this.velocity = Math.min(Math.abs(velocity), getMaxVelocity());
+  }
+
+  public void setAcceleration(double acceleration) {
+    this.acceleration = acceleration;
+  }
+
+  public double getVelocity() {
+    return velocity;
+  }
+
+  public double getMaxVelocity() {
+    return 13;
+  }
+
+  public double getAcceleration() {
+    return acceleration;
+  }
+
+  public double getTargetPosition() {
+    return targetPosition;
+  }
+
+  public void enableTorqueFeedback(int samplingPeriod) {
+    torqueFeedbackSamplingPeriod = samplingPeriod;
+  }
+
+  public void disableTorqueFeedback() {
+    torqueFeedbackSamplingPeriod = 0;
+  }
+
+  public int getTorqueFeedbackSamplingPeriod() {
+    return torqueFeedbackSamplingPeriod;
+  }
+
+  public double getTorqueFeedback() {
+    return velocity == 0 ? 0 : 0.05;
+  }
+
+}
@@ -0,0 +1,39 @@
+package com.cyberbotics.webots.controller;
+
+/**
+ * Offline stand-in for the Webots position sensor, which reads the position of its motor.
+ */
+public class PositionSensor extends Device {
+
+  private final Motor motor;
+
+  private volatile int samplingPeriod = 0;
+
+  volatile double position = 0;
+
+  PositionSensor(String name, Motor motor) {
+    super(name);
+    this.motor = motor;
+  }
+
+  public Motor getMotor() {
+    return motor;
+  }
+
+  public void enable(int samplingPeriod) {
+    this.samplingPeriod = samplingPeriod;
+  }
+
+  public void disable() {
+    samplingPeriod = 0;
+  }
+
+  public int getSamplingPeriod() {
+    return samplingPeriod;
+  }
+
+  public double getValue() {
+    return samplingPeriod == 0 ? Double.NaN : position;
+  }
+
+}
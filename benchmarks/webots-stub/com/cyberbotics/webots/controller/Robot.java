@@ -0,0 +1,68 @@
+package com.cyberbotics.webots.controller;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Offline stand-in for the Webots robot, used to benchmark simlejos without Webots. Every device
+ * name exists. Steps return immediately after moving the motors, so benchmarks measure the
+ * overhead of simlejos rather than the physics.
+ */
+public class Robot {
+
+  private static final int BASIC_TIME_STEP = 32;
+
+  private final Map<String, Device> devices = new HashMap<>();
+
+  private long time = 0;
+
+  public synchronized int step(int duration) {
+    time += duration;
+    for (Device device : devices.values()) {
+      if (device instanceof Motor) {
+        ((Motor) device).update(duration / 1000.0);
+      }
+    }
+    return 0;
+  }
+
+  public double getBasicTimeStep() {
+    return BASIC_TIME_STEP;
+  }
+
+  public synchronized double getTime() {
+    return time / 1000.0;
+  }
+
+  public synchronized Motor getMotor(String name) {
+    return (Motor) devices.computeIfAbsent(name, Motor::new);
+  }
+
+  /**
+   * Returns the position sensor of a motor, named after the motor with the "-sensor" suffix like
+   * in the simlejos robots, or an independent position sensor for other names.
+   */
+  public synchronized PositionSensor getPositionSensor(String name) {
+    if (name.endsWith("-sensor")) {
+      return getMotor(name.substring(0, name.length() - "-sensor".length())).getPositionSensor();
+    }
+    return (PositionSensor) devices.computeIfAbsent(name, key -> new PositionSensor(key, null));
+  }
+
+  public synchronized DistanceSensor getDistanceSensor(String name) {
+    return (DistanceSensor) devices.computeIfAbsent(name, key -> new DistanceSensor(key, this));
+  }
+
+  public synchronized Camera getCamera(String name) {
+    return (Camera) devices.computeIfAbsent(name, key -> new Camera(key, this));
+  }
+
+  public synchronized LED getLED(String name) {
+    return (LED) devices.computeIfAbsent(name, LED::new);
+  }
+
+  public synchronized Speaker getSpeaker(String name) {
+    return (Speaker) devices.computeIfAbsent(name, Speaker::new);
+  }
+
+}
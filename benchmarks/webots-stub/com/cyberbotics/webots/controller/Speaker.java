@@ -0,0 +1,44 @@
+package com.cyberbotics.webots.controller;
+
+/**
+ * Offline stand-in for the Webots speaker, which plays nothing.
+ */
+public class Speaker extends Device {
+
+  private volatile String language = "en-US";
+
+  Speaker(String name) {
+    super(name);
+  }
+
+  public static void playSound(Speaker left, Speaker right, String sound, double volume,
+      double pitch, double balance, boolean loop) {
+    // Nothing to play
+  }
+
+  public void stop(String sound) {
+    // Nothing to stop
+  }
+
+  public boolean isSoundPlaying(String sound) {
+    return false;
+  }
+
+  public String getLanguage() {
+    return language;
+  }
+
+  public boolean setLanguage(String language) {
+    this.language = language;
+    return true;
+  }
+
+  public void speak(String text, double volume) {
+    // Nothing to say
+  }
+
+  public boolean isSpeaking() {
+    return false;
+  }
+
+}
@@ -1,11 +1,35 @@
 package simlejos;
 
-import java.util.concurrent.CyclicBarrier;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoublePredicate;
 import simlejos.hardware.ev3.LocalEV3;
+import simlejos.robotics.SampleProvider;
 
 /**
  * The execution controller controls the execution of physics steps.
  * 
+ * <p>Parties wait for physics steps on a {@link Phaser}, which parks waiting threads without
+ * holding any monitor, so parties can run on virtual threads (see {@link #setVirtualThreads})
+ * without pinning their carrier threads.
+ * 
+ * <p>Threads that wait for a condition with {@link #waitUntil} leave the phaser until their
+ * condition holds. The stepping thread evaluates every pending condition once after each physics
+ * step and only wakes the threads whose condition holds, instead of every waiting thread polling
+ * its devices on every step.
+ * 
  * @author Olivier St-Martin Cormier
  * @author Younes Boubekeur
  */
@@ -13,15 +37,93 @@ public class ExecutionController {
   public static final ExecutionController controller = new ExecutionController();
   
   /**
-   * CyclicBarrier to control execution, one party per thread (main or UltrasonicController).
+   * Phaser to control execution, one party per thread (main or UltrasonicController).
+   * Each physics step takes two phases: one before and one after the step.
    * Defaults to 1 party.
    */
-  private static CyclicBarrier barrier = new CyclicBarrier(1);
+  private static final Phaser phaser = new Phaser(1) {
+    @Override
+    protected boolean onAdvance(int phase, int registeredParties) {
+      // Runs in the last thread to arrive
+      if (profiler != null) {
+        lastArrival = Thread.currentThread();
+      }
+      // Never terminate, even without parties: waiting threads and new parties register again
+      // later, and the simulation only ends when the backend fails to step
+      return false;
+    }
+  };
+  
+  /** The parties that have arrived at the phaser at least once, used by the watchdog. */
+  private static final Set<Party> parties = ConcurrentHashMap.newKeySet();
+  
+  /**
+   * The phases at which a party arrived right before it deregistered, see
+   * {@link #deregisterParty()}. Its place is removed from the phaser once that phase completes.
+   */
+  private static final Queue<Integer> deregisteredPhases = new ConcurrentLinkedQueue<>();
+  
+  /** The party of the current thread. */
+  private static final ThreadLocal<Party> currentParty = ThreadLocal.withInitial(Party::new);
+  
+  /** The number of evicted parties that never identified themselves by arriving. */
+  private static final AtomicInteger evictedAnonymousParties = new AtomicInteger();
+  
+  /** The total number of parties evicted by the watchdog. */
+  private static final AtomicInteger evictedPartyCount = new AtomicInteger();
+  
+  /** Lock held by the thread that runs the watchdog for a stalled phase. */
+  private static final Lock watchdogLock = new ReentrantLock();
+  
+  /**
+   * The wall-clock time a party may take to arrive at a step before it is evicted, in
+   * milliseconds. Zero disables the watchdog.
+   */
+  private static volatile long watchdogTimeout = 0;
+  
+  /** The thread currently inside {@code Robot.step()}, never considered stalled. */
+  private static volatile Thread steppingThread;
+  
+  /** The thread that performed the last physics step. */
+  private static volatile Thread lastSteppingThread;
+  
+  /** The threads waiting in {@code waitUntil()} for their condition to hold. */
+  private static final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+  
+  /**
+   * Lock held by the stepping thread from the step listeners before the physics step until the
+   * step listeners after it, so that batches run with {@code runBetweenSteps()} never straddle a
+   * step.
+   */
+  private static final Lock stepLock = new ReentrantLock();
+  
+  /** The listeners notified around every physics step. */
+  private static final CopyOnWriteArrayList<StepListener> stepListeners =
+      new CopyOnWriteArrayList<>();
+  
+  /** The number of step listeners that need every basic time step, see {@code skippableSteps()}. */
+  private static final AtomicInteger everyStepListeners = new AtomicInteger();
+  
+  /** Whether a {@link SteppingService} holds the steps on purpose, so no party is stalled. */
+  private static volatile boolean steppingPaused = false;
   
-  private static int numberOfParties = 1;
+  /** The number of basic time steps performed so far. Only written by the stepping thread. */
+  private static volatile long stepCount = 0;
+  
+  /** Whether the physics may skip ahead while every party is sleeping. */
+  private static volatile boolean eventDriven = false;
+  
+  /** Whether parties started with {@code startParty()} run on virtual threads. */
+  private static volatile boolean virtualThreads = false;
+  
+  /** The step profiler, or null if profiling is disabled. */
+  private static volatile StepProfiler profiler;
+  
+  /** The last thread to arrive at the phaser, only tracked while profiling. */
+  private static volatile Thread lastArrival;
   
   /** The period between physics steps performed in the background, in milliseconds. */
-  private static long physicsStepsPeriod = 500;
+  private static volatile long physicsStepsPeriod = 500;
   
   private ExecutionController(){
   }
@@ -38,33 +140,21 @@ public class ExecutionController {
    *     more steps.
    */
   public static boolean performPhysicsStep() {
-    int result = -1;
-    try {
-      //Wait for all threads to be synchronized
-      barrier.await();
-      
-      // perform the physics step
-      result = LocalEV3.getRobot().step((int) LocalEV3.getRobot().getBasicTimeStep());
-      
-      //Wait for all threads to be synchronized
-      barrier.await();
-    } catch (Exception e) {
-      // Nothing to do here but print information about the exception
-      System.err.println("Exception: " + e.getMessage());
-    }
-    return result != -1;
+    return step(1);
   }
   
   /**
-   * Calls {@code performPhysicsStep()} numSteps times.
+   * Calls {@code performPhysicsStep()} numSteps times. In event-driven mode, consecutive steps
+   * during which every other party is sleeping are collapsed into a single larger step.
    * 
    * @param numSteps the number of physics steps to take
    * @return true if the last physics step is successful and the controller will continue to perform
    *     more steps.
    */
   public static boolean performPhysicsSteps(int numSteps) {
-    for (int i = 0; i < numSteps; i++) {
-      if (!performPhysicsStep()) {
+    long endStep = stepCount + numSteps;
+    while (stepCount < endStep) {
+      if (!step(endStep - stepCount)) {
         return false;
       }
     }
@@ -75,15 +165,15 @@ public class ExecutionController {
    * "Sleep" until the next physics step is performed.
    */
   public static void waitUntilNextStep() {
-    if (numberOfParties == 1) {
+    if (phaser.getRegisteredParties() == 1) {
       performPhysicsStep();
     } else {  
       try {
         //Wait until all threads reach this point
-        barrier.await();
+        awaitParties();
         //physics step is performed here by the main thread
         //wait until the update is done
-        barrier.await();
+        awaitParties();
       } catch (Exception e) {
         // Nothing to do here but print information about the exception
         System.err.println("Exception: " + e.getMessage());
@@ -92,23 +182,368 @@ public class ExecutionController {
   }
   
   /**
-   * "Sleeps" for the specified duration.
+   * "Sleeps" for the specified duration. The calling thread posts its wake-up step so that, in
+   * event-driven mode, the physics can skip ahead while every party is sleeping. The thread that
+   * performs the physics steps keeps performing them while it sleeps. The other parties wait for
+   * at most one barrier round per basic time step, like {@code waitUntilNextStep()}, so they still
+   * return if no thread performs the steps.
+   * 
    * @param millis the duration in milliseconds
    */
   public static void sleepFor(long millis) {
-    for (double i = 0; i < (double) millis / LocalEV3.getRobot().getBasicTimeStep(); i++) {
-      waitUntilNextStep();
+    long wakeStep = stepCount + (long) Math.ceil(millis / LocalEV3.getBackend().getBasicTimeStep());
+    long rounds = wakeStep - stepCount;
+    Party party = currentParty.get();
+    party.wakeStep = wakeStep;
+    try {
+      while (stepCount < wakeStep) {
+        if (phaser.getRegisteredParties() > 1 && Thread.currentThread() != lastSteppingThread) {
+          // Every round with a stepping thread advances at least one step
+          if (rounds-- == 0) {
+            return;
+          }
+          waitUntilNextStep();
+        } else if (!step(wakeStep - stepCount)) {
+          return;
+        }
+      }
+    } finally {
+      party.wakeStep = Party.AWAKE;
+    }
+  }
+  
+  /**
+   * Blocks until the given condition holds. The condition is evaluated right away, then once after
+   * every physics step by the thread that performs the step, so it must be fast and must not wait
+   * for steps itself. Meanwhile the calling thread leaves the phaser, so the other parties do not
+   * wait for it.
+   * 
+   * <p>If the calling thread is the only party, or is the thread performing the physics steps, it
+   * performs the steps itself until the condition holds.
+   * 
+   * <p>For example: {@code waitUntil(() -> leftMotor.getTachoCount() >= 360)}.
+   * 
+   * @param condition the condition to wait for
+   * @return true when the condition holds, false if the simulation is terminating
+   */
+  public static boolean waitUntil(BooleanSupplier condition) {
+    return waitUntil(condition, -1);
+  }
+  
+  /**
+   * Blocks until the given condition holds or the given simulated time elapses. See
+   * {@link #waitUntil(BooleanSupplier)}.
+   * 
+   * @param condition the condition to wait for
+   * @param timeout the maximum simulated time to wait in milliseconds, or -1 to wait forever
+   * @return true when the condition holds, false on timeout or if the simulation is terminating
+   */
+  public static boolean waitUntil(BooleanSupplier condition, long timeout) {
+    long deadline = timeout < 0 ? Long.MAX_VALUE
+        : stepCount + (long) Math.ceil(timeout / LocalEV3.getBackend().getBasicTimeStep());
+    if (condition.getAsBoolean()) {
+      return true;
+    }
+    if (phaser.getRegisteredParties() == 1 || Thread.currentThread() == lastSteppingThread) {
+      // Nobody else performs the steps
+      while (stepCount < deadline) {
+        if (!performPhysicsStep()) {
+          return false;
+        }
+        if (condition.getAsBoolean()) {
+          return true;
+        }
+      }
+      return false;
+    }
+    
+    // Leave the phaser before posting the condition, so the stepping thread can only register this
+    // party back once it has left
+    leavePhaser(currentParty.get());
+    Waiter waiter = new Waiter(condition, deadline);
+    waiters.add(waiter);
+    while (!waiter.done) {
+      LockSupport.park(waiter);
+    }
+    try {
+      // The stepping thread registered this party back, after the step
+      awaitParties();
+    } catch (Exception e) {
+      // Nothing to do here but print information about the exception
+      System.err.println("Exception: " + e.getMessage());
+    }
+    if (waiter.failure != null) {
+      throw waiter.failure;
     }
+    return waiter.satisfied;
+  }
+  
+  /**
+   * Blocks until the first value of the samples of the given sample provider passes the given
+   * test. The provider is sampled once per physics step by the thread performing the step. See
+   * {@link #waitUntil(BooleanSupplier)}.
+   * 
+   * <p>For example, to wait until the robot is less than 20 cm from a wall:
+   * {@code waitUntil(ultrasonicSensor.getDistanceMode(), distance -> distance < 0.2)}.
+   * 
+   * @param provider the sample provider
+   * @param test the test of the first value of the samples
+   * @return true when the value passes the test, false if the simulation is terminating
+   */
+  public static boolean waitUntil(SampleProvider provider, DoublePredicate test) {
+    float[] sample = new float[provider.sampleSize()];
+    return waitUntil(() -> {
+      provider.fetchSample(sample, 0);
+      return test.test(sample[0]);
+    });
+  }
+  
+  /**
+   * Returns the number of threads waiting in {@code waitUntil()} for their condition to hold.
+   * 
+   * @return the number of waiting threads
+   */
+  public static int getNumberOfWaiters() {
+    return waiters.size();
   }
   
   /**
-   * Sets the number of parties (i.e., threads).
+   * Returns the number of basic time steps performed so far.
+   * 
+   * @return the number of basic time steps performed so far
+   */
+  public static long getStepCount() {
+    return stepCount;
+  }
+  
+  /**
+   * Returns true if event-driven mode is enabled.
+   * 
+   * @return true if event-driven mode is enabled
+   */
+  public static boolean isEventDriven() {
+    return eventDriven;
+  }
+
+  /**
+   * Enables or disables event-driven mode. In this mode, when every party other than the stepping
+   * thread is sleeping in {@code sleepFor()}, the physics advances straight to the earliest
+   * wake-up time with a single {@code Robot.step()} call instead of one call per basic time step.
+   * Steps are not skipped while a step listener needs every basic time step, like a
+   * {@code SampleHistory}.
+   * 
+   * @param eventDriven true to enable event-driven mode
+   */
+  public static void setEventDriven(boolean eventDriven) {
+    ExecutionController.eventDriven = eventDriven;
+  }
+  
+  /**
+   * Sets the number of parties (i.e., threads). Parties are added or removed from the running
+   * phaser, so threads already waiting for a step are not disturbed.
    * 
    * @param n the number of parties
    */
   public static void setNumberOfParties(int n) {
-    numberOfParties = n;
-    barrier = new CyclicBarrier(n);
+    if (n < 1) {
+      throw new IllegalArgumentException("Invalid number of parties " + n);
+    }
+    int difference = n - phaser.getRegisteredParties();
+    if (difference > 0) {
+      phaser.bulkRegister(difference);
+    }
+    for (int i = 0; i > difference; i--) {
+      phaser.arriveAndDeregister();
+    }
+  }
+  
+  /**
+   * Returns the number of parties (i.e., threads) currently registered.
+   * 
+   * @return the number of parties
+   */
+  public static int getNumberOfParties() {
+    return phaser.getRegisteredParties();
+  }
+  
+  /**
+   * Registers one more party. This can be done at any step. To avoid losing steps, call this
+   * method from the thread that starts the new party, before starting it.
+   */
+  public static void registerParty() {
+    phaser.register();
+  }
+  
+  /**
+   * Deregisters the calling thread, which must be a registered party. The remaining parties
+   * continue without it from the current step on.
+   */
+  public static void deregisterParty() {
+    Party party = currentParty.get();
+    parties.remove(party);
+    currentParty.remove();
+    int previousPhase = party.phase.getAndSet(Party.DEREGISTERED);
+    if (previousPhase == Party.EVICTED) {
+      // The watchdog already removed this party from the phaser
+      return;
+    }
+    if (previousPhase == phaser.getPhase()) {
+      // Interrupted after arriving at the current phase, which must complete before it can leave
+      deregisteredPhases.add(previousPhase);
+      return;
+    }
+    phaser.arriveAndDeregister();
+  }
+  
+  /**
+   * Gives the place of the calling thread among the parties to a thread that has not arrived at
+   * any step yet, which takes it on its first arrival. The calling thread stops being a party.
+   */
+  static void handOverParty() {
+    Party party = currentParty.get();
+    parties.remove(party);
+    currentParty.remove();
+    if (party.phase.getAndSet(Party.DEREGISTERED) == Party.EVICTED) {
+      // The watchdog removed this place from the phaser, so make a new one
+      phaser.register();
+    }
+  }
+  
+  /**
+   * Returns the watchdog timeout in milliseconds.
+   * 
+   * @return the watchdog timeout in milliseconds, or zero if the watchdog is disabled
+   */
+  public static long getWatchdogTimeout() {
+    return watchdogTimeout;
+  }
+
+  /**
+   * Sets the wall-clock time a party may take to arrive at a physics step. A party that takes
+   * longer is reported and evicted so that the other parties can continue. An evicted thread that
+   * later waits for a step again is registered back automatically.
+   * 
+   * @param watchdogTimeout in milliseconds, or zero to disable the watchdog
+   */
+  public static void setWatchdogTimeout(long watchdogTimeout) {
+    if (watchdogTimeout < 0) {
+      throw new IllegalArgumentException("Invalid watchdog timeout " + watchdogTimeout);
+    }
+    ExecutionController.watchdogTimeout = watchdogTimeout;
+  }
+  
+  /**
+   * Returns the number of parties evicted by the watchdog so far.
+   * 
+   * @return the number of evicted parties
+   */
+  public static int getEvictedPartyCount() {
+    return evictedPartyCount.get();
+  }
+  
+  /**
+   * Returns the step profiler.
+   * 
+   * @return the step profiler, or null if profiling is disabled
+   */
+  public static StepProfiler getProfiler() {
+    return profiler;
+  }
+  
+  /**
+   * Enables or disables step profiling. Enabling profiling starts with an empty profile.
+   * 
+   * @param enabled true to enable profiling
+   * @see StepProfiler
+   */
+  public static void setProfiling(boolean enabled) {
+    profiler = enabled ? new StepProfiler() : null;
+  }
+  
+  /**
+   * Adds a listener notified by the stepping thread around every physics step.
+   * 
+   * @param listener the listener to add
+   */
+  public static void addStepListener(StepListener listener) {
+    if (stepListeners.addIfAbsent(listener) && listener.needsEveryStep()) {
+      everyStepListeners.incrementAndGet();
+    }
+  }
+  
+  /**
+   * Removes a listener added with {@code addStepListener()}.
+   * 
+   * @param listener the listener to remove
+   */
+  public static void removeStepListener(StepListener listener) {
+    if (stepListeners.remove(listener) && listener.needsEveryStep()) {
+      everyStepListeners.decrementAndGet();
+    }
+  }
+  
+  /**
+   * Runs the given commands between two physics steps: no step starts, and no step listener runs,
+   * until they are done. This makes a batch of device commands take effect at the same step even
+   * when the calling thread is not a party, for example to start both wheels together.
+   * 
+   * @param commands the commands to run, which must not wait for a step
+   */
+  public static void runBetweenSteps(Runnable commands) {
+    stepLock.lock();
+    try {
+      commands.run();
+    } finally {
+      stepLock.unlock();
+    }
+  }
+  
+  /**
+   * Registers a new party and starts a thread running the given task as that party. The party is
+   * deregistered when the task returns. The thread is a virtual thread if virtual threads are
+   * enabled, and a platform thread otherwise.
+   * 
+   * @param name the name of the thread
+   * @param task the task to run, which typically calls {@code waitUntilNextStep()} in a loop
+   * @return the started thread
+   */
+  public static Thread startParty(String name, Runnable task) {
+    registerParty();
+    Runnable party = () -> {
+      try {
+        task.run();
+      } finally {
+        deregisterParty();
+      }
+    };
+    Thread thread = virtualThreads ? newVirtualThread(name, party) : new Thread(party, name);
+    thread.start();
+    return thread;
+  }
+  
+  /**
+   * Returns true if parties started with {@code startParty()} run on virtual threads.
+   * 
+   * @return true if virtual threads are enabled
+   */
+  public static boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /**
+   * Enables or disables virtual threads for parties started with {@code startParty()}. Virtual
+   * threads make it cheap to run dozens of fine-grained parties. They require Java 21 or later; on
+   * older versions, parties keep running on platform threads.
+   * 
+   * @param virtualThreads true to run parties on virtual threads
+   */
+  public static void setVirtualThreads(boolean virtualThreads) {
+    if (virtualThreads && Runtime.version().feature() < 21) {
+      System.err.println("ExecutionController: virtual threads require Java 21, using platform "
+          + "threads");
+      return;
+    }
+    ExecutionController.virtualThreads = virtualThreads;
   }
   
   /**
@@ -131,13 +566,15 @@ public class ExecutionController {
 
   /**
    * Performs physics steps in the background.
+   * 
+   * @see SteppingService for background steps that can be paced, paused and stopped
    */
   public static void performPhysicsStepsInBackground() {
     new Thread(() -> {
       while (performPhysicsStep()) {
         sleepFor(physicsStepsPeriod);
       }
-    }).start();
+    }, "simlejos-background-steps").start();
   }
   
   /**
@@ -149,5 +586,387 @@ public class ExecutionController {
     setPhysicsStepsPeriod(physicsStepsPeriod);
     performPhysicsStepsInBackground();
   }
+  
+  /**
+   * Tells the watchdog whether a {@link SteppingService} is holding the steps on purpose, paused or
+   * pacing them, in which case the parties waiting for a step are not stalled.
+   * 
+   * @param paused true while the stepping service is paused or pacing the steps
+   */
+  static void setSteppingPaused(boolean paused) {
+    steppingPaused = paused;
+  }
+  
+  /**
+   * Performs one physics step, as long as the given number of basic time steps if every other party
+   * is sleeping at least that long in event-driven mode.
+   * 
+   * @param maxSteps the maximum number of basic time steps the calling thread can skip
+   * @return true if the physics step is successful and the controller will continue to perform
+   *     more steps.
+   */
+  private static boolean step(long maxSteps) {
+    int result = -1;
+    StepProfiler stepProfiler = profiler;
+    long start = stepProfiler != null ? System.nanoTime() : 0;
+    try {
+      //Wait for all threads to be synchronized
+      awaitParties();
+      Thread straggler = lastArrival;
+      long firstBarrierEnd = stepProfiler != null ? System.nanoTime() : 0;
+      
+      // perform the physics step
+      int basicTimeStep = (int) LocalEV3.getBackend().getBasicTimeStep();
+      long steps = 1;
+      if (eventDriven) {
+        steps = skippableSteps(Math.min(maxSteps, Integer.MAX_VALUE / basicTimeStep));
+      }
+      stepLock.lock();
+      try {
+        for (StepListener listener : stepListeners) {
+          notifyBeforeStep(listener);
+        }
+        steppingThread = Thread.currentThread();
+        lastSteppingThread = steppingThread;
+        try {
+          result = LocalEV3.getBackend().step((int) steps * basicTimeStep);
+        } finally {
+          stepCount += steps;
+          steppingThread = null;
+        }
+        for (StepListener listener : stepListeners) {
+          notifyAfterStep(listener);
+        }
+      } finally {
+        stepLock.unlock();
+      }
+      if (!waiters.isEmpty()) {
+        evaluateConditions(result == -1);
+      }
+      long stepEnd = stepProfiler != null ? System.nanoTime() : 0;
+      
+      //Wait for all threads to be synchronized
+      awaitParties();
+      if (stepProfiler != null) {
+        stepProfiler.record(firstBarrierEnd - start, stepEnd - firstBarrierEnd,
+            System.nanoTime() - stepEnd, straggler);
+      }
+    } catch (InterruptedException e) {
+      // Asked to stop, see SteppingService.stop()
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      // Nothing to do here but print information about the exception
+      System.err.println("Exception: " + e.getMessage());
+    }
+    return result != -1;
+  }
+  
+  /**
+   * Notifies a listener before a step, reporting its exceptions so that the step still happens.
+   * 
+   * @param listener the listener to notify
+   */
+  private static void notifyBeforeStep(StepListener listener) {
+    try {
+      listener.beforeStep();
+    } catch (RuntimeException e) {
+      System.err.println("StepListener exception: " + e.getMessage());
+    }
+  }
+  
+  /**
+   * Notifies a listener after a step, reporting its exceptions so that the step still completes.
+   * 
+   * @param listener the listener to notify
+   */
+  private static void notifyAfterStep(StepListener listener) {
+    try {
+      listener.afterStep();
+    } catch (RuntimeException e) {
+      System.err.println("StepListener exception: " + e.getMessage());
+    }
+  }
+  
+  /**
+   * Evaluates the conditions of the waiting threads and wakes those whose condition holds. Must be
+   * called by the stepping thread after the step, before it arrives at the phaser, so that the
+   * woken threads can register back and arrive at the same phase.
+   * 
+   * @param terminating true if the simulation is terminating, to wake every waiting thread
+   */
+  private static void evaluateConditions(boolean terminating) {
+    for (Iterator<Waiter> iterator = waiters.iterator(); iterator.hasNext(); ) {
+      Waiter waiter = iterator.next();
+      boolean satisfied = false;
+      try {
+        satisfied = waiter.condition.getAsBoolean();
+      } catch (RuntimeException e) {
+        waiter.failure = e;
+      }
+      if (satisfied || terminating || waiter.failure != null || stepCount >= waiter.deadline) {
+        iterator.remove();
+        waiter.satisfied = satisfied;
+        phaser.register();
+        waiter.done = true;
+        LockSupport.unpark(waiter.thread);
+      }
+    }
+  }
+  
+  /**
+   * Removes the given party of the calling thread from the phaser while it waits for a condition.
+   * 
+   * @param party the party of the calling thread
+   */
+  private static void leavePhaser(Party party) {
+    int previousPhase = party.phase.getAndSet(Party.WAITING);
+    boolean registered = previousPhase != Party.EVICTED;
+    if (previousPhase == Party.NEW) {
+      parties.add(party);
+      // Take the place of an evicted anonymous party if there is one
+      if (evictedAnonymousParties.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+        registered = false;
+      }
+    }
+    if (registered) {
+      phaser.arriveAndDeregister();
+    }
+  }
+  
+  /**
+   * Returns the number of basic time steps the physics can advance before any party needs to look
+   * at it. Must be called by the stepping thread while all parties are waiting.
+   * 
+   * @param maxSteps the maximum number of basic time steps the stepping thread can skip
+   * @return the number of basic time steps to perform, at least 1
+   */
+  private static long skippableSteps(long maxSteps) {
+    if (maxSteps <= 1 || everyStepListeners.get() > 0) {
+      return 1;
+    }
+    Party self = currentParty.get();
+    int sleepingParties = 0;
+    long steps = maxSteps;
+    for (Party party : parties) {
+      if (party == self) {
+        continue;
+      }
+      long wakeStep = party.wakeStep;
+      if (wakeStep == Party.AWAKE) {
+        return 1;
+      }
+      sleepingParties++;
+      steps = Math.min(steps, wakeStep - stepCount);
+    }
+    // Parties that never arrived at a step are not known to be sleeping
+    if (sleepingParties != phaser.getRegisteredParties() - 1) {
+      return 1;
+    }
+    return Math.max(1, steps);
+  }
+  
+  /**
+   * Creates an unstarted virtual thread. Reflection is used since the library targets Java 11.
+   * 
+   * @param name the name of the thread
+   * @param task the task to run
+   * @return the unstarted virtual thread
+   */
+  private static Thread newVirtualThread(String name, Runnable task) {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+      return (Thread) builderClass.getMethod("unstarted", Runnable.class).invoke(builder, task);
+    } catch (ReflectiveOperationException e) {
+      System.err.println("ExecutionController virtual thread exception: " + e.getMessage());
+      return new Thread(task, name);
+    }
+  }
+  
+  /**
+   * Arrives at the phaser on behalf of the calling thread and waits for the other parties. If the
+   * watchdog is enabled, stalled parties are evicted while waiting.
+   * 
+   * @throws InterruptedException if the calling thread is interrupted while waiting
+   */
+  private static void awaitParties() throws InterruptedException {
+    if (!deregisteredPhases.isEmpty()) {
+      removeDeregisteredParties();
+    }
+    Party party = currentParty.get();
+    // Keep the watchdog away until the arrival phase is known
+    int previousPhase = party.phase.get();
+    while (!party.phase.compareAndSet(previousPhase, Party.ARRIVING)) {
+      previousPhase = party.phase.get();
+    }
+    if (previousPhase == Party.EVICTED) {
+      phaser.register();
+      System.err.println("ExecutionController: evicted party " + party.thread.getName()
+          + " rejoined");
+    } else if (previousPhase == Party.NEW) {
+      // First arrival, take the place of an evicted anonymous party if there is one
+      if (evictedAnonymousParties.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+        phaser.register();
+      }
+      parties.add(party);
+    }
+    int phase = phaser.arrive();
+    party.phase.set(phase);
+    
+    long timeout = watchdogTimeout;
+    if (timeout == 0) {
+      phaser.awaitAdvanceInterruptibly(phase);
+      return;
+    }
+    while (true) {
+      try {
+        phaser.awaitAdvanceInterruptibly(phase, timeout, TimeUnit.MILLISECONDS);
+        return;
+      } catch (TimeoutException e) {
+        evictStalledParties(phase);
+      }
+    }
+  }
+  
+  /**
+   * Removes from the phaser the places of the parties that deregistered after arriving at a phase
+   * that has completed since.
+   */
+  private static void removeDeregisteredParties() {
+    for (Integer phase = deregisteredPhases.peek(); phase != null && phase != phaser.getPhase();
+        phase = deregisteredPhases.peek()) {
+      if (deregisteredPhases.remove(phase)) {
+        phaser.arriveAndDeregister();
+      }
+    }
+  }
+  
+  /**
+   * Reports and evicts the parties that did not arrive at the given phase.
+   * 
+   * @param phase the stalled phase
+   */
+  private static void evictStalledParties(int phase) {
+    if (!watchdogLock.tryLock()) {
+      // Another waiting thread is already handling the stall
+      return;
+    }
+    try {
+      removeDeregisteredParties();
+      if (phaser.getPhase() != phase) {
+        return;
+      }
+      if (steppingPaused) {
+        return;
+      }
+      Thread stepper = steppingThread;
+      if (stepper != null) {
+        System.err.println("ExecutionController watchdog: physics step is taking longer than "
+            + watchdogTimeout + " ms");
+        return;
+      }
+      int missing = phaser.getUnarrivedParties();
+      for (Party party : parties) {
+        if (missing == 0) {
+          break;
+        }
+        int partyPhase = party.phase.get();
+        if (partyPhase == Party.ARRIVING) {
+          // Arriving right now, not stalled
+          missing--;
+          continue;
+        }
+        if (partyPhase == phase || partyPhase < 0
+            || !party.phase.compareAndSet(partyPhase, Party.EVICTED)) {
+          continue;
+        }
+        parties.remove(party);
+        reportStalledParty(party.thread);
+        missing--;
+        evictedPartyCount.incrementAndGet();
+        phaser.arriveAndDeregister();
+      }
+      // The remaining parties were registered but never arrived at any step
+      for (; missing > 0 && phaser.getPhase() == phase; missing--) {
+        System.err.println("ExecutionController watchdog: evicting a party that never arrived at "
+            + "a step");
+        evictedAnonymousParties.incrementAndGet();
+        evictedPartyCount.incrementAndGet();
+        phaser.arriveAndDeregister();
+      }
+    } finally {
+      watchdogLock.unlock();
+    }
+  }
+  
+  /**
+   * Prints information about a stalled party, including where it is stuck.
+   * 
+   * @param thread the thread of the stalled party
+   */
+  private static void reportStalledParty(Thread thread) {
+    StringBuilder report = new StringBuilder("ExecutionController watchdog: evicting party ")
+        .append(thread.getName()).append(" (").append(thread.getState())
+        .append(") after ").append(watchdogTimeout).append(" ms");
+    StackTraceElement[] stack = thread.getStackTrace();
+    for (int i = 0; i < Math.min(stack.length, 5); i++) {
+      report.append(System.lineSeparator()).append("\tat ").append(stack[i]);
+    }
+    System.err.println(report);
+  }
+  
+  /**
+   * The state of a thread that takes part in physics steps.
+   */
+  private static class Party {
+    /** The thread has not arrived at any step yet. */
+    static final int NEW = -1;
+    /** The thread was evicted by the watchdog. */
+    static final int EVICTED = -2;
+    /** The thread deregistered itself. */
+    static final int DEREGISTERED = -3;
+    /** The thread left the phaser to wait for a condition in {@code waitUntil()}. */
+    static final int WAITING = -4;
+    /** The thread is arriving at the current phase. */
+    static final int ARRIVING = -5;
+    
+    /** The wake-up step of a party that is not sleeping. */
+    static final long AWAKE = -1;
+    
+    final Thread thread = Thread.currentThread();
+    
+    /** The last phase the thread arrived at, or one of the negative states above. */
+    final AtomicInteger phase = new AtomicInteger(NEW);
+    
+    /** The step at which the thread wakes up from {@code sleepFor()}, or {@link #AWAKE}. */
+    volatile long wakeStep = AWAKE;
+  }
+  
+  /**
+   * A thread waiting in {@code waitUntil()} for its condition to hold.
+   */
+  private static class Waiter {
+    final Thread thread = Thread.currentThread();
+    
+    final BooleanSupplier condition;
+    
+    /** The step at which the wait times out. */
+    final long deadline;
+    
+    /** Set by the stepping thread when the waiting thread can return. */
+    volatile boolean done = false;
+    
+    /** Whether the condition held. */
+    volatile boolean satisfied = false;
+    
+    /** The exception thrown by the condition, rethrown in the waiting thread. */
+    volatile RuntimeException failure;
+    
+    Waiter(BooleanSupplier condition, long deadline) {
+      this.condition = condition;
+      this.deadline = deadline;
+    }
+  }
 
 }
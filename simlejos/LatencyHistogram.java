@@ -0,0 +1,152 @@
+package simlejos;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size histogram of durations in nanoseconds, in the style of HdrHistogram. Durations are
+ * counted in logarithmic buckets, each split into 16 linear sub-buckets, so every recorded value
+ * is kept with a relative precision of about 6% using a constant amount of memory. Recording never
+ * allocates.
+ * 
+ * <p>A histogram has a single writer, the stepping thread. It can be read from any thread while
+ * the simulation runs, in which case the results are approximate.
+ */
+public class LatencyHistogram {
+  
+  /** Values below this limit are counted exactly. */
+  private static final int LINEAR_LIMIT = 32;
+  
+  /** The number of sub-buckets in each power of two above the linear limit. */
+  private static final int SUB_BUCKETS = 16;
+  
+  /** log2 of {@code LINEAR_LIMIT}. */
+  private static final int LINEAR_BITS = 5;
+  
+  /** Enough buckets for any positive long. */
+  private static final int BUCKET_COUNT = LINEAR_LIMIT + (Long.SIZE - 1 - LINEAR_BITS) * SUB_BUCKETS;
+  
+  private final long[] counts = new long[BUCKET_COUNT];
+  
+  private long count;
+  
+  private long sum;
+  
+  private long max;
+  
+  /**
+   * Records one duration.
+   * 
+   * @param nanos the duration in nanoseconds, negative values are counted as zero
+   */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    counts[bucketOf(value)]++;
+    count++;
+    sum += value;
+    if (value > max) {
+      max = value;
+    }
+  }
+  
+  /**
+   * Removes all recorded durations.
+   */
+  public void reset() {
+    Arrays.fill(counts, 0);
+    count = 0;
+    sum = 0;
+    max = 0;
+  }
+  
+  /**
+   * Returns the number of recorded durations.
+   * 
+   * @return the number of recorded durations
+   */
+  public long getCount() {
+    return count;
+  }
+  
+  /**
+   * Returns the largest recorded duration.
+   * 
+   * @return the largest recorded duration in nanoseconds
+   */
+  public long getMax() {
+    return max;
+  }
+  
+  /**
+   * Returns the mean of the recorded durations.
+   * 
+   * @return the mean duration in nanoseconds, or 0 if nothing was recorded
+   */
+  public double getMean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+  
+  /**
+   * Returns the duration below which the given percentage of the recorded durations fall.
+   * 
+   * @param percentile the percentile, between 0 and 100
+   * @return the duration at the percentile in nanoseconds, or 0 if nothing was recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    long total = count;
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(highestValueOf(i), max);
+      }
+    }
+    return max;
+  }
+  
+  /**
+   * Returns a one-line summary with the median, the 99th percentile and the maximum in
+   * microseconds.
+   * 
+   * @return the summary
+   */
+  @Override
+  public String toString() {
+    return String.format("p50 %8.1f us  p99 %8.1f us  max %8.1f us",
+        getValueAtPercentile(50) / 1e3, getValueAtPercentile(99) / 1e3, getMax() / 1e3);
+  }
+  
+  /**
+   * Returns the index of the bucket that counts the given value.
+   * 
+   * @param value a non-negative value
+   * @return the bucket index
+   */
+  private static int bucketOf(long value) {
+    if (value < LINEAR_LIMIT) {
+      return (int) value;
+    }
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - 4)) - SUB_BUCKETS;
+    return LINEAR_LIMIT + (exponent - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+  }
+  
+  /**
+   * Returns the largest value counted by the given bucket.
+   * 
+   * @param bucket the bucket index
+   * @return the largest value of the bucket
+   */
+  private static long highestValueOf(int bucket) {
+    if (bucket < LINEAR_LIMIT) {
+      return bucket;
+    }
+    int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+    long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << (exponent - 4)) - 1;
+  }
+
+}
@@ -0,0 +1,36 @@
+package simlejos;
+
+/**
+ * Listener notified by the {@link ExecutionController} around every physics step. Listeners run in
+ * the stepping thread while every party is waiting at the barrier, so they can read the devices
+ * without contending with the parties. They must return quickly since they delay the step.
+ * 
+ * @see ExecutionController#addStepListener(StepListener)
+ */
+@FunctionalInterface
+public interface StepListener {
+
+  /**
+   * Called before every physics step, after every party arrived at the barrier.
+   */
+  default void beforeStep() {
+    // Nothing to do by default
+  }
+
+  /**
+   * Called after every physics step, before the parties are released and before the conditions of
+   * {@code waitUntil()} are evaluated.
+   */
+  void afterStep();
+
+  /**
+   * Returns true if the listener must be notified after every basic time step, in which case
+   * event-driven mode does not skip steps while it is added. Read once when the listener is added.
+   * 
+   * @return true if the listener needs every basic time step, false by default
+   */
+  default boolean needsEveryStep() {
+    return false;
+  }
+
+}
@@ -0,0 +1,201 @@
+package simlejos;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records where the time goes in each physics step: the wait at the barrier before the step, the
+ * duration of {@code Robot.step()} and the wait at the barrier after the step. It also records which
+ * thread arrived last at the barrier before each step, and how long the stepping thread waited for
+ * it, to find the threads that slow the whole simulation down.
+ * 
+ * <p>Statistics cover a window that starts when the profiler is enabled or reset. Recording
+ * happens in the stepping thread and does not allocate, except once for each new straggler thread.
+ * 
+ * @see ExecutionController#setProfiling(boolean)
+ */
+public class StepProfiler {
+  
+  private final LatencyHistogram firstBarrierWait = new LatencyHistogram();
+  
+  private final LatencyHistogram stepDuration = new LatencyHistogram();
+  
+  private final LatencyHistogram secondBarrierWait = new LatencyHistogram();
+  
+  /**
+   * For each thread that arrived last at the first barrier: the number of times, and the total
+   * time the stepping thread waited for it in nanoseconds.
+   */
+  private final Map<Thread, long[]> stragglers = new ConcurrentHashMap<>();
+  
+  /** The wall-clock time at which the window started, in nanoseconds. */
+  private volatile long windowStart = System.nanoTime();
+  
+  /** The number of steps in the window. */
+  private volatile long windowSteps;
+  
+  /** The number of steps between two dumps, or zero to disable dumps. */
+  private volatile long dumpInterval;
+  
+  StepProfiler() {
+  }
+  
+  /**
+   * Records one physics step. Called by the stepping thread.
+   * 
+   * @param firstWait the wait at the first barrier in nanoseconds
+   * @param step the duration of {@code Robot.step()} in nanoseconds
+   * @param secondWait the wait at the second barrier in nanoseconds
+   * @param straggler the thread that arrived last at the first barrier
+   */
+  void record(long firstWait, long step, long secondWait, Thread straggler) {
+    firstBarrierWait.record(firstWait);
+    stepDuration.record(step);
+    secondBarrierWait.record(secondWait);
+    if (straggler != null && straggler != Thread.currentThread()) {
+      long[] stats = stragglers.computeIfAbsent(straggler, thread -> new long[2]);
+      stats[0]++;
+      stats[1] += firstWait;
+    }
+    long steps = ++windowSteps;
+    long interval = dumpInterval;
+    if (interval > 0 && steps >= interval) {
+      System.out.println(this);
+      reset();
+    }
+  }
+  
+  /**
+   * Starts a new window, discarding everything recorded so far.
+   */
+  public void reset() {
+    firstBarrierWait.reset();
+    stepDuration.reset();
+    secondBarrierWait.reset();
+    stragglers.keySet().removeIf(thread -> !thread.isAlive());
+    for (long[] stats : stragglers.values()) {
+      stats[0] = 0;
+      stats[1] = 0;
+    }
+    windowSteps = 0;
+    windowStart = System.nanoTime();
+  }
+  
+  /**
+   * Returns the histogram of the waits at the barrier before each step, in the stepping thread.
+   * 
+   * @return the first barrier wait histogram
+   */
+  public LatencyHistogram getFirstBarrierWait() {
+    return firstBarrierWait;
+  }
+  
+  /**
+   * Returns the histogram of the durations of {@code Robot.step()}.
+   * 
+   * @return the step duration histogram
+   */
+  public LatencyHistogram getStepDuration() {
+    return stepDuration;
+  }
+  
+  /**
+   * Returns the histogram of the waits at the barrier after each step, in the stepping thread.
+   * 
+   * @return the second barrier wait histogram
+   */
+  public LatencyHistogram getSecondBarrierWait() {
+    return secondBarrierWait;
+  }
+  
+  /**
+   * Returns the number of steps performed per wall-clock second in the window.
+   * 
+   * @return the number of steps per second
+   */
+  public double getStepsPerSecond() {
+    long elapsed = System.nanoTime() - windowStart;
+    return elapsed == 0 ? 0 : windowSteps * 1e9 / elapsed;
+  }
+  
+  /**
+   * Returns the thread the stepping thread waited for the longest in total in the window.
+   * 
+   * @return the worst straggler, or null if the stepping thread never waited for another thread
+   */
+  public Thread getWorstStraggler() {
+    Thread worst = null;
+    long worstDelay = 0;
+    for (Map.Entry<Thread, long[]> entry : stragglers.entrySet()) {
+      if (entry.getValue()[1] > worstDelay) {
+        worst = entry.getKey();
+        worstDelay = entry.getValue()[1];
+      }
+    }
+    return worst;
+  }
+  
+  /**
+   * Returns the total time the stepping thread waited for the given thread in the window.
+   * 
+   * @param thread the thread
+   * @return the total delay in nanoseconds
+   */
+  public long getStragglerDelay(Thread thread) {
+    long[] stats = stragglers.get(thread);
+    return stats == null ? 0 : stats[1];
+  }
+  
+  /**
+   * Returns the number of steps before which the given thread arrived last in the window.
+   * 
+   * @param thread the thread
+   * @return the number of steps the thread arrived last
+   */
+  public long getStragglerCount(Thread thread) {
+    long[] stats = stragglers.get(thread);
+    return stats == null ? 0 : stats[0];
+  }
+  
+  /**
+   * Returns the number of steps between two dumps.
+   * 
+   * @return the number of steps between two dumps, or zero if dumps are disabled
+   */
+  public long getDumpInterval() {
+    return dumpInterval;
+  }
+
+  /**
+   * Prints a report to the standard output, and starts a new window, every given number of steps.
+   * 
+   * @param dumpInterval the number of steps between two dumps, or zero to disable dumps
+   */
+  public void setDumpInterval(long dumpInterval) {
+    this.dumpInterval = dumpInterval;
+  }
+  
+  /**
+   * Returns a report of the window.
+   * 
+   * @return the report
+   */
+  @Override
+  public String toString() {
+    String newLine = System.lineSeparator();
+    StringBuilder report = new StringBuilder("Step profile: ").append(windowSteps)
+        .append(" steps, ").append(String.format("%.1f", getStepsPerSecond()))
+        .append(" steps/s").append(newLine)
+        .append("  first barrier  ").append(firstBarrierWait).append(newLine)
+        .append("  Robot.step     ").append(stepDuration).append(newLine)
+        .append("  second barrier ").append(secondBarrierWait);
+    Thread worst = getWorstStraggler();
+    if (worst != null) {
+      report.append(newLine).append("  worst straggler ").append(worst.getName()).append(": last ")
+          .append(getStragglerCount(worst)).append(" times, ")
+          .append(String.format("%.1f", getStragglerDelay(worst) / 1e6)).append(" ms in total");
+    }
+    return report.toString();
+  }
+
+}
@@ -0,0 +1,384 @@
+package simlejos;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import simlejos.hardware.ev3.LocalEV3;
+
+/**
+ * Performs physics steps in the background on a dedicated thread, which can be paused, resumed and
+ * stopped. The service is a party of the {@link ExecutionController}: it takes the place of the
+ * thread that starts it, usually the main thread, which then stops being a party. Other threads
+ * that take part in the steps, the main thread included, are registered as usual with
+ * {@code setNumberOfParties()} or {@code registerParty()} and only need to call
+ * {@code waitUntilNextStep()} or {@code sleepFor()}.
+ * 
+ * <p>Steps can be paced in three ways:
+ * <ul>
+ * <li>{@link Pacing#AS_FAST_AS_POSSIBLE}, the default, steps as soon as every party is ready.</li>
+ * <li>{@link Pacing#WALL_CLOCK} keeps the simulation time in step with the wall clock.</li>
+ * <li>{@link Pacing#REAL_TIME_FACTOR} runs the simulation a given number of times faster than the
+ *     wall clock, for example 2 for twice as fast.</li>
+ * </ul>
+ * 
+ * <p>For example, to run a simulation at twice the real speed:
+ * <pre>
+ * SteppingService stepper = new SteppingService();
+ * stepper.setRealTimeFactor(2);
+ * stepper.start();
+ * ...
+ * stepper.stop();
+ * stepper.awaitTermination(1, TimeUnit.SECONDS);
+ * </pre>
+ */
+public class SteppingService {
+
+  /** The default name of the stepping thread. */
+  public static final String DEFAULT_THREAD_NAME = "simlejos-stepper";
+
+  /**
+   * How the service paces the physics steps.
+   */
+  public enum Pacing {
+    /** Steps as soon as every party is ready. */
+    AS_FAST_AS_POSSIBLE,
+    /** Keeps the simulation time in step with the wall clock. */
+    WALL_CLOCK,
+    /** Keeps the simulation time at a multiple of the wall clock. */
+    REAL_TIME_FACTOR
+  }
+
+  /**
+   * The life cycle of the service.
+   */
+  public enum State {
+    /** Not started yet. */
+    NEW,
+    /** Performing steps. */
+    RUNNING,
+    /** Started, but not performing steps until resumed. */
+    PAUSED,
+    /** Stopped, or the simulation terminated. The service cannot be restarted. */
+    STOPPED
+  }
+
+  private final ThreadFactory threadFactory;
+
+  private final Lock lock = new ReentrantLock();
+
+  /** Signaled when the state or the pacing changes. */
+  private final Condition changed = lock.newCondition();
+
+  private volatile State state = State.NEW;
+
+  private volatile Pacing pacing = Pacing.AS_FAST_AS_POSSIBLE;
+
+  private volatile double realTimeFactor = 1;
+
+  private volatile Thread thread;
+
+  /** The number of basic time steps performed by the service. */
+  private volatile long stepsPerformed = 0;
+
+  /**
+   * How far the simulation is ahead of the schedule in nanoseconds, negative when behind.
+   */
+  private volatile long scheduleOffset = 0;
+
+  /** Set when the pacing must start over from the current step, after a pause or a change. */
+  private boolean rebase = true;
+
+  /**
+   * Creates a stepping service running on a platform thread named {@value #DEFAULT_THREAD_NAME}.
+   */
+  public SteppingService() {
+    this(task -> new Thread(task, DEFAULT_THREAD_NAME));
+  }
+
+  /**
+   * Creates a stepping service running on a thread created by the given factory, for example to
+   * name the thread, make it a daemon thread or run it on a virtual thread.
+   * 
+   * @param threadFactory the factory of the stepping thread
+   */
+  public SteppingService(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+  }
+
+  /**
+   * Starts the stepping thread, which takes the place of the calling thread among the parties. The
+   * calling thread must be a party, like the main thread, and stops being one.
+   * 
+   * @throws IllegalStateException if the service was already started
+   */
+  public void start() {
+    lock.lock();
+    try {
+      if (state != State.NEW) {
+        throw new IllegalStateException("SteppingService already started");
+      }
+      ExecutionController.handOverParty();
+      thread = threadFactory.newThread(this::run);
+      state = State.RUNNING;
+      thread.start();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Pauses the service after the current step. The other parties wait for the next step until the
+   * service is resumed; the watchdog does not consider the service stalled meanwhile.
+   */
+  public void pause() {
+    lock.lock();
+    try {
+      if (state == State.RUNNING) {
+        state = State.PAUSED;
+        ExecutionController.setSteppingPaused(true);
+        changed.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Resumes a paused service. The pacing starts over from the current step, so the service does
+   * not rush to catch up on the time spent paused.
+   */
+  public void resume() {
+    lock.lock();
+    try {
+      if (state == State.PAUSED) {
+        state = State.RUNNING;
+        rebase = true;
+        ExecutionController.setSteppingPaused(false);
+        changed.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stops the service. The stepping thread is interrupted if it is waiting for the other parties,
+   * then deregisters itself, and the remaining parties continue without it.
+   */
+  public void stop() {
+    lock.lock();
+    try {
+      if (state == State.PAUSED) {
+        ExecutionController.setSteppingPaused(false);
+      }
+      if (state == State.NEW) {
+        state = State.STOPPED;
+      } else if (state != State.STOPPED) {
+        state = State.STOPPED;
+        changed.signalAll();
+        if (Thread.currentThread() != thread) {
+          thread.interrupt();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits for the stepping thread to finish after {@code stop()}.
+   * 
+   * @param timeout the maximum time to wait
+   * @param unit the unit of the timeout
+   * @return true if the stepping thread finished, false if the timeout elapsed
+   * @throws InterruptedException if the calling thread is interrupted while waiting
+   */
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    Thread stepper = thread;
+    if (stepper == null) {
+      return state == State.STOPPED;
+    }
+    stepper.join(Math.max(1, unit.toMillis(timeout)));
+    return !stepper.isAlive();
+  }
+
+  /**
+   * Returns the state of the service.
+   * 
+   * @return the state of the service
+   */
+  public State getState() {
+    return state;
+  }
+
+  /**
+   * Returns the stepping thread.
+   * 
+   * @return the stepping thread, or null if the service was not started
+   */
+  public Thread getThread() {
+    return thread;
+  }
+
+  /**
+   * Returns the pacing of the steps.
+   * 
+   * @return the pacing
+   */
+  public Pacing getPacing() {
+    return pacing;
+  }
+
+  /**
+   * Sets the pacing of the steps. Use {@code setRealTimeFactor()} to pace at a real-time factor.
+   * 
+   * @param pacing the pacing
+   */
+  public void setPacing(Pacing pacing) {
+    lock.lock();
+    try {
+      this.pacing = pacing;
+      rebase = true;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the real-time factor used with {@link Pacing#REAL_TIME_FACTOR}.
+   * 
+   * @return the real-time factor
+   */
+  public double getRealTimeFactor() {
+    return realTimeFactor;
+  }
+
+  /**
+   * Paces the steps so that the simulation runs the given number of times faster than the wall
+   * clock, for example 0.5 for half speed or 2 for twice the speed.
+   * 
+   * @param realTimeFactor the real-time factor, greater than 0
+   */
+  public void setRealTimeFactor(double realTimeFactor) {
+    if (!(realTimeFactor > 0) || Double.isInfinite(realTimeFactor)) {
+      throw new IllegalArgumentException("Invalid real-time factor " + realTimeFactor);
+    }
+    lock.lock();
+    try {
+      this.realTimeFactor = realTimeFactor;
+      this.pacing = Pacing.REAL_TIME_FACTOR;
+      rebase = true;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of basic time steps performed by the service.
+   * 
+   * @return the number of basic time steps
+   */
+  public long getStepsPerformed() {
+    return stepsPerformed;
+  }
+
+  /**
+   * Returns how far the simulation is ahead of the schedule set by the pacing. A negative offset
+   * means that the steps take longer than the pacing allows, so the simulation runs slower than
+   * requested. The offset is always zero when running as fast as possible.
+   * 
+   * @return the offset in milliseconds, positive when ahead and negative when behind
+   */
+  public double getScheduleOffset() {
+    return scheduleOffset / 1e6;
+  }
+
+  /**
+   * The stepping loop.
+   */
+  private void run() {
+    long baseStep = 0;
+    long baseTime = 0;
+    try {
+      while (true) {
+        lock.lock();
+        try {
+          while (state == State.PAUSED) {
+            changed.awaitUninterruptibly();
+          }
+          if (state == State.STOPPED) {
+            return;
+          }
+          if (rebase) {
+            rebase = false;
+            baseStep = ExecutionController.getStepCount();
+            baseTime = System.nanoTime();
+            scheduleOffset = 0;
+          }
+        } finally {
+          lock.unlock();
+        }
+
+        long stepsBefore = ExecutionController.getStepCount();
+        if (!ExecutionController.performPhysicsStep()) {
+          return;
+        }
+        long stepCount = ExecutionController.getStepCount();
+        stepsPerformed += stepCount - stepsBefore;
+        pace(stepCount - baseStep, baseTime);
+      }
+    } finally {
+      lock.lock();
+      try {
+        if (state == State.PAUSED) {
+          ExecutionController.setSteppingPaused(false);
+        }
+        state = State.STOPPED;
+      } finally {
+        lock.unlock();
+      }
+      ExecutionController.deregisterParty();
+    }
+  }
+
+  /**
+   * Waits until the wall-clock time of the given step according to the pacing, unless the pacing
+   * changes or the service is paused or stopped meanwhile.
+   * 
+   * @param steps the number of basic time steps since the pacing started
+   * @param baseTime the wall-clock time in nanoseconds when the pacing started
+   */
+  private void pace(long steps, long baseTime) {
+    Pacing currentPacing = pacing;
+    if (currentPacing == Pacing.AS_FAST_AS_POSSIBLE) {
+      scheduleOffset = 0;
+      return;
+    }
+    double factor = currentPacing == Pacing.WALL_CLOCK ? 1 : realTimeFactor;
+    double simulatedNanos = steps * LocalEV3.getBackend().getBasicTimeStep() * 1e6;
+    long dueTime = baseTime + (long) (simulatedNanos / factor);
+    long ahead = dueTime - System.nanoTime();
+    scheduleOffset = ahead;
+    if (ahead <= 0) {
+      return;
+    }
+    lock.lock();
+    try {
+      // The other parties waiting meanwhile are not stalled
+      ExecutionController.setSteppingPaused(true);
+      while (ahead > 0 && state == State.RUNNING && !rebase) {
+        ahead = changed.awaitNanos(ahead);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      ExecutionController.setSteppingPaused(state == State.PAUSED);
+      lock.unlock();
+    }
+  }
+
+}
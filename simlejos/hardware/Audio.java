@@ -1,9 +1,11 @@
 package simlejos.hardware;
 
 import com.cyberbotics.webots.controller.Robot;
-import com.cyberbotics.webots.controller.Speaker;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import simlejos.hardware.backend.Backend;
+import simlejos.hardware.backend.SpeakerDevice;
+import simlejos.hardware.backend.webots.WebotsBackend;
 
 
 /**
@@ -27,18 +29,27 @@ public class Audio {
   public static final String TEXT_TO_SPEECH_DEFAULT_LANGUAGE = "en-US";
 
   /**
-   * The Webots speaker to interface with.
+   * The speaker to interface with.
    */
-  final Speaker speaker;
+  final SpeakerDevice speaker;
 
   /**
    * Lock for the speaker.
    */
-  private static Lock lock = new ReentrantLock();
+  private final Lock lock = new ReentrantLock();
 
   public Audio(Robot robot) {
+    this(WebotsBackend.of(robot));
+  }
+  
+  /**
+   * Constructs an Audio object.
+   * 
+   * @param backend the simulation backend of the robot
+   */
+  public Audio(Backend backend) {
     // Get target sensor
-    speaker = robot.getSpeaker("speaker");
+    speaker = backend.getSpeaker("speaker");
   }
 
   /**
@@ -47,7 +58,7 @@ public class Audio {
   public void beep() {
     lock.lock();
     try {
-      Speaker.playSound(speaker, speaker, BEEP_AUDIO_FILE, 1, 1, 0, false);
+      speaker.playSound(BEEP_AUDIO_FILE, 1, 1, 0, false);
     } catch (Exception e) {
       System.err.println("Audio exception: " + e.getMessage());
     } finally {
@@ -63,7 +74,7 @@ public class Audio {
   public void playSample(String filename) {
     lock.lock();
     try {
-      Speaker.playSound(speaker, speaker, filename, 1, 1, 0, false);
+      speaker.playSound(filename, 1, 1, 0, false);
     } catch (Exception e) {
       System.err.println("Audio exception: " + e.getMessage());
     } finally {
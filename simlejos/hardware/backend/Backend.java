@@ -0,0 +1,84 @@
+package simlejos.hardware.backend;
+
+/**
+ * A simulation backend, which advances the simulation and provides the devices of the simulated
+ * robot. The device classes (motors, sensors, audio) only talk to the simulator through a backend,
+ * so the same controller code can run in Webots or in another simulator.
+ * 
+ * <p>Device lookups return null if the robot has no device with the given name.
+ * 
+ * @see Backends
+ */
+public interface Backend {
+
+  /**
+   * Advances the simulation by the given duration.
+   * 
+   * @param duration the duration in milliseconds, a multiple of the basic time step
+   * @return -1 if the simulation is about to terminate, 0 otherwise
+   */
+  public int step(int duration);
+
+  /**
+   * Returns the basic time step of the simulation.
+   * 
+   * @return the basic time step in milliseconds
+   */
+  public double getBasicTimeStep();
+
+  /**
+   * Returns the simulation time.
+   * 
+   * @return the simulation time in seconds
+   */
+  public double getTime();
+
+  /**
+   * Returns the motor with the given name.
+   * 
+   * @param name the name of the motor
+   * @return the motor, or null if not found
+   */
+  public MotorDevice getMotor(String name);
+
+  /**
+   * Returns the position sensor with the given name.
+   * 
+   * @param name the name of the position sensor
+   * @return the position sensor, or null if not found
+   */
+  public SensorDevice getPositionSensor(String name);
+
+  /**
+   * Returns the distance sensor with the given name.
+   * 
+   * @param name the name of the distance sensor
+   * @return the distance sensor, or null if not found
+   */
+  public SensorDevice getDistanceSensor(String name);
+
+  /**
+   * Returns the camera with the given name.
+   * 
+   * @param name the name of the camera
+   * @return the camera, or null if not found
+   */
+  public CameraDevice getCamera(String name);
+
+  /**
+   * Returns the LED with the given name.
+   * 
+   * @param name the name of the LED
+   * @return the LED, or null if not found
+   */
+  public LedDevice getLed(String name);
+
+  /**
+   * Returns the speaker with the given name.
+   * 
+   * @param name the name of the speaker
+   * @return the speaker, or null if not found
+   */
+  public SpeakerDevice getSpeaker(String name);
+
+}
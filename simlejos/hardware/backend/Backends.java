@@ -0,0 +1,105 @@
+package simlejos.hardware.backend;
+
+import java.io.IOException;
+import simlejos.hardware.backend.kinematic.KinematicBackend;
+import simlejos.hardware.backend.kinematic.KinematicWorld;
+import simlejos.hardware.backend.replay.RecordingBackend;
+import simlejos.hardware.backend.replay.ReplayBackend;
+import simlejos.hardware.backend.webots.WebotsBackend;
+
+/**
+ * Selects the simulation backend at startup. The backend is chosen with the
+ * {@code simlejos.backend} system property:
+ * <ul>
+ * <li>{@code webots} (the default) runs the robot in Webots.</li>
+ * <li>{@code kinematic} runs the robot in a pure-Java kinematic simulation of the world described
+ *     by the properties file given in the {@code simlejos.world} system property, or of an empty
+ *     arena if none is given. See {@link KinematicWorld}.</li>
+ * <li>{@code replay} plays back the log given in the {@code simlejos.replay} system property. See
+ *     {@link ReplayBackend}.</li>
+ * </ul>
+ * 
+ * <p>If the {@code simlejos.record} system property is set, the run of the selected backend is
+ * recorded into the log at that path. See {@link RecordingBackend}.
+ * 
+ * <p>For example: {@code java -Dsimlejos.backend=kinematic -Dsimlejos.world=lab.properties ...}
+ */
+public class Backends {
+
+  /** The system property that selects the backend. */
+  public static final String BACKEND_PROPERTY = "simlejos.backend";
+
+  /** The system property that gives the world file of the kinematic backend. */
+  public static final String WORLD_PROPERTY = "simlejos.world";
+
+  /** The system property that gives the log played back by the replay backend. */
+  public static final String REPLAY_PROPERTY = "simlejos.replay";
+
+  /** The system property that gives the log to record the run into. */
+  public static final String RECORD_PROPERTY = "simlejos.record";
+
+  /** The backend set programmatically, used instead of the system property if set. */
+  private static Backend defaultBackend;
+
+  private Backends() {
+    // Backends class cannot be instantiated
+  }
+
+  /**
+   * Sets the backend to use instead of the one selected by the system properties. This must be
+   * called before the first use of {@code LocalEV3}, motors or sensor ports.
+   * 
+   * @param backend the backend to use
+   */
+  public static void setDefault(Backend backend) {
+    defaultBackend = backend;
+  }
+
+  /**
+   * Creates the backend selected at startup.
+   * 
+   * @return the backend
+   */
+  public static Backend create() {
+    if (defaultBackend != null) {
+      return defaultBackend;
+    }
+    Backend backend = createSelected();
+    String recordPath = System.getProperty(RECORD_PROPERTY);
+    if (recordPath == null) {
+      return backend;
+    }
+    try {
+      RecordingBackend recorder = new RecordingBackend(backend, recordPath);
+      Runtime.getRuntime().addShutdownHook(new Thread(recorder::close));
+      return recorder;
+    } catch (IOException e) {
+      System.err.println("Backends record exception: " + e.getMessage());
+      return backend;
+    }
+  }
+
+  private static Backend createSelected() {
+    String name = System.getProperty(BACKEND_PROPERTY, "webots");
+    switch (name) {
+      case "webots":
+        return new WebotsBackend();
+      case "kinematic":
+        return new KinematicBackend(KinematicWorld.load(System.getProperty(WORLD_PROPERTY)));
+      case "replay":
+        String replayPath = System.getProperty(REPLAY_PROPERTY);
+        if (replayPath == null) {
+          throw new IllegalArgumentException(REPLAY_PROPERTY + " is not set");
+        }
+        try {
+          return new ReplayBackend(replayPath);
+        } catch (IOException e) {
+          throw new IllegalArgumentException("Cannot replay " + replayPath + ": " + e.getMessage(),
+              e);
+        }
+      default:
+        throw new IllegalArgumentException("Unknown backend " + name);
+    }
+  }
+
+}
@@ -0,0 +1,88 @@
+package simlejos.hardware.backend;
+
+/**
+ * A camera. Images are arrays of pixels in row-major order, each pixel packed as 0xRRGGBB, like the
+ * images of the Webots camera.
+ */
+public interface CameraDevice {
+
+  /**
+   * Enables the camera.
+   * 
+   * @param samplingPeriod the sampling period in milliseconds
+   */
+  public void enable(int samplingPeriod);
+
+  /**
+   * Disables the camera.
+   */
+  public void disable();
+
+  /**
+   * Returns the sampling period.
+   * 
+   * @return the sampling period in milliseconds, or 0 if the camera is disabled
+   */
+  public int getSamplingPeriod();
+
+  /**
+   * Returns the last image.
+   * 
+   * @return the last image
+   */
+  public int[] getImage();
+
+  /**
+   * Returns the width of the images.
+   * 
+   * @return the width in pixels
+   */
+  public int getWidth();
+
+  /**
+   * Returns the height of the images.
+   * 
+   * @return the height in pixels
+   */
+  public int getHeight();
+
+  /**
+   * Returns the red component of a pixel.
+   * 
+   * @param image the image
+   * @param width the width of the image
+   * @param x the column of the pixel
+   * @param y the row of the pixel
+   * @return the red component, between 0 and 255
+   */
+  public static int imageGetRed(int[] image, int width, int x, int y) {
+    return (image[y * width + x] >> 16) & 0xff;
+  }
+
+  /**
+   * Returns the green component of a pixel.
+   * 
+   * @param image the image
+   * @param width the width of the image
+   * @param x the column of the pixel
+   * @param y the row of the pixel
+   * @return the green component, between 0 and 255
+   */
+  public static int imageGetGreen(int[] image, int width, int x, int y) {
+    return (image[y * width + x] >> 8) & 0xff;
+  }
+
+  /**
+   * Returns the blue component of a pixel.
+   * 
+   * @param image the image
+   * @param width the width of the image
+   * @param x the column of the pixel
+   * @param y the row of the pixel
+   * @return the blue component, between 0 and 255
+   */
+  public static int imageGetBlue(int[] image, int width, int x, int y) {
+    return image[y * width + x] & 0xff;
+  }
+
+}
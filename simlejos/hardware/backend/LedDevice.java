@@ -0,0 +1,22 @@
+package simlejos.hardware.backend;
+
+/**
+ * An LED.
+ */
+public interface LedDevice {
+
+  /**
+   * Sets the state of the LED.
+   * 
+   * @param value 0 to turn the LED off, or the index of the color to turn it on
+   */
+  public void set(int value);
+
+  /**
+   * Returns the state of the LED.
+   * 
+   * @return the value set with {@code set()}
+   */
+  public int get();
+
+}
@@ -0,0 +1,69 @@
+package simlejos.hardware.backend;
+
+/**
+ * A rotational motor, with the semantics of the Webots motor: setting an infinite target position
+ * puts the motor in velocity control mode, otherwise the motor moves to the target position at up
+ * to the set velocity.
+ * 
+ * @see <a href="https://cyberbotics.com/doc/reference/motor?tab-language=java">
+ *     Webots API motor</a>
+ */
+public interface MotorDevice {
+
+  /**
+   * Sets the target position.
+   * 
+   * @param position the target position in radians, or infinity for velocity control
+   */
+  public void setPosition(double position);
+
+  /**
+   * Sets the velocity, which is the maximum velocity in position control mode.
+   * 
+   * @param velocity the velocity in radians per second
+   */
+  public void setVelocity(double velocity);
+
+  /**
+   * Sets the acceleration limit.
+   * 
+   * @param acceleration the acceleration in radians per second squared, or -1 for no limit
+   */
+  public void setAcceleration(double acceleration);
+
+  /**
+   * Returns the velocity set with {@code setVelocity()}.
+   * 
+   * @return the velocity in radians per second
+   */
+  public double getVelocity();
+
+  /**
+   * Returns the maximum velocity of the motor.
+   * 
+   * @return the maximum velocity in radians per second
+   */
+  public double getMaxVelocity();
+
+  /**
+   * Returns the target position set with {@code setPosition()}.
+   * 
+   * @return the target position in radians
+   */
+  public double getTargetPosition();
+
+  /**
+   * Enables torque feedback.
+   * 
+   * @param samplingPeriod the sampling period in milliseconds
+   */
+  public void enableTorqueFeedback(int samplingPeriod);
+
+  /**
+   * Returns the last torque feedback sample.
+   * 
+   * @return the torque in Newton meters
+   */
+  public double getTorqueFeedback();
+
+}
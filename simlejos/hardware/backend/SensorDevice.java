@@ -0,0 +1,35 @@
+package simlejos.hardware.backend;
+
+/**
+ * A sensor that measures a single value, such as a position sensor or a distance sensor. Values
+ * are sampled during simulation steps, every sampling period, once the sensor is enabled.
+ */
+public interface SensorDevice {
+
+  /**
+   * Enables the sensor.
+   * 
+   * @param samplingPeriod the sampling period in milliseconds
+   */
+  public void enable(int samplingPeriod);
+
+  /**
+   * Disables the sensor.
+   */
+  public void disable();
+
+  /**
+   * Returns the sampling period.
+   * 
+   * @return the sampling period in milliseconds, or 0 if the sensor is disabled
+   */
+  public int getSamplingPeriod();
+
+  /**
+   * Returns the last sampled value.
+   * 
+   * @return the last sampled value, or NaN if no value was sampled yet
+   */
+  public double getValue();
+
+}
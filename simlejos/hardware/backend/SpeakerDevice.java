@@ -0,0 +1,34 @@
+package simlejos.hardware.backend;
+
+/**
+ * A speaker.
+ */
+public interface SpeakerDevice {
+
+  /**
+   * Plays a sound file.
+   * 
+   * @param sound the path of the sound file
+   * @param volume the volume, between 0 and 1
+   * @param pitch the pitch
+   * @param balance the balance between the left and right channels, between -1 and 1
+   * @param loop whether to play the sound in a loop
+   */
+  public void playSound(String sound, double volume, double pitch, double balance, boolean loop);
+
+  /**
+   * Sets the language used for text to speech.
+   * 
+   * @param language the language, such as "en-US"
+   */
+  public void setLanguage(String language);
+
+  /**
+   * Speaks the given text.
+   * 
+   * @param text the text to speak
+   * @param volume the volume, between 0 and 1
+   */
+  public void speak(String text, double volume);
+
+}
@@ -0,0 +1,491 @@
+package simlejos.hardware.backend.kinematic;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import simlejos.hardware.backend.Backend;
+import simlejos.hardware.backend.CameraDevice;
+import simlejos.hardware.backend.LedDevice;
+import simlejos.hardware.backend.MotorDevice;
+import simlejos.hardware.backend.SensorDevice;
+import simlejos.hardware.backend.SpeakerDevice;
+import simlejos.hardware.backend.kinematic.KinematicWorld.Mount;
+import simlejos.hardware.backend.kinematic.KinematicWorld.SensorType;
+
+/**
+ * Backend that simulates a differential-drive robot in pure Java, without Webots. The robot pose
+ * is integrated exactly from the rotation of its two wheel motors, the robot stops when its body
+ * hits a wall, the ultrasonic sensors cast rays against the walls, the color sensors sample the
+ * floor colors and the touch sensors detect nearby walls. There is no dynamics simulation, so
+ * unchanged controller code runs much faster than in Webots, which suits continuous integration
+ * and parameter sweeps.
+ * 
+ * @see KinematicWorld
+ */
+public class KinematicBackend implements Backend {
+
+  /** The range of the ultrasonic sensors, in meters. */
+  private static final double ULTRASONIC_RANGE = 2.55;
+
+  /** Half of the angle of the ultrasonic sensor cone, in radians. */
+  private static final double ULTRASONIC_HALF_CONE = Math.toRadians(10);
+
+  /** The number of rays cast over the ultrasonic sensor cone. */
+  private static final int ULTRASONIC_RAYS = 5;
+
+  /** The distance to a wall at which a touch sensor is pressed, in meters. */
+  private static final double TOUCH_DISTANCE = 0.01;
+
+  /** The value of a pressed touch sensor, as read by the Webots position sensor. */
+  private static final double TOUCH_PRESSED = 0.005;
+
+  /** The distance on the floor between two pixels of a color sensor camera, in meters. */
+  private static final double CAMERA_PIXEL_SIZE = 0.002;
+
+  /** The brightness of the floor seen by a color sensor whose light is off. */
+  private static final double AMBIENT_BRIGHTNESS = 0.3;
+
+  /** Lock shared by all the devices, held while stepping. */
+  private final Lock lock = new ReentrantLock();
+
+  private final KinematicWorld world;
+
+  private final Map<String, KinematicMotor> motors = new HashMap<>();
+
+  private final Map<String, KinematicSensor> sensors = new HashMap<>();
+
+  private final Map<String, FloorCamera> cameras = new HashMap<>();
+
+  private final Map<String, KinematicLed> leds = new HashMap<>();
+
+  /** The devices to sample after each time step, in creation order. */
+  private final List<KinematicSensor> sampledSensors = new ArrayList<>();
+
+  private final KinematicMotor leftMotor;
+
+  private final KinematicMotor rightMotor;
+
+  private double x;
+
+  private double y;
+
+  private double theta;
+
+  /** The simulation time in milliseconds. */
+  private long time = 0;
+
+  /**
+   * Creates a backend simulating the given world.
+   * 
+   * @param world the world
+   */
+  public KinematicBackend(KinematicWorld world) {
+    this.world = world;
+    x = world.getRobotX();
+    y = world.getRobotY();
+    theta = world.getRobotTheta();
+    leftMotor = createMotor(world.getLeftMotor());
+    rightMotor = createMotor(world.getRightMotor());
+    for (String name : world.getOtherMotors()) {
+      createMotor(name);
+    }
+  }
+
+  private KinematicMotor createMotor(String name) {
+    KinematicMotor motor = new KinematicMotor(lock, world.getMaxVelocity(), world.getMaxTorque());
+    motors.put(name, motor);
+    sensors.put(name + "-sensor", (KinematicSensor) motor.getSensor());
+    sampledSensors.add((KinematicSensor) motor.getSensor());
+    return motor;
+  }
+
+  @Override
+  public int step(int duration) {
+    int basicTimeStep = world.getBasicTimeStep();
+    double dt = basicTimeStep / 1000.0;
+    lock.lock();
+    try {
+      for (int elapsed = 0; elapsed < Math.max(duration, basicTimeStep);
+          elapsed += basicTimeStep) {
+        for (KinematicMotor motor : motors.values()) {
+          motor.update(dt);
+        }
+        moveRobot();
+        time += basicTimeStep;
+        for (KinematicSensor sensor : sampledSensors) {
+          sensor.sampleIfDue(time);
+        }
+        for (FloorCamera camera : cameras.values()) {
+          camera.sampleIfDue(time);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    return 0;
+  }
+
+  /**
+   * Moves the robot by the last rotation of its wheels, along an exact arc. If the robot would hit
+   * a wall, it does not move and its wheels stall.
+   */
+  private void moveRobot() {
+    double left = leftMotor.getLastRotation() * world.getWheelRadius();
+    double right = rightMotor.getLastRotation() * world.getWheelRadius();
+    double distance = (left + right) / 2;
+    double rotation = (right - left) / world.getTrackWidth();
+    double newX;
+    double newY;
+    if (Math.abs(rotation) < 1e-12) {
+      newX = x + distance * Math.cos(theta);
+      newY = y + distance * Math.sin(theta);
+    } else {
+      double radius = distance / rotation;
+      newX = x + radius * (Math.sin(theta + rotation) - Math.sin(theta));
+      newY = y - radius * (Math.cos(theta + rotation) - Math.cos(theta));
+    }
+    double clearance = world.distanceToWalls(newX, newY);
+    if (clearance < world.getRobotRadius() && clearance < world.distanceToWalls(x, y)) {
+      leftMotor.block();
+      rightMotor.block();
+      return;
+    }
+    x = newX;
+    y = newY;
+    theta = normalize(theta + rotation);
+  }
+
+  private static double normalize(double angle) {
+    return Math.atan2(Math.sin(angle), Math.cos(angle));
+  }
+
+  @Override
+  public double getBasicTimeStep() {
+    return world.getBasicTimeStep();
+  }
+
+  @Override
+  public double getTime() {
+    lock.lock();
+    try {
+      return time / 1000.0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the x coordinate of the center of the wheel axle.
+   * 
+   * @return the x coordinate in meters
+   */
+  public double getX() {
+    lock.lock();
+    try {
+      return x;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the y coordinate of the center of the wheel axle.
+   * 
+   * @return the y coordinate in meters
+   */
+  public double getY() {
+    lock.lock();
+    try {
+      return y;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the heading of the robot.
+   * 
+   * @return the heading in radians, counterclockwise from the x axis, between -pi and pi
+   */
+  public double getTheta() {
+    lock.lock();
+    try {
+      return theta;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Moves the robot, as if it was picked up and put down elsewhere.
+   * 
+   * @param x the x coordinate of the center of the wheel axle in meters
+   * @param y the y coordinate of the center of the wheel axle in meters
+   * @param theta the heading in radians, counterclockwise from the x axis
+   */
+  public void setPose(double x, double y, double theta) {
+    lock.lock();
+    try {
+      this.x = x;
+      this.y = y;
+      this.theta = normalize(theta);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public MotorDevice getMotor(String name) {
+    return motors.get(name);
+  }
+
+  @Override
+  public SensorDevice getPositionSensor(String name) {
+    lock.lock();
+    try {
+      KinematicSensor sensor = sensors.get(name);
+      Mount mount = world.getMount(name);
+      if (sensor == null && mount != null && mount.type == SensorType.TOUCH) {
+        sensor = new KinematicSensor(lock) {
+          @Override
+          double sample() {
+            double[] point = mountPoint(mount, 0, 0);
+            return world.distanceToWalls(point[0], point[1]) <= TOUCH_DISTANCE ? TOUCH_PRESSED : 0;
+          }
+        };
+        sensors.put(name, sensor);
+        sampledSensors.add(sensor);
+      }
+      return sensor;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public SensorDevice getDistanceSensor(String name) {
+    lock.lock();
+    try {
+      KinematicSensor sensor = sensors.get(name);
+      Mount mount = world.getMount(name);
+      if (sensor == null && mount != null && mount.type == SensorType.ULTRASONIC) {
+        sensor = new KinematicSensor(lock) {
+          @Override
+          double sample() {
+            double[] point = mountPoint(mount, 0, 0);
+            double nearest = ULTRASONIC_RANGE;
+            for (int i = 0; i < ULTRASONIC_RAYS; i++) {
+              double angle = theta + mount.theta - ULTRASONIC_HALF_CONE
+                  + 2 * ULTRASONIC_HALF_CONE * i / (ULTRASONIC_RAYS - 1);
+              nearest = Math.min(nearest, world.castRay(point[0], point[1], angle, nearest));
+            }
+            // The Webots distance sensor of the EV3 robot reports centimeters
+            return nearest * 100;
+          }
+        };
+        sensors.put(name, sensor);
+        sampledSensors.add(sensor);
+      }
+      return sensor;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public CameraDevice getCamera(String name) {
+    lock.lock();
+    try {
+      FloorCamera camera = cameras.get(name);
+      Mount mount = world.getMount(name);
+      if (camera == null && mount != null && mount.type == SensorType.COLOR) {
+        camera = new FloorCamera(mount, getLedLocked(name + "-light"));
+        cameras.put(name, camera);
+      }
+      return camera;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public LedDevice getLed(String name) {
+    lock.lock();
+    try {
+      return getLedLocked(name);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private KinematicLed getLedLocked(String name) {
+    Mount mount = world.getMount(name.replace("-light", ""));
+    if (!name.endsWith("-light") || mount == null || mount.type != SensorType.COLOR) {
+      return null;
+    }
+    return leds.computeIfAbsent(name, key -> new KinematicLed());
+  }
+
+  @Override
+  public SpeakerDevice getSpeaker(String name) {
+    return new SilentSpeaker();
+  }
+
+  /**
+   * Returns the position on the floor of a point given relative to a mounted sensor. Must be called
+   * with the lock held.
+   * 
+   * @param mount the sensor
+   * @param forward the forward offset from the sensor
+   * @param left the leftward offset from the sensor
+   * @return the x and y coordinates of the point
+   */
+  private double[] mountPoint(Mount mount, double forward, double left) {
+    double sensorTheta = theta + mount.theta;
+    double sensorX = x + mount.x * Math.cos(theta) - mount.y * Math.sin(theta);
+    double sensorY = y + mount.x * Math.sin(theta) + mount.y * Math.cos(theta);
+    return new double[] {
+      sensorX + forward * Math.cos(sensorTheta) - left * Math.sin(sensorTheta),
+      sensorY + forward * Math.sin(sensorTheta) + left * Math.cos(sensorTheta)
+    };
+  }
+
+  /**
+   * A color sensor camera looking straight down at the floor.
+   */
+  private class FloorCamera implements CameraDevice {
+    private final Mount mount;
+    private final KinematicLed light;
+    private final int[] image;
+    private int samplingPeriod = 0;
+    private long nextSampleTime = 0;
+
+    FloorCamera(Mount mount, KinematicLed light) {
+      this.mount = mount;
+      this.light = light;
+      this.image = new int[mount.width * mount.height];
+    }
+
+    /**
+     * Samples the image if the camera is enabled and its sampling period has elapsed. Must be
+     * called with the lock held.
+     * 
+     * @param time the simulation time in milliseconds
+     */
+    void sampleIfDue(long time) {
+      if (samplingPeriod == 0 || time < nextSampleTime) {
+        return;
+      }
+      nextSampleTime = time + samplingPeriod;
+      double brightness = light != null && light.value != 0 ? 1 : AMBIENT_BRIGHTNESS;
+      for (int row = 0; row < mount.height; row++) {
+        for (int column = 0; column < mount.width; column++) {
+          double[] point = mountPoint(mount, ((mount.height - 1) / 2.0 - row) * CAMERA_PIXEL_SIZE,
+              ((mount.width - 1) / 2.0 - column) * CAMERA_PIXEL_SIZE);
+          int color = world.floorColorAt(point[0], point[1]);
+          int red = (int) (((color >> 16) & 0xff) * brightness);
+          int green = (int) (((color >> 8) & 0xff) * brightness);
+          int blue = (int) ((color & 0xff) * brightness);
+          image[row * mount.width + column] = (red << 16) | (green << 8) | blue;
+        }
+      }
+    }
+
+    @Override
+    public void enable(int samplingPeriod) {
+      lock.lock();
+      try {
+        this.samplingPeriod = samplingPeriod;
+        nextSampleTime = 0;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void disable() {
+      lock.lock();
+      try {
+        samplingPeriod = 0;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public int getSamplingPeriod() {
+      lock.lock();
+      try {
+        return samplingPeriod;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public int[] getImage() {
+      lock.lock();
+      try {
+        return image.clone();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public int getWidth() {
+      return mount.width;
+    }
+
+    @Override
+    public int getHeight() {
+      return mount.height;
+    }
+  }
+
+  private class KinematicLed implements LedDevice {
+    private int value = 0;
+
+    @Override
+    public void set(int value) {
+      lock.lock();
+      try {
+        this.value = value;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public int get() {
+      lock.lock();
+      try {
+        return value;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * A speaker that ignores all sounds, since headless runs have no audio.
+   */
+  private static class SilentSpeaker implements SpeakerDevice {
+    @Override
+    public void playSound(String sound, double volume, double pitch, double balance,
+        boolean loop) {
+    }
+
+    @Override
+    public void setLanguage(String language) {
+    }
+
+    @Override
+    public void speak(String text, double volume) {
+    }
+  }
+
+}
@@ -0,0 +1,202 @@
+package simlejos.hardware.backend.kinematic;
+
+import java.util.concurrent.locks.Lock;
+import simlejos.hardware.backend.MotorDevice;
+import simlejos.hardware.backend.SensorDevice;
+
+/**
+ * A motor of the kinematic simulation, with velocity and position control, an optional
+ * acceleration limit and a simple torque model. The motor has its own position sensor.
+ */
+class KinematicMotor implements MotorDevice {
+
+  /** Moment of inertia seen by the motor, in kg m^2. */
+  private static final double INERTIA = 0.002;
+
+  /** Torque lost to friction while turning, in Newton meters. */
+  private static final double FRICTION = 0.02;
+
+  /** Lock shared by all the devices of the backend. */
+  private final Lock lock;
+
+  private final double maxVelocity;
+
+  private final double maxTorque;
+
+  private double targetPosition = 0;
+
+  private double velocity;
+
+  /** The acceleration limit in radians per second squared, negative for no limit. */
+  private double acceleration = -1;
+
+  private double position = 0;
+
+  private double previousPosition = 0;
+
+  private double actualVelocity = 0;
+
+  private double torque = 0;
+
+  private int torqueSamplingPeriod = 0;
+
+  private final KinematicSensor sensor;
+
+  KinematicMotor(Lock lock, double maxVelocity, double maxTorque) {
+    this.lock = lock;
+    this.maxVelocity = maxVelocity;
+    this.maxTorque = maxTorque;
+    this.velocity = maxVelocity;
+    this.sensor = new KinematicSensor(lock) {
+      @Override
+      double sample() {
+        return position;
+      }
+    };
+  }
+
+  /**
+   * Returns the position sensor of the motor.
+   * 
+   * @return the position sensor
+   */
+  SensorDevice getSensor() {
+    return sensor;
+  }
+
+  /**
+   * Advances the motor by one time step. Must be called with the lock held.
+   * 
+   * @param dt the time step in seconds
+   */
+  void update(double dt) {
+    double desired;
+    double speed = Math.min(Math.abs(velocity), maxVelocity);
+    if (Double.isInfinite(targetPosition)) {
+      desired = Math.copySign(speed, velocity);
+    } else {
+      // Move towards the target as fast as allowed, slowing down in time to stop on it
+      double error = targetPosition - position;
+      double limit = Math.min(speed, Math.abs(error) / dt);
+      if (acceleration > 0) {
+        limit = Math.min(limit, Math.sqrt(2 * acceleration * Math.abs(error)));
+      }
+      desired = Math.copySign(limit, error);
+    }
+    double change = desired - actualVelocity;
+    if (acceleration > 0) {
+      change = Math.max(-acceleration * dt, Math.min(acceleration * dt, change));
+    }
+    actualVelocity += change;
+    previousPosition = position;
+    position += actualVelocity * dt;
+    double friction = actualVelocity == 0 ? 0 : Math.copySign(FRICTION, actualVelocity);
+    torque = Math.max(-maxTorque, Math.min(maxTorque, INERTIA * change / dt + friction));
+  }
+
+  /**
+   * Undoes the last update because the wheel could not turn, and stalls the motor. Must be called
+   * with the lock held.
+   */
+  void block() {
+    double push = position - previousPosition;
+    position = previousPosition;
+    actualVelocity = 0;
+    torque = push == 0 ? 0 : Math.copySign(maxTorque, push);
+  }
+
+  /**
+   * Returns the distance the motor turned during the last update. Must be called with the lock
+   * held.
+   * 
+   * @return the angle in radians
+   */
+  double getLastRotation() {
+    return position - previousPosition;
+  }
+
+  /**
+   * Samples the position sensor if it is due. Must be called with the lock held.
+   * 
+   * @param time the simulation time in milliseconds
+   */
+  void sampleIfDue(long time) {
+    sensor.sampleIfDue(time);
+  }
+
+  @Override
+  public void setPosition(double position) {
+    lock.lock();
+    try {
+      targetPosition = position;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void setVelocity(double velocity) {
+    lock.lock();
+    try {
+      this.velocity = velocity;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void setAcceleration(double acceleration) {
+    lock.lock();
+    try {
+      this.acceleration = acceleration;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public double getVelocity() {
+    lock.lock();
+    try {
+      return velocity;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public double getMaxVelocity() {
+    return maxVelocity;
+  }
+
+  @Override
+  public double getTargetPosition() {
+    lock.lock();
+    try {
+      return targetPosition;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void enableTorqueFeedback(int samplingPeriod) {
+    lock.lock();
+    try {
+      torqueSamplingPeriod = samplingPeriod;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public double getTorqueFeedback() {
+    lock.lock();
+    try {
+      return torqueSamplingPeriod > 0 ? torque : Double.NaN;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
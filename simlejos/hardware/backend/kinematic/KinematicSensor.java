@@ -0,0 +1,85 @@
+package simlejos.hardware.backend.kinematic;
+
+import java.util.concurrent.locks.Lock;
+import simlejos.hardware.backend.SensorDevice;
+
+/**
+ * A sensor of the kinematic simulation that samples a single value every sampling period.
+ */
+abstract class KinematicSensor implements SensorDevice {
+
+  /** Lock shared by all the devices of the backend. */
+  final Lock lock;
+
+  private int samplingPeriod = 0;
+
+  private long nextSampleTime = 0;
+
+  private double value = Double.NaN;
+
+  KinematicSensor(Lock lock) {
+    this.lock = lock;
+  }
+
+  /**
+   * Measures the current value. Called with the lock held.
+   * 
+   * @return the measured value
+   */
+  abstract double sample();
+
+  /**
+   * Samples the sensor if it is enabled and its sampling period has elapsed. Must be called with
+   * the lock held.
+   * 
+   * @param time the simulation time in milliseconds
+   */
+  void sampleIfDue(long time) {
+    if (samplingPeriod > 0 && time >= nextSampleTime) {
+      value = sample();
+      nextSampleTime = time + samplingPeriod;
+    }
+  }
+
+  @Override
+  public void enable(int samplingPeriod) {
+    lock.lock();
+    try {
+      this.samplingPeriod = samplingPeriod;
+      nextSampleTime = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void disable() {
+    lock.lock();
+    try {
+      samplingPeriod = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int getSamplingPeriod() {
+    lock.lock();
+    try {
+      return samplingPeriod;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public double getValue() {
+    lock.lock();
+    try {
+      return value;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
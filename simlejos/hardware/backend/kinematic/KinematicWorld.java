@@ -0,0 +1,559 @@
+package simlejos.hardware.backend.kinematic;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Description of the world simulated by the {@link KinematicBackend}: a differential-drive robot on
+ * a flat floor surrounded by walls. The floor has a background color, optional grid lines and
+ * colored rectangular tiles. Sensors are mounted on the robot at a position and angle relative to
+ * the center of its wheel axle.
+ * 
+ * <p>Lengths are in meters and the x axis points to the right of the arena, the y axis to the top.
+ * A world can be built with the setters or loaded from a properties file with the following keys,
+ * where angles are in degrees counterclockwise from the x axis and colors are hexadecimal RRGGBB:
+ * <pre>
+ * basicTimeStep=32
+ * arena.size=2.4384                  # adds four walls around a square arena
+ * wall.north=0,2.4384,2.4384,2.4384  # x1,y1,x2,y2
+ * robot.x=0.4572
+ * robot.y=0.4572
+ * robot.theta=90
+ * robot.leftMotor=A
+ * robot.rightMotor=D
+ * robot.motors=B,C                   # motors that are not attached to a wheel
+ * robot.wheelRadius=0.021
+ * robot.trackWidth=0.15
+ * robot.radius=0.1                   # radius of the robot body, for collisions
+ * motor.maxVelocity=13               # in radians per second
+ * motor.maxTorque=0.4                # in Newton meters
+ * floor.color=b4b4b4
+ * floor.gridSize=0.3048              # 0 for no grid lines
+ * floor.lineWidth=0.005
+ * floor.lineColor=000000
+ * floor.tile.start=0,0,0.3048,0.3048,ff0000  # x1,y1,x2,y2,color, drawn in name order
+ * ultrasonic.S1=0.08,0,0             # x,y,theta relative to the robot
+ * color.S2=-0.05,0,0                 # x,y,theta[,width,height] of the camera in pixels
+ * touch.S3=0.1,0,0
+ * </pre>
+ */
+public class KinematicWorld {
+
+  /** The width of a tile of the ECSE 211 arenas, one foot. */
+  public static final double TILE_SIZE = 0.3048;
+
+  /** The type of a sensor mounted on the robot. */
+  public enum SensorType {
+    ULTRASONIC, COLOR, TOUCH
+  }
+
+  private int basicTimeStep = 32;
+
+  private double robotX = 4 * TILE_SIZE;
+
+  private double robotY = 4 * TILE_SIZE;
+
+  private double robotTheta = Math.PI / 2;
+
+  private String leftMotor = "A";
+
+  private String rightMotor = "D";
+
+  private final List<String> otherMotors = new ArrayList<>();
+
+  private double wheelRadius = 0.021;
+
+  private double trackWidth = 0.15;
+
+  private double robotRadius = 0.1;
+
+  private double maxVelocity = 13;
+
+  private double maxTorque = 0.4;
+
+  private int floorColor = 0xb4b4b4;
+
+  private double gridSize = TILE_SIZE;
+
+  private double lineWidth = 0.005;
+
+  private int lineColor = 0x000000;
+
+  /** The walls, as x1, y1, x2, y2 segments. */
+  private final List<double[]> walls = new ArrayList<>();
+
+  /** The floor tiles, as x1, y1, x2, y2 rectangles, with their colors in {@code tileColors}. */
+  private final List<double[]> tiles = new ArrayList<>();
+
+  private final List<Integer> tileColors = new ArrayList<>();
+
+  private final Map<String, Mount> mounts = new LinkedHashMap<>();
+
+  /**
+   * Creates an empty world without walls or sensors.
+   */
+  public KinematicWorld() {
+  }
+
+  /**
+   * Creates the default world: an 8 by 8 tile arena with the robot in the middle, an ultrasonic
+   * sensor on port S1 at the front, a color sensor on port S2 at the back and a touch sensor on
+   * port S3 at the front.
+   * 
+   * @return the default world
+   */
+  public static KinematicWorld defaultArena() {
+    KinematicWorld world = new KinematicWorld();
+    world.addArena(8 * TILE_SIZE);
+    world.mountSensor("S1", SensorType.ULTRASONIC, 0.08, 0, 0);
+    world.mountSensor("S2", SensorType.COLOR, -0.05, 0, 0);
+    world.mountSensor("S3", SensorType.TOUCH, 0.1, 0, 0);
+    return world;
+  }
+
+  /**
+   * Loads a world from a properties file.
+   * 
+   * @param path the path of the properties file, or null for the default world
+   * @return the world
+   */
+  public static KinematicWorld load(String path) {
+    if (path == null) {
+      return defaultArena();
+    }
+    Properties properties = new Properties();
+    try (InputStream input = Files.newInputStream(Paths.get(path))) {
+      properties.load(input);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Cannot read world file " + path, e);
+    }
+    return load(properties);
+  }
+
+  /**
+   * Loads a world from properties. The keys are applied in alphabetical order, so floor tiles are
+   * drawn in the alphabetical order of their names.
+   * 
+   * @param properties the properties describing the world
+   * @return the world
+   */
+  public static KinematicWorld load(Properties properties) {
+    KinematicWorld world = new KinematicWorld();
+    for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+      String value = properties.getProperty(key).trim();
+      try {
+        world.apply(key, value);
+      } catch (RuntimeException e) {
+        throw new IllegalArgumentException("Invalid world property " + key + "=" + value, e);
+      }
+    }
+    return world;
+  }
+
+  /**
+   * Applies one property of a world file.
+   * 
+   * @param key the key
+   * @param value the value
+   */
+  private void apply(String key, String value) {
+    String prefix = key.contains(".") ? key.substring(0, key.lastIndexOf('.')) : key;
+    String name = key.substring(key.lastIndexOf('.') + 1);
+    switch (key) {
+      case "basicTimeStep":
+        setBasicTimeStep(Integer.parseInt(value));
+        return;
+      case "arena.size":
+        addArena(Double.parseDouble(value));
+        return;
+      case "robot.x":
+        robotX = Double.parseDouble(value);
+        return;
+      case "robot.y":
+        robotY = Double.parseDouble(value);
+        return;
+      case "robot.theta":
+        robotTheta = Math.toRadians(Double.parseDouble(value));
+        return;
+      case "robot.leftMotor":
+        leftMotor = value;
+        return;
+      case "robot.rightMotor":
+        rightMotor = value;
+        return;
+      case "robot.motors":
+        for (String motor : value.split(",")) {
+          addMotor(motor.trim());
+        }
+        return;
+      case "robot.wheelRadius":
+        wheelRadius = Double.parseDouble(value);
+        return;
+      case "robot.trackWidth":
+        trackWidth = Double.parseDouble(value);
+        return;
+      case "robot.radius":
+        robotRadius = Double.parseDouble(value);
+        return;
+      case "motor.maxVelocity":
+        maxVelocity = Double.parseDouble(value);
+        return;
+      case "motor.maxTorque":
+        maxTorque = Double.parseDouble(value);
+        return;
+      case "floor.color":
+        floorColor = Integer.parseInt(value, 16);
+        return;
+      case "floor.gridSize":
+        gridSize = Double.parseDouble(value);
+        return;
+      case "floor.lineWidth":
+        lineWidth = Double.parseDouble(value);
+        return;
+      case "floor.lineColor":
+        lineColor = Integer.parseInt(value, 16);
+        return;
+      default:
+        break;
+    }
+    String[] fields = value.split(",");
+    double[] numbers = new double[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      numbers[i] = i == 4 && prefix.equals("floor.tile") ? 0 : Double.parseDouble(fields[i]);
+    }
+    switch (prefix) {
+      case "wall":
+        addWall(numbers[0], numbers[1], numbers[2], numbers[3]);
+        break;
+      case "floor.tile":
+        addTile(numbers[0], numbers[1], numbers[2], numbers[3],
+            Integer.parseInt(fields[4].trim(), 16));
+        break;
+      case "ultrasonic":
+        mountSensor(name, SensorType.ULTRASONIC, numbers[0], numbers[1],
+            Math.toRadians(numbers[2]));
+        break;
+      case "color":
+        mountSensor(name, SensorType.COLOR, numbers[0], numbers[1], Math.toRadians(numbers[2]));
+        if (numbers.length >= 5) {
+          setCameraSize(name, (int) numbers[3], (int) numbers[4]);
+        }
+        break;
+      case "touch":
+        mountSensor(name, SensorType.TOUCH, numbers[0], numbers[1], Math.toRadians(numbers[2]));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown key");
+    }
+  }
+
+  /**
+   * Adds four walls around a square arena whose bottom left corner is at the origin.
+   * 
+   * @param size the side of the arena
+   */
+  public void addArena(double size) {
+    addWall(0, 0, size, 0);
+    addWall(size, 0, size, size);
+    addWall(size, size, 0, size);
+    addWall(0, size, 0, 0);
+  }
+
+  /**
+   * Adds a wall.
+   * 
+   * @param x1 the x coordinate of the first end
+   * @param y1 the y coordinate of the first end
+   * @param x2 the x coordinate of the second end
+   * @param y2 the y coordinate of the second end
+   */
+  public void addWall(double x1, double y1, double x2, double y2) {
+    walls.add(new double[] {x1, y1, x2, y2});
+  }
+
+  /**
+   * Adds a colored rectangle on the floor. Tiles added later are drawn over earlier ones, and all
+   * tiles are drawn over the grid lines.
+   * 
+   * @param x1 the x coordinate of a corner
+   * @param y1 the y coordinate of a corner
+   * @param x2 the x coordinate of the opposite corner
+   * @param y2 the y coordinate of the opposite corner
+   * @param color the color as 0xRRGGBB
+   */
+  public void addTile(double x1, double y1, double x2, double y2, int color) {
+    tiles.add(new double[] {Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2),
+        Math.max(y1, y2)});
+    tileColors.add(color);
+  }
+
+  /**
+   * Mounts a sensor on the robot.
+   * 
+   * @param port the name of the device, such as "S1"
+   * @param type the type of sensor
+   * @param x the forward offset from the center of the wheel axle
+   * @param y the leftward offset from the center of the wheel axle
+   * @param theta the angle of the sensor relative to the robot heading, in radians
+   */
+  public void mountSensor(String port, SensorType type, double x, double y, double theta) {
+    mounts.put(port, new Mount(type, x, y, theta));
+  }
+
+  /**
+   * Sets the image size of a color sensor camera. Cameras are 1 by 1 pixel by default.
+   * 
+   * @param port the name of the color sensor
+   * @param width the width in pixels
+   * @param height the height in pixels
+   */
+  public void setCameraSize(String port, int width, int height) {
+    Mount mount = mounts.get(port);
+    if (mount == null || mount.type != SensorType.COLOR || width < 1 || height < 1) {
+      throw new IllegalArgumentException("Invalid camera size for " + port);
+    }
+    mount.width = width;
+    mount.height = height;
+  }
+
+  /**
+   * Adds a motor that is not attached to a wheel.
+   * 
+   * @param name the name of the motor
+   */
+  public void addMotor(String name) {
+    otherMotors.add(name);
+  }
+
+  /**
+   * Sets the starting pose of the robot.
+   * 
+   * @param x the x coordinate of the center of the wheel axle
+   * @param y the y coordinate of the center of the wheel axle
+   * @param theta the heading in radians, counterclockwise from the x axis
+   */
+  public void setRobotPose(double x, double y, double theta) {
+    robotX = x;
+    robotY = y;
+    robotTheta = theta;
+  }
+
+  /**
+   * Sets the geometry of the robot.
+   * 
+   * @param leftMotor the name of the left wheel motor
+   * @param rightMotor the name of the right wheel motor
+   * @param wheelRadius the radius of the wheels
+   * @param trackWidth the distance between the wheels
+   * @param robotRadius the radius of the robot body, for collisions
+   */
+  public void setRobotGeometry(String leftMotor, String rightMotor, double wheelRadius,
+      double trackWidth, double robotRadius) {
+    this.leftMotor = leftMotor;
+    this.rightMotor = rightMotor;
+    this.wheelRadius = wheelRadius;
+    this.trackWidth = trackWidth;
+    this.robotRadius = robotRadius;
+  }
+
+  /**
+   * Sets the limits of the motors.
+   * 
+   * @param maxVelocity the maximum velocity in radians per second
+   * @param maxTorque the maximum torque in Newton meters
+   */
+  public void setMotorLimits(double maxVelocity, double maxTorque) {
+    this.maxVelocity = maxVelocity;
+    this.maxTorque = maxTorque;
+  }
+
+  /**
+   * Sets the floor colors.
+   * 
+   * @param floorColor the background color as 0xRRGGBB
+   * @param gridSize the distance between grid lines, or 0 for no grid lines
+   * @param lineWidth the width of the grid lines
+   * @param lineColor the color of the grid lines as 0xRRGGBB
+   */
+  public void setFloor(int floorColor, double gridSize, double lineWidth, int lineColor) {
+    this.floorColor = floorColor;
+    this.gridSize = gridSize;
+    this.lineWidth = lineWidth;
+    this.lineColor = lineColor;
+  }
+
+  /**
+   * Returns the basic time step.
+   * 
+   * @return the basic time step in milliseconds
+   */
+  public int getBasicTimeStep() {
+    return basicTimeStep;
+  }
+
+  /**
+   * Sets the basic time step.
+   * 
+   * @param basicTimeStep the basic time step in milliseconds
+   */
+  public void setBasicTimeStep(int basicTimeStep) {
+    if (basicTimeStep < 1) {
+      throw new IllegalArgumentException("Invalid basic time step " + basicTimeStep);
+    }
+    this.basicTimeStep = basicTimeStep;
+  }
+
+  double getRobotX() {
+    return robotX;
+  }
+
+  double getRobotY() {
+    return robotY;
+  }
+
+  double getRobotTheta() {
+    return robotTheta;
+  }
+
+  String getLeftMotor() {
+    return leftMotor;
+  }
+
+  String getRightMotor() {
+    return rightMotor;
+  }
+
+  List<String> getOtherMotors() {
+    return Collections.unmodifiableList(otherMotors);
+  }
+
+  double getWheelRadius() {
+    return wheelRadius;
+  }
+
+  double getTrackWidth() {
+    return trackWidth;
+  }
+
+  double getRobotRadius() {
+    return robotRadius;
+  }
+
+  double getMaxVelocity() {
+    return maxVelocity;
+  }
+
+  double getMaxTorque() {
+    return maxTorque;
+  }
+
+  Mount getMount(String port) {
+    return mounts.get(port);
+  }
+
+  /**
+   * Returns the distance along a ray to the nearest wall.
+   * 
+   * @param x the x coordinate of the origin of the ray
+   * @param y the y coordinate of the origin of the ray
+   * @param angle the direction of the ray, counterclockwise from the x axis
+   * @param maxRange the length of the ray
+   * @return the distance to the nearest wall, or maxRange if no wall is closer
+   */
+  double castRay(double x, double y, double angle, double maxRange) {
+    double dx = Math.cos(angle);
+    double dy = Math.sin(angle);
+    double nearest = maxRange;
+    for (double[] wall : walls) {
+      double ex = wall[2] - wall[0];
+      double ey = wall[3] - wall[1];
+      double denominator = dx * ey - dy * ex;
+      if (Math.abs(denominator) < 1e-12) {
+        continue;
+      }
+      double wx = wall[0] - x;
+      double wy = wall[1] - y;
+      // Distance along the ray and position along the wall of the intersection
+      double t = (wx * ey - wy * ex) / denominator;
+      double u = (wx * dy - wy * dx) / denominator;
+      if (t >= 0 && t < nearest && u >= 0 && u <= 1) {
+        nearest = t;
+      }
+    }
+    return nearest;
+  }
+
+  /**
+   * Returns the distance from a point to the nearest wall.
+   * 
+   * @param x the x coordinate of the point
+   * @param y the y coordinate of the point
+   * @return the distance to the nearest wall, or infinity if there are no walls
+   */
+  double distanceToWalls(double x, double y) {
+    double nearest = Double.POSITIVE_INFINITY;
+    for (double[] wall : walls) {
+      double ex = wall[2] - wall[0];
+      double ey = wall[3] - wall[1];
+      double lengthSquared = ex * ex + ey * ey;
+      double u = lengthSquared == 0 ? 0 : ((x - wall[0]) * ex + (y - wall[1]) * ey) / lengthSquared;
+      u = Math.max(0, Math.min(1, u));
+      nearest = Math.min(nearest, Math.hypot(wall[0] + u * ex - x, wall[1] + u * ey - y));
+    }
+    return nearest;
+  }
+
+  /**
+   * Returns the color of the floor at a point.
+   * 
+   * @param x the x coordinate of the point
+   * @param y the y coordinate of the point
+   * @return the color as 0xRRGGBB
+   */
+  int floorColorAt(double x, double y) {
+    for (int i = tiles.size() - 1; i >= 0; i--) {
+      double[] tile = tiles.get(i);
+      if (x >= tile[0] && x <= tile[2] && y >= tile[1] && y <= tile[3]) {
+        return tileColors.get(i);
+      }
+    }
+    if (gridSize > 0 && (nearGridLine(x) || nearGridLine(y))) {
+      return lineColor;
+    }
+    return floorColor;
+  }
+
+  private boolean nearGridLine(double coordinate) {
+    double offset = coordinate - gridSize * Math.round(coordinate / gridSize);
+    return Math.abs(offset) <= lineWidth / 2;
+  }
+
+  /**
+   * A sensor mounted on the robot.
+   */
+  static class Mount {
+    final SensorType type;
+    final double x;
+    final double y;
+    final double theta;
+    int width = 1;
+    int height = 1;
+
+    Mount(SensorType type, double x, double y, double theta) {
+      this.type = type;
+      this.x = x;
+      this.y = y;
+      this.theta = theta;
+    }
+  }
+
+}
@@ -0,0 +1,108 @@
+package simlejos.hardware.backend.replay;
+
+/**
+ * Layout of the record log written by {@link RecordingBackend} and read by {@link ReplayBackend}.
+ * 
+ * <p>The log starts with a header: the magic number, the format version, the basic time step in
+ * milliseconds and the length in bytes of the valid part of the log. The length is updated after
+ * every step, so a log is readable up to its last complete step even if the controller crashed.
+ * 
+ * <p>The header is followed by records, each starting with a type byte:
+ * <ul>
+ * <li>{@code DEVICE}: short id, byte kind, UTF name, and for cameras int width and int height.</li>
+ * <li>{@code STEP} and {@code KEYFRAME}: long simulation time in milliseconds after the step.
+ *     Every record until the next step happened during that step. A keyframe is followed by the
+ *     last value of every channel, so a replay can start there.</li>
+ * <li>{@code VALUE}: short id, byte channel, double value. Written only when the value read from
+ *     the device differs from the last one written for that channel.</li>
+ * <li>{@code IMAGE}: short id, int length, then the pixels. Written only when the image
+ *     changed.</li>
+ * <li>{@code COMMAND}: short id, byte opcode, double argument.</li>
+ * </ul>
+ * 
+ * <p>The index sidecar, next to the log with the {@code .idx} extension, holds a pair of longs for
+ * every keyframe: its simulation time in milliseconds and its offset in the log.
+ */
+final class LogFormat {
+
+  static final int MAGIC = 0x534c4a52;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 20;
+  static final int LENGTH_OFFSET = 12;
+
+  /** Number of steps between two keyframes. */
+  static final int KEYFRAME_INTERVAL = 256;
+
+  static final String INDEX_EXTENSION = ".idx";
+
+  // Record types
+  static final byte DEVICE = 1;
+  static final byte STEP = 2;
+  static final byte KEYFRAME = 3;
+  static final byte VALUE = 4;
+  static final byte IMAGE = 5;
+  static final byte COMMAND = 6;
+
+  // Device kinds
+  static final byte MOTOR = 1;
+  static final byte POSITION_SENSOR = 2;
+  static final byte DISTANCE_SENSOR = 3;
+  static final byte CAMERA = 4;
+  static final byte LED = 5;
+  static final byte SPEAKER = 6;
+
+  // Value channels
+  static final byte SENSOR_VALUE = 0;
+  static final byte TORQUE_FEEDBACK = 1;
+  static final byte MAX_VELOCITY = 2;
+
+  // Command opcodes
+  static final byte SET_POSITION = 1;
+  static final byte SET_VELOCITY = 2;
+  static final byte SET_ACCELERATION = 3;
+  static final byte ENABLE = 4;
+  static final byte DISABLE = 5;
+  static final byte ENABLE_TORQUE_FEEDBACK = 6;
+  static final byte SET = 7;
+  static final byte PLAY_SOUND = 8;
+  static final byte SPEAK = 9;
+
+  private static final String[] KIND_NAMES = {
+    "?", "motor", "position sensor", "distance sensor", "camera", "led", "speaker"
+  };
+
+  private static final String[] OPCODE_NAMES = {
+    "?", "setPosition", "setVelocity", "setAcceleration", "enable", "disable",
+    "enableTorqueFeedback", "set", "playSound", "speak"
+  };
+
+  private static final String[] CHANNEL_NAMES = {"value", "torqueFeedback", "maxVelocity"};
+
+  private LogFormat() {
+    // LogFormat class cannot be instantiated
+  }
+
+  static String kindName(byte kind) {
+    return kind > 0 && kind < KIND_NAMES.length ? KIND_NAMES[kind] : KIND_NAMES[0];
+  }
+
+  static String opcodeName(byte opcode) {
+    return opcode > 0 && opcode < OPCODE_NAMES.length ? OPCODE_NAMES[opcode] : OPCODE_NAMES[0];
+  }
+
+  static String channelName(byte channel) {
+    return channel >= 0 && channel < CHANNEL_NAMES.length ? CHANNEL_NAMES[channel] : "?";
+  }
+
+  /**
+   * Returns the key identifying a device by kind and name.
+   * 
+   * @param kind the device kind
+   * @param name the device name
+   * @return the key
+   */
+  static String key(byte kind, String name) {
+    return kind + ":" + name;
+  }
+
+}
@@ -0,0 +1,183 @@
+package simlejos.hardware.backend.replay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the records of a memory-mapped log one at a time. After {@code next()}, the fields of the
+ * record are available in the package-private fields of the reader. Not thread safe.
+ * 
+ * @see LogFormat
+ */
+class LogReader {
+
+  private final MappedByteBuffer log;
+
+  private final int basicTimeStep;
+
+  /** Simulation time of every keyframe, in milliseconds. */
+  private final long[] keyframeTimes;
+
+  /** Offset in the log of every keyframe. */
+  private final long[] keyframeOffsets;
+
+  /** Number of keyframes before the end of the log. */
+  private final int numberOfKeyframes;
+
+  // Fields of the last record read
+  short id;
+  byte kind;
+  byte channel;
+  byte opcode;
+  String name;
+  int width;
+  int height;
+  long time;
+  double value;
+  int[] image;
+
+  /**
+   * Opens a log and its index.
+   * 
+   * @param path the path of the log
+   * @throws IOException if the log cannot be read or is not a valid log
+   */
+  LogReader(String path) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(LogFormat.HEADER_SIZE);
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        // Read the whole header
+      }
+      header.flip();
+      if (header.remaining() < LogFormat.HEADER_SIZE || header.getInt() != LogFormat.MAGIC) {
+        throw new IOException(path + " is not a simlejos record log");
+      }
+      if (header.getInt() != LogFormat.VERSION) {
+        throw new IOException(path + " was recorded by another version of simlejos");
+      }
+      basicTimeStep = header.getInt();
+      long length = header.getLong();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException(path + " is larger than 2 GB");
+      }
+      log = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+      log.position(LogFormat.HEADER_SIZE);
+    }
+    Path indexPath = Paths.get(path + LogFormat.INDEX_EXTENSION);
+    ByteBuffer index = ByteBuffer.wrap(Files.exists(indexPath)
+        ? Files.readAllBytes(indexPath) : new byte[0]);
+    int keyframes = 0;
+    keyframeTimes = new long[index.remaining() / 16];
+    keyframeOffsets = new long[keyframeTimes.length];
+    while (keyframes < keyframeTimes.length) {
+      keyframeTimes[keyframes] = index.getLong();
+      keyframeOffsets[keyframes] = index.getLong();
+      // Ignore the keyframes written after the last committed step
+      if (keyframeOffsets[keyframes] >= log.limit()) {
+        break;
+      }
+      keyframes++;
+    }
+    numberOfKeyframes = keyframes;
+  }
+
+  /**
+   * Returns the basic time step of the recorded simulation.
+   * 
+   * @return the basic time step in milliseconds
+   */
+  int getBasicTimeStep() {
+    return basicTimeStep;
+  }
+
+  /**
+   * Returns the offset of the last keyframe at or before the given time, or of the first record if
+   * there is none.
+   * 
+   * @param time the simulation time in milliseconds
+   * @return the offset in the log
+   */
+  long keyframeAt(long time) {
+    int i = Arrays.binarySearch(keyframeTimes, 0, numberOfKeyframes, time);
+    if (i < 0) {
+      i = -i - 2;
+    }
+    return i < 0 ? LogFormat.HEADER_SIZE : keyframeOffsets[i];
+  }
+
+  /**
+   * Returns the offset of the next record.
+   * 
+   * @return the offset in the log
+   */
+  long position() {
+    return log.position();
+  }
+
+  /**
+   * Moves to the record at the given offset.
+   * 
+   * @param offset the offset in the log
+   */
+  void seek(long offset) {
+    log.position((int) offset);
+  }
+
+  /**
+   * Reads the next record.
+   * 
+   * @return the record type, or 0 at the end of the log
+   * @throws IOException if the record is corrupted
+   */
+  byte next() throws IOException {
+    if (!log.hasRemaining()) {
+      return 0;
+    }
+    byte type = log.get();
+    switch (type) {
+      case LogFormat.DEVICE:
+        id = log.getShort();
+        kind = log.get();
+        byte[] bytes = new byte[log.getShort()];
+        log.get(bytes);
+        name = new String(bytes, StandardCharsets.UTF_8);
+        if (kind == LogFormat.CAMERA) {
+          width = log.getInt();
+          height = log.getInt();
+        }
+        break;
+      case LogFormat.STEP:
+      case LogFormat.KEYFRAME:
+        time = log.getLong();
+        break;
+      case LogFormat.VALUE:
+        id = log.getShort();
+        channel = log.get();
+        value = log.getDouble();
+        break;
+      case LogFormat.IMAGE:
+        id = log.getShort();
+        image = new int[log.getInt()];
+        log.asIntBuffer().get(image);
+        log.position(log.position() + 4 * image.length);
+        break;
+      case LogFormat.COMMAND:
+        id = log.getShort();
+        opcode = log.get();
+        value = log.getDouble();
+        break;
+      default:
+        throw new IOException("Corrupted record at offset " + (log.position() - 1));
+    }
+    return type;
+  }
+
+}
@@ -0,0 +1,162 @@
+package simlejos.hardware.backend.replay;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends records to a memory-mapped log. The log is mapped in chunks as it grows, so records are
+ * written with plain memory stores and the operating system writes them back to the file, even if
+ * the controller process dies. Not thread safe, callers must hold a lock.
+ * 
+ * @see LogFormat
+ */
+class LogWriter {
+
+  /** Size of the mapped chunks. */
+  private static final int CHUNK_SIZE = 1 << 22;
+
+  private final FileChannel channel;
+
+  private final FileChannel indexChannel;
+
+  /** Mapping of the header, to update the length of the log. */
+  private final MappedByteBuffer header;
+
+  /** Mapping of the chunk being written. */
+  private MappedByteBuffer chunk;
+
+  /** Offset in the log of the start of the current chunk. */
+  private long chunkStart;
+
+  private final ByteBuffer indexEntry = ByteBuffer.allocate(16);
+
+  /**
+   * Creates a log, replacing any existing log at the same path.
+   * 
+   * @param path the path of the log
+   * @param basicTimeStep the basic time step of the simulation in milliseconds
+   * @throws IOException if the log or its index cannot be created
+   */
+  LogWriter(String path, int basicTimeStep) throws IOException {
+    channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    Path indexPath = Paths.get(path + LogFormat.INDEX_EXTENSION);
+    indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    header = channel.map(FileChannel.MapMode.READ_WRITE, 0, LogFormat.HEADER_SIZE);
+    header.putInt(LogFormat.MAGIC).putInt(LogFormat.VERSION).putInt(basicTimeStep)
+        .putLong(LogFormat.HEADER_SIZE);
+    chunkStart = LogFormat.HEADER_SIZE;
+    chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, CHUNK_SIZE);
+  }
+
+  /**
+   * Returns the offset in the log of the next record.
+   * 
+   * @return the offset in bytes
+   */
+  long position() {
+    return chunkStart + chunk.position();
+  }
+
+  /**
+   * Makes sure the current chunk has room for the given number of bytes, mapping a new chunk
+   * starting at the current position otherwise.
+   */
+  private void reserve(int size) throws IOException {
+    if (chunk.remaining() < size) {
+      chunkStart = position();
+      chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, Math.max(CHUNK_SIZE, size));
+    }
+  }
+
+  void device(short id, byte kind, String name, int width, int height) throws IOException {
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    reserve(14 + bytes.length);
+    chunk.put(LogFormat.DEVICE).putShort(id).put(kind).putShort((short) bytes.length).put(bytes);
+    if (kind == LogFormat.CAMERA) {
+      chunk.putInt(width).putInt(height);
+    }
+  }
+
+  void step(long time, boolean keyframe) throws IOException {
+    if (keyframe) {
+      indexEntry.clear();
+      indexEntry.putLong(time).putLong(position()).flip();
+      while (indexEntry.hasRemaining()) {
+        indexChannel.write(indexEntry);
+      }
+    }
+    reserve(9);
+    chunk.put(keyframe ? LogFormat.KEYFRAME : LogFormat.STEP).putLong(time);
+  }
+
+  void value(short id, byte channel, double value) throws IOException {
+    reserve(12);
+    chunk.put(LogFormat.VALUE).putShort(id).put(channel).putDouble(value);
+  }
+
+  void image(short id, int[] image) throws IOException {
+    reserve(7 + 4 * image.length);
+    chunk.put(LogFormat.IMAGE).putShort(id).putInt(image.length);
+    chunk.asIntBuffer().put(image);
+    chunk.position(chunk.position() + 4 * image.length);
+  }
+
+  void command(short id, byte opcode, double argument) throws IOException {
+    reserve(12);
+    chunk.put(LogFormat.COMMAND).putShort(id).put(opcode).putDouble(argument);
+  }
+
+  /**
+   * Publishes the records written so far by updating the length in the header.
+   */
+  void commit() {
+    header.putLong(LogFormat.LENGTH_OFFSET, position());
+  }
+
+  /**
+   * Commits the records, forces the log to the storage device, truncates the unused end of the
+   * last chunk so the file size matches the length in the header and closes the log.
+   * 
+   * @throws IOException if the log cannot be written
+   */
+  void close() throws IOException {
+    commit();
+    chunk.force();
+    header.force();
+    long length = position();
+    // Some platforms refuse to truncate a file that is still mapped
+    unmap(chunk);
+    unmap(header);
+    chunk = null;
+    channel.truncate(length);
+    channel.close();
+    indexChannel.close();
+  }
+
+  /**
+   * Releases the mapping of the given buffer right away instead of when it is garbage collected.
+   * The buffer must not be used afterwards. Does nothing if the runtime does not allow it.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      invokeCleaner.invoke(theUnsafe.get(null), buffer);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      System.err.println("LogWriter exception: " + e.getMessage());
+    }
+  }
+
+}
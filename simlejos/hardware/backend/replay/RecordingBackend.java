@@ -0,0 +1,483 @@
+package simlejos.hardware.backend.replay;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import simlejos.hardware.backend.Backend;
+import simlejos.hardware.backend.CameraDevice;
+import simlejos.hardware.backend.LedDevice;
+import simlejos.hardware.backend.MotorDevice;
+import simlejos.hardware.backend.SensorDevice;
+import simlejos.hardware.backend.SpeakerDevice;
+
+/**
+ * Backend that records a run of another backend into a log that {@link ReplayBackend} can play
+ * back. Every device read and every actuator command goes through to the recorded backend and is
+ * appended to the log, so a failed run can be replayed with exactly the same sensor values, as
+ * fast as the controller can run and without the simulator.
+ * 
+ * <p>Values are only written when they differ from the last value written for the same device,
+ * which keeps the log small since most values change at most once per step. The log is
+ * memory-mapped and is readable up to the last complete step even if the controller crashes.
+ */
+public class RecordingBackend implements Backend {
+
+  /**
+   * The recorded backend.
+   */
+  private final Backend backend;
+
+  /**
+   * The log, or null once it is closed or if writing it failed.
+   */
+  private LogWriter log;
+
+  /**
+   * The devices already recorded, by kind and name.
+   */
+  private final Map<String, Object> devices = new HashMap<>();
+
+  /**
+   * The devices that read values, to write their last values in keyframes.
+   */
+  private final List<RecordedDevice> readers = new ArrayList<>();
+
+  /**
+   * Simulation time in milliseconds.
+   */
+  private long time = 0;
+
+  /**
+   * Number of steps recorded.
+   */
+  private long steps = 0;
+
+  /**
+   * Lock for the log.
+   */
+  private final Lock lock = new ReentrantLock();
+
+  /**
+   * Records the given backend into a new log, replacing any existing log at the same path.
+   * 
+   * @param backend the backend to record
+   * @param path the path of the log
+   * @throws IOException if the log cannot be created
+   */
+  public RecordingBackend(Backend backend, String path) throws IOException {
+    this.backend = backend;
+    this.log = new LogWriter(path, (int) backend.getBasicTimeStep());
+  }
+
+  /**
+   * Returns the recorded backend.
+   * 
+   * @return the recorded backend
+   */
+  public Backend getBackend() {
+    return backend;
+  }
+
+  /**
+   * Closes the log. Devices keep working after the log is closed, but are no longer recorded.
+   */
+  public void close() {
+    lock.lock();
+    try {
+      if (log != null) {
+        log.close();
+      }
+    } catch (IOException e) {
+      System.err.println("RecordingBackend close exception: " + e.getMessage());
+    } finally {
+      log = null;
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int step(int duration) {
+    int result = backend.step(duration);
+    lock.lock();
+    try {
+      if (log != null) {
+        time += duration;
+        steps++;
+        boolean keyframe = steps % LogFormat.KEYFRAME_INTERVAL == 0;
+        log.step(time, keyframe);
+        if (keyframe) {
+          for (RecordedDevice device : readers) {
+            device.writeLastValues();
+          }
+        }
+        log.commit();
+      }
+    } catch (IOException e) {
+      fail(e);
+    } finally {
+      lock.unlock();
+    }
+    return result;
+  }
+
+  @Override
+  public double getBasicTimeStep() {
+    return backend.getBasicTimeStep();
+  }
+
+  @Override
+  public double getTime() {
+    return backend.getTime();
+  }
+
+  @Override
+  public MotorDevice getMotor(String name) {
+    MotorDevice motor = backend.getMotor(name);
+    return motor == null ? null : (MotorDevice) register(LogFormat.MOTOR, name, motor);
+  }
+
+  @Override
+  public SensorDevice getPositionSensor(String name) {
+    SensorDevice sensor = backend.getPositionSensor(name);
+    return sensor == null ? null : (SensorDevice) register(LogFormat.POSITION_SENSOR, name, sensor);
+  }
+
+  @Override
+  public SensorDevice getDistanceSensor(String name) {
+    SensorDevice sensor = backend.getDistanceSensor(name);
+    return sensor == null ? null : (SensorDevice) register(LogFormat.DISTANCE_SENSOR, name, sensor);
+  }
+
+  @Override
+  public CameraDevice getCamera(String name) {
+    CameraDevice camera = backend.getCamera(name);
+    return camera == null ? null : (CameraDevice) register(LogFormat.CAMERA, name, camera);
+  }
+
+  @Override
+  public LedDevice getLed(String name) {
+    LedDevice led = backend.getLed(name);
+    return led == null ? null : (LedDevice) register(LogFormat.LED, name, led);
+  }
+
+  @Override
+  public SpeakerDevice getSpeaker(String name) {
+    SpeakerDevice speaker = backend.getSpeaker(name);
+    return speaker == null ? null : (SpeakerDevice) register(LogFormat.SPEAKER, name, speaker);
+  }
+
+  /**
+   * Returns the recording wrapper of a device, creating it and writing its description to the log
+   * the first time.
+   */
+  private Object register(byte kind, String name, Object device) {
+    lock.lock();
+    try {
+      String key = LogFormat.key(kind, name);
+      Object wrapper = devices.get(key);
+      if (wrapper != null) {
+        return wrapper;
+      }
+      short id = (short) devices.size();
+      RecordedDevice recorded;
+      switch (kind) {
+        case LogFormat.MOTOR:
+          recorded = new RecordedMotor(id, (MotorDevice) device);
+          break;
+        case LogFormat.CAMERA:
+          recorded = new RecordedCamera(id, (CameraDevice) device);
+          break;
+        case LogFormat.LED:
+          recorded = new RecordedLed(id, (LedDevice) device);
+          break;
+        case LogFormat.SPEAKER:
+          recorded = new RecordedSpeaker(id, (SpeakerDevice) device);
+          break;
+        default:
+          recorded = new RecordedSensor(id, (SensorDevice) device);
+          break;
+      }
+      devices.put(key, recorded);
+      readers.add(recorded);
+      if (log != null) {
+        CameraDevice camera = kind == LogFormat.CAMERA ? (CameraDevice) device : null;
+        log.device(id, kind, name, camera != null ? camera.getWidth() : 0,
+            camera != null ? camera.getHeight() : 0);
+      }
+      return recorded;
+    } catch (IOException e) {
+      fail(e);
+      return device;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reports a failure to write the log and stops recording. Must be called with the lock held.
+   */
+  private void fail(IOException e) {
+    System.err.println("RecordingBackend exception: " + e.getMessage());
+    log = null;
+  }
+
+  /**
+   * Base class of the recording wrappers, which remembers the last values written to the log.
+   */
+  private class RecordedDevice {
+    final short id;
+    private final double[] lastValues = {Double.NaN, Double.NaN, Double.NaN};
+    private final boolean[] written = new boolean[lastValues.length];
+    private int[] lastImage;
+
+    RecordedDevice(short id) {
+      this.id = id;
+    }
+
+    /**
+     * Writes a value read from the device if it changed.
+     */
+    double read(byte channel, double value) {
+      lock.lock();
+      try {
+        if (log != null && (!written[channel] || Double.doubleToLongBits(value)
+            != Double.doubleToLongBits(lastValues[channel]))) {
+          log.value(id, channel, value);
+          lastValues[channel] = value;
+          written[channel] = true;
+        }
+      } catch (IOException e) {
+        fail(e);
+      } finally {
+        lock.unlock();
+      }
+      return value;
+    }
+
+    /**
+     * Writes an image read from the device if it changed.
+     */
+    int[] read(int[] image) {
+      lock.lock();
+      try {
+        if (log != null && image != null && !Arrays.equals(image, lastImage)) {
+          log.image(id, image);
+          lastImage = image.clone();
+        }
+      } catch (IOException e) {
+        fail(e);
+      } finally {
+        lock.unlock();
+      }
+      return image;
+    }
+
+    /**
+     * Writes a command sent to the device.
+     */
+    void command(byte opcode, double argument) {
+      lock.lock();
+      try {
+        if (log != null) {
+          log.command(id, opcode, argument);
+        }
+      } catch (IOException e) {
+        fail(e);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Writes the last values of the device for a keyframe. Must be called with the lock held.
+     */
+    void writeLastValues() throws IOException {
+      for (byte channel = 0; channel < lastValues.length; channel++) {
+        if (written[channel]) {
+          log.value(id, channel, lastValues[channel]);
+        }
+      }
+      if (lastImage != null) {
+        log.image(id, lastImage);
+      }
+    }
+  }
+
+  private class RecordedMotor extends RecordedDevice implements MotorDevice {
+    private final MotorDevice motor;
+
+    RecordedMotor(short id, MotorDevice motor) {
+      super(id);
+      this.motor = motor;
+    }
+
+    @Override
+    public void setPosition(double position) {
+      command(LogFormat.SET_POSITION, position);
+      motor.setPosition(position);
+    }
+
+    @Override
+    public void setVelocity(double velocity) {
+      command(LogFormat.SET_VELOCITY, velocity);
+      motor.setVelocity(velocity);
+    }
+
+    @Override
+    public void setAcceleration(double acceleration) {
+      command(LogFormat.SET_ACCELERATION, acceleration);
+      motor.setAcceleration(acceleration);
+    }
+
+    @Override
+    public double getVelocity() {
+      return motor.getVelocity();
+    }
+
+    @Override
+    public double getMaxVelocity() {
+      return read(LogFormat.MAX_VELOCITY, motor.getMaxVelocity());
+    }
+
+    @Override
+    public double getTargetPosition() {
+      return motor.getTargetPosition();
+    }
+
+    @Override
+    public void enableTorqueFeedback(int samplingPeriod) {
+      command(LogFormat.ENABLE_TORQUE_FEEDBACK, samplingPeriod);
+      motor.enableTorqueFeedback(samplingPeriod);
+    }
+
+    @Override
+    public double getTorqueFeedback() {
+      return read(LogFormat.TORQUE_FEEDBACK, motor.getTorqueFeedback());
+    }
+  }
+
+  private class RecordedSensor extends RecordedDevice implements SensorDevice {
+    private final SensorDevice sensor;
+
+    RecordedSensor(short id, SensorDevice sensor) {
+      super(id);
+      this.sensor = sensor;
+    }
+
+    @Override
+    public void enable(int samplingPeriod) {
+      command(LogFormat.ENABLE, samplingPeriod);
+      sensor.enable(samplingPeriod);
+    }
+
+    @Override
+    public void disable() {
+      command(LogFormat.DISABLE, 0);
+      sensor.disable();
+    }
+
+    @Override
+    public int getSamplingPeriod() {
+      return sensor.getSamplingPeriod();
+    }
+
+    @Override
+    public double getValue() {
+      return read(LogFormat.SENSOR_VALUE, sensor.getValue());
+    }
+  }
+
+  private class RecordedCamera extends RecordedDevice implements CameraDevice {
+    private final CameraDevice camera;
+
+    RecordedCamera(short id, CameraDevice camera) {
+      super(id);
+      this.camera = camera;
+    }
+
+    @Override
+    public void enable(int samplingPeriod) {
+      command(LogFormat.ENABLE, samplingPeriod);
+      camera.enable(samplingPeriod);
+    }
+
+    @Override
+    public void disable() {
+      command(LogFormat.DISABLE, 0);
+      camera.disable();
+    }
+
+    @Override
+    public int getSamplingPeriod() {
+      return camera.getSamplingPeriod();
+    }
+
+    @Override
+    public int[] getImage() {
+      return read(camera.getImage());
+    }
+
+    @Override
+    public int getWidth() {
+      return camera.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+      return camera.getHeight();
+    }
+  }
+
+  private class RecordedLed extends RecordedDevice implements LedDevice {
+    private final LedDevice led;
+
+    RecordedLed(short id, LedDevice led) {
+      super(id);
+      this.led = led;
+    }
+
+    @Override
+    public void set(int value) {
+      command(LogFormat.SET, value);
+      led.set(value);
+    }
+
+    @Override
+    public int get() {
+      return led.get();
+    }
+  }
+
+  private class RecordedSpeaker extends RecordedDevice implements SpeakerDevice {
+    private final SpeakerDevice speaker;
+
+    RecordedSpeaker(short id, SpeakerDevice speaker) {
+      super(id);
+      this.speaker = speaker;
+    }
+
+    @Override
+    public void playSound(String sound, double volume, double pitch, double balance,
+        boolean loop) {
+      command(LogFormat.PLAY_SOUND, volume);
+      speaker.playSound(sound, volume, pitch, balance, loop);
+    }
+
+    @Override
+    public void setLanguage(String language) {
+      speaker.setLanguage(language);
+    }
+
+    @Override
+    public void speak(String text, double volume) {
+      command(LogFormat.SPEAK, volume);
+      speaker.speak(text, volume);
+    }
+  }
+
+}
@@ -0,0 +1,418 @@
+package simlejos.hardware.backend.replay;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import simlejos.hardware.backend.Backend;
+import simlejos.hardware.backend.CameraDevice;
+import simlejos.hardware.backend.LedDevice;
+import simlejos.hardware.backend.MotorDevice;
+import simlejos.hardware.backend.SensorDevice;
+import simlejos.hardware.backend.SpeakerDevice;
+
+/**
+ * Backend that plays back a log written by {@link RecordingBackend}. Devices return the values
+ * that were read from them at the same simulation time during the recording, and commands are
+ * ignored, so the controller sees exactly the same inputs on every run. Steps take no time besides
+ * reading the log, so the controller runs as fast as the CPU allows.
+ * 
+ * <p>The log can also be printed as text with
+ * {@code java simlejos.hardware.backend.replay.ReplayBackend run.log}.
+ */
+public class ReplayBackend implements Backend {
+
+  /**
+   * The log being played back.
+   */
+  private final LogReader log;
+
+  /**
+   * The devices of the recording, by kind and name.
+   */
+  private final Map<String, ReplayedDevice> devices = new HashMap<>();
+
+  /**
+   * The devices of the recording, by id.
+   */
+  private final List<ReplayedDevice> devicesById = new ArrayList<>();
+
+  /**
+   * Simulation time in milliseconds.
+   */
+  private long time = 0;
+
+  /**
+   * Lock for the playback state.
+   */
+  private final Lock lock = new ReentrantLock();
+
+  /**
+   * Opens a log for playback, positioned before the first step.
+   * 
+   * @param path the path of the log
+   * @throws IOException if the log cannot be read
+   */
+  public ReplayBackend(String path) throws IOException {
+    log = new LogReader(path);
+    // Create all the devices of the recording
+    byte type;
+    while ((type = log.next()) != 0) {
+      if (type == LogFormat.DEVICE) {
+        ReplayedDevice device = new ReplayedDevice(log.width, log.height);
+        devices.put(LogFormat.key(log.kind, log.name), device);
+        while (devicesById.size() <= log.id) {
+          devicesById.add(null);
+        }
+        devicesById.set(log.id, device);
+      }
+    }
+    seek(0);
+  }
+
+  /**
+   * Moves the playback to the given simulation time, resetting the devices to the values they had
+   * at that time. Starts from the closest keyframe, so seeking is fast anywhere in the log.
+   * 
+   * @param time the simulation time in seconds
+   */
+  public void seek(double time) {
+    long target = Math.round(time * 1000);
+    lock.lock();
+    try {
+      for (ReplayedDevice device : devicesById) {
+        if (device != null) {
+          device.reset();
+        }
+      }
+      log.seek(log.keyframeAt(target));
+      this.time = 0;
+      advance(target);
+      this.time = target;
+    } catch (IOException e) {
+      System.err.println("ReplayBackend seek exception: " + e.getMessage());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Applies the records up to the given time. Must be called with the lock held.
+   * 
+   * @return false if the log ended before the given time
+   */
+  private boolean advance(long target) throws IOException {
+    long lastStep = time;
+    while (true) {
+      long position = log.position();
+      byte type = log.next();
+      switch (type) {
+        case 0:
+          return lastStep >= target;
+        case LogFormat.STEP:
+        case LogFormat.KEYFRAME:
+          if (log.time > target) {
+            log.seek(position);
+            return true;
+          }
+          lastStep = log.time;
+          break;
+        case LogFormat.VALUE:
+          devicesById.get(log.id).values[log.channel] = log.value;
+          break;
+        case LogFormat.IMAGE:
+          devicesById.get(log.id).image = log.image;
+          break;
+        default:
+          // Commands and devices do not change the values read by the controller
+          break;
+      }
+    }
+  }
+
+  @Override
+  public int step(int duration) {
+    lock.lock();
+    try {
+      boolean more = advance(time + duration);
+      time += duration;
+      return more ? 0 : -1;
+    } catch (IOException e) {
+      System.err.println("ReplayBackend step exception: " + e.getMessage());
+      return -1;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public double getBasicTimeStep() {
+    return log.getBasicTimeStep();
+  }
+
+  @Override
+  public double getTime() {
+    lock.lock();
+    try {
+      return time / 1000.0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private ReplayedDevice getDevice(byte kind, String name) {
+    return devices.get(LogFormat.key(kind, name));
+  }
+
+  @Override
+  public MotorDevice getMotor(String name) {
+    ReplayedDevice device = getDevice(LogFormat.MOTOR, name);
+    return device == null ? null : device.new Motor();
+  }
+
+  @Override
+  public SensorDevice getPositionSensor(String name) {
+    ReplayedDevice device = getDevice(LogFormat.POSITION_SENSOR, name);
+    return device == null ? null : device.new Sensor();
+  }
+
+  @Override
+  public SensorDevice getDistanceSensor(String name) {
+    ReplayedDevice device = getDevice(LogFormat.DISTANCE_SENSOR, name);
+    return device == null ? null : device.new Sensor();
+  }
+
+  @Override
+  public CameraDevice getCamera(String name) {
+    ReplayedDevice device = getDevice(LogFormat.CAMERA, name);
+    return device == null ? null : device.new Camera();
+  }
+
+  @Override
+  public LedDevice getLed(String name) {
+    ReplayedDevice device = getDevice(LogFormat.LED, name);
+    return device == null ? null : device.new Led();
+  }
+
+  @Override
+  public SpeakerDevice getSpeaker(String name) {
+    ReplayedDevice device = getDevice(LogFormat.SPEAKER, name);
+    return device == null ? null : device.new Speaker();
+  }
+
+  /**
+   * Prints a log as text.
+   * 
+   * @param args the path of the log
+   * @throws IOException if the log cannot be read
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("Usage: java simlejos.hardware.backend.replay.ReplayBackend <log>");
+      System.exit(1);
+    }
+    LogReader log = new LogReader(args[0]);
+    System.out.println("basicTimeStep " + log.getBasicTimeStep());
+    List<String> names = new ArrayList<>();
+    byte type;
+    while ((type = log.next()) != 0) {
+      switch (type) {
+        case LogFormat.DEVICE:
+          while (names.size() <= log.id) {
+            names.add("?");
+          }
+          names.set(log.id, log.name);
+          System.out.println("device " + log.name + " " + LogFormat.kindName(log.kind));
+          break;
+        case LogFormat.STEP:
+          System.out.println("step " + log.time);
+          break;
+        case LogFormat.KEYFRAME:
+          System.out.println("keyframe " + log.time);
+          break;
+        case LogFormat.VALUE:
+          System.out.println("  " + names.get(log.id) + " " + LogFormat.channelName(log.channel)
+              + " " + log.value);
+          break;
+        case LogFormat.IMAGE:
+          System.out.println("  " + names.get(log.id) + " image " + Arrays.toString(log.image));
+          break;
+        default:
+          System.out.println("  " + names.get(log.id) + " " + LogFormat.opcodeName(log.opcode)
+              + "(" + log.value + ")");
+          break;
+      }
+    }
+  }
+
+  /**
+   * The state of a recorded device. Its values are changed by the playback, while the settings
+   * made by the controller are kept so they read back as they would on the recorded backend.
+   */
+  private class ReplayedDevice {
+    private final int width;
+    private final int height;
+    private final double[] values = new double[3];
+    private int[] image;
+    private volatile double position;
+    private volatile double velocity;
+    private volatile int samplingPeriod;
+    private volatile int ledValue;
+
+    ReplayedDevice(int width, int height) {
+      this.width = width;
+      this.height = height;
+      reset();
+    }
+
+    void reset() {
+      Arrays.fill(values, Double.NaN);
+      image = new int[width * height];
+    }
+
+    double get(byte channel) {
+      lock.lock();
+      try {
+        return values[channel];
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private class Motor implements MotorDevice {
+      @Override
+      public void setPosition(double position) {
+        ReplayedDevice.this.position = position;
+      }
+
+      @Override
+      public void setVelocity(double velocity) {
+        ReplayedDevice.this.velocity = velocity;
+      }
+
+      @Override
+      public void setAcceleration(double acceleration) {
+        // Playback does not depend on the commands
+      }
+
+      @Override
+      public double getVelocity() {
+        return velocity;
+      }
+
+      @Override
+      public double getMaxVelocity() {
+        return get(LogFormat.MAX_VELOCITY);
+      }
+
+      @Override
+      public double getTargetPosition() {
+        return position;
+      }
+
+      @Override
+      public void enableTorqueFeedback(int samplingPeriod) {
+        // Torque feedback is always played back
+      }
+
+      @Override
+      public double getTorqueFeedback() {
+        return get(LogFormat.TORQUE_FEEDBACK);
+      }
+    }
+
+    private class Sensor implements SensorDevice {
+      @Override
+      public void enable(int samplingPeriod) {
+        ReplayedDevice.this.samplingPeriod = samplingPeriod;
+      }
+
+      @Override
+      public void disable() {
+        samplingPeriod = 0;
+      }
+
+      @Override
+      public int getSamplingPeriod() {
+        return samplingPeriod;
+      }
+
+      @Override
+      public double getValue() {
+        return get(LogFormat.SENSOR_VALUE);
+      }
+    }
+
+    private class Camera implements CameraDevice {
+      @Override
+      public void enable(int samplingPeriod) {
+        ReplayedDevice.this.samplingPeriod = samplingPeriod;
+      }
+
+      @Override
+      public void disable() {
+        samplingPeriod = 0;
+      }
+
+      @Override
+      public int getSamplingPeriod() {
+        return samplingPeriod;
+      }
+
+      @Override
+      public int[] getImage() {
+        lock.lock();
+        try {
+          return image.clone();
+        } finally {
+          lock.unlock();
+        }
+      }
+
+      @Override
+      public int getWidth() {
+        return width;
+      }
+
+      @Override
+      public int getHeight() {
+        return height;
+      }
+    }
+
+    private class Led implements LedDevice {
+      @Override
+      public void set(int value) {
+        ledValue = value;
+      }
+
+      @Override
+      public int get() {
+        return ledValue;
+      }
+    }
+
+    private class Speaker implements SpeakerDevice {
+      @Override
+      public void playSound(String sound, double volume, double pitch, double balance,
+          boolean loop) {
+        // Nothing to play back
+      }
+
+      @Override
+      public void setLanguage(String language) {
+        // Nothing to play back
+      }
+
+      @Override
+      public void speak(String text, double volume) {
+        // Nothing to play back
+      }
+    }
+  }
+
+}
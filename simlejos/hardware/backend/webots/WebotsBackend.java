@@ -0,0 +1,595 @@
+package simlejos.hardware.backend.webots;
+
+import com.cyberbotics.webots.controller.Camera;
+import com.cyberbotics.webots.controller.DistanceSensor;
+import com.cyberbotics.webots.controller.LED;
+import com.cyberbotics.webots.controller.Motor;
+import com.cyberbotics.webots.controller.PositionSensor;
+import com.cyberbotics.webots.controller.Robot;
+import com.cyberbotics.webots.controller.Speaker;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import simlejos.hardware.backend.Backend;
+import simlejos.hardware.backend.CameraDevice;
+import simlejos.hardware.backend.LedDevice;
+import simlejos.hardware.backend.MotorDevice;
+import simlejos.hardware.backend.SensorDevice;
+import simlejos.hardware.backend.SpeakerDevice;
+
+/**
+ * Backend that runs the robot in Webots, through the Webots controller API.
+ * 
+ * <p>The simlejos devices only lock their own state, so threads using different devices call the
+ * Webots controller library concurrently. If the library misbehaves under concurrent calls, every
+ * call into it can be serialized through a single lock with
+ * {@code -Dsimlejos.webots.serialize=true} or {@code setSerializingNativeCalls(true)}. That lock
+ * counts how often it was contended and how long callers waited for it, see
+ * {@code getNativeWaitTime()}, so its cost can be measured.
+ * 
+ * @see <a href="https://cyberbotics.com/doc/reference/robot?tab-language=java">Webots API robot</a>
+ */
+public class WebotsBackend implements Backend {
+
+  /** System property that serializes the native calls when set to true. */
+  public static final String SERIALIZE_PROPERTY = "simlejos.webots.serialize";
+
+  /** The backend created for the last robot wrapped with {@code of()}. */
+  private static WebotsBackend shared;
+
+  /**
+   * Lock serializing the calls into the Webots controller library.
+   */
+  private static final ReentrantLock nativeLock = new ReentrantLock();
+
+  private static volatile boolean serializingNativeCalls = Boolean.getBoolean(SERIALIZE_PROPERTY);
+
+  private static final LongAdder nativeCalls = new LongAdder();
+
+  private static final LongAdder contendedNativeCalls = new LongAdder();
+
+  private static final LongAdder nativeWaitNanos = new LongAdder();
+
+  /**
+   * The Webots robot to interface with.
+   */
+  private final Robot robot;
+
+  /**
+   * Creates a backend for the robot controlled by this process.
+   */
+  public WebotsBackend() {
+    this(new Robot());
+  }
+
+  /**
+   * Creates a backend for the given robot.
+   * 
+   * @param robot the Webots robot
+   */
+  public WebotsBackend(Robot robot) {
+    this.robot = robot;
+  }
+
+  /**
+   * Returns a backend for the given robot, reusing the last one created by this method if it wraps
+   * the same robot.
+   * 
+   * @param robot the Webots robot
+   * @return a backend for the robot
+   */
+  public static synchronized WebotsBackend of(Robot robot) {
+    if (shared == null || shared.robot != robot) {
+      shared = new WebotsBackend(robot);
+    }
+    return shared;
+  }
+
+  /**
+   * Returns whether the calls into the Webots controller library are serialized.
+   * 
+   * @return true if the calls are serialized
+   */
+  public static boolean isSerializingNativeCalls() {
+    return serializingNativeCalls;
+  }
+
+  /**
+   * Sets whether the calls into the Webots controller library are serialized. Change it before
+   * other threads use the devices.
+   * 
+   * @param serializing true to serialize the calls
+   */
+  public static void setSerializingNativeCalls(boolean serializing) {
+    serializingNativeCalls = serializing;
+  }
+
+  /**
+   * Returns the number of serialized calls into the Webots controller library since the start or
+   * the last {@code resetNativeCallStatistics()}.
+   * 
+   * @return the number of calls
+   */
+  public static long getNativeCallCount() {
+    return nativeCalls.sum();
+  }
+
+  /**
+   * Returns the number of serialized calls into the Webots controller library that had to wait for
+   * another thread to release the lock.
+   * 
+   * @return the number of contended calls
+   */
+  public static long getContendedNativeCallCount() {
+    return contendedNativeCalls.sum();
+  }
+
+  /**
+   * Returns the total time that threads spent waiting for the lock of the Webots controller
+   * library.
+   * 
+   * @return the waiting time in milliseconds
+   */
+  public static double getNativeWaitTime() {
+    return nativeWaitNanos.sum() / 1e6;
+  }
+
+  /**
+   * Resets the statistics of the calls into the Webots controller library.
+   */
+  public static void resetNativeCallStatistics() {
+    nativeCalls.reset();
+    contendedNativeCalls.reset();
+    nativeWaitNanos.reset();
+  }
+
+  /**
+   * Acquires the lock for a call into the Webots controller library if the calls are serialized,
+   * counting the call and the time spent waiting if another thread holds the lock.
+   * 
+   * @return true if the lock was acquired and must be released with {@code exitNative()}
+   */
+  private static boolean enterNative() {
+    if (!serializingNativeCalls) {
+      return false;
+    }
+    nativeCalls.increment();
+    if (!nativeLock.tryLock()) {
+      long start = System.nanoTime();
+      nativeLock.lock();
+      contendedNativeCalls.increment();
+      nativeWaitNanos.add(System.nanoTime() - start);
+    }
+    return true;
+  }
+
+  private static void exitNative(boolean locked) {
+    if (locked) {
+      nativeLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the Webots robot.
+   * 
+   * @return the Webots robot
+   */
+  public Robot getRobot() {
+    return robot;
+  }
+
+  @Override
+  public int step(int duration) {
+    boolean locked = enterNative();
+    try {
+      return robot.step(duration);
+    } finally {
+      exitNative(locked);
+    }
+  }
+
+  @Override
+  public double getBasicTimeStep() {
+    boolean locked = enterNative();
+    try {
+      return robot.getBasicTimeStep();
+    } finally {
+      exitNative(locked);
+    }
+  }
+
+  @Override
+  public double getTime() {
+    boolean locked = enterNative();
+    try {
+      return robot.getTime();
+    } finally {
+      exitNative(locked);
+    }
+  }
+
+  @Override
+  public MotorDevice getMotor(String name) {
+    boolean locked = enterNative();
+    try {
+      Motor motor = robot.getMotor(name);
+      return motor == null ? null : new WebotsMotor(motor);
+    } finally {
+      exitNative(locked);
+    }
+  }
+
+  @Override
+  public SensorDevice getPositionSensor(String name) {
+    boolean locked = enterNative();
+    try {
+      PositionSensor sensor = robot.getPositionSensor(name);
+      return sensor == null ? null : new WebotsPositionSensor(sensor);
+    } finally {
+      exitNative(locked);
+    }
+  }
+
+  @Override
+  public SensorDevice getDistanceSensor(String name) {
+    boolean locked = enterNative();
+    try {
+      DistanceSensor sensor = robot.getDistanceSensor(name);
+      return sensor == null ? null : new WebotsDistanceSensor(sensor);
+    } finally {
+      exitNative(locked);
+    }
+  }
+
+  @Override
+  public CameraDevice getCamera(String name) {
+    boolean locked = enterNative();
+    try {
+      Camera camera = robot.getCamera(name);
+      return camera == null ? null : new WebotsCamera(camera);
+    } finally {
+      exitNative(locked);
+    }
+  }
+
+  @Override
+  public LedDevice getLed(String name) {
+    boolean locked = enterNative();
+    try {
+      LED led = robot.getLED(name);
+      return led == null ? null : new WebotsLed(led);
+    } finally {
+      exitNative(locked);
+    }
+  }
+
+  @Override
+  public SpeakerDevice getSpeaker(String name) {
+    boolean locked = enterNative();
+    try {
+      Speaker speaker = robot.getSpeaker(name);
+      return speaker == null ? null : new WebotsSpeaker(speaker);
+    } finally {
+      exitNative(locked);
+    }
+  }
+
+  private static class WebotsMotor implements MotorDevice {
+    private final Motor motor;
+
+    WebotsMotor(Motor motor) {
+      this.motor = motor;
+    }
+
+    @Override
+    public void setPosition(double position) {
+      boolean locked = enterNative();
+      try {
+        motor.setPosition(position);
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public void setVelocity(double velocity) {
+      boolean locked = enterNative();
+      try {
+        motor.setVelocity(velocity);
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public void setAcceleration(double acceleration) {
+      boolean locked = enterNative();
+      try {
+        motor.setAcceleration(acceleration);
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public double getVelocity() {
+      boolean locked = enterNative();
+      try {
+        return motor.getVelocity();
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public double getMaxVelocity() {
+      boolean locked = enterNative();
+      try {
+        return motor.getMaxVelocity();
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public double getTargetPosition() {
+      boolean locked = enterNative();
+      try {
+        return motor.getTargetPosition();
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public void enableTorqueFeedback(int samplingPeriod) {
+      boolean locked = enterNative();
+      try {
+        motor.enableTorqueFeedback(samplingPeriod);
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public double getTorqueFeedback() {
+      boolean locked = enterNative();
+      try {
+        return motor.getTorqueFeedback();
+      } finally {
+        exitNative(locked);
+      }
+    }
+  }
+
+  private static class WebotsPositionSensor implements SensorDevice {
+    private final PositionSensor sensor;
+
+    WebotsPositionSensor(PositionSensor sensor) {
+      this.sensor = sensor;
+    }
+
+    @Override
+    public void enable(int samplingPeriod) {
+      boolean locked = enterNative();
+      try {
+        sensor.enable(samplingPeriod);
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public void disable() {
+      boolean locked = enterNative();
+      try {
+        sensor.disable();
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public int getSamplingPeriod() {
+      boolean locked = enterNative();
+      try {
+        return sensor.getSamplingPeriod();
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public double getValue() {
+      boolean locked = enterNative();
+      try {
+        return sensor.getValue();
+      } finally {
+        exitNative(locked);
+      }
+    }
+  }
+
+  private static class WebotsDistanceSensor implements SensorDevice {
+    private final DistanceSensor sensor;
+
+    WebotsDistanceSensor(DistanceSensor sensor) {
+      this.sensor = sensor;
+    }
+
+    @Override
+    public void enable(int samplingPeriod) {
+      boolean locked = enterNative();
+      try {
+        sensor.enable(samplingPeriod);
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public void disable() {
+      boolean locked = enterNative();
+      try {
+        sensor.disable();
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public int getSamplingPeriod() {
+      boolean locked = enterNative();
+      try {
+        return sensor.getSamplingPeriod();
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public double getValue() {
+      boolean locked = enterNative();
+      try {
+        return sensor.getValue();
+      } finally {
+        exitNative(locked);
+      }
+    }
+  }
+
+  private static class WebotsCamera implements CameraDevice {
+    private final Camera camera;
+
+    WebotsCamera(Camera camera) {
+      this.camera = camera;
+    }
+
+    @Override
+    public void enable(int samplingPeriod) {
+      boolean locked = enterNative();
+      try {
+        camera.enable(samplingPeriod);
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public void disable() {
+      boolean locked = enterNative();
+      try {
+        camera.disable();
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public int getSamplingPeriod() {
+      boolean locked = enterNative();
+      try {
+        return camera.getSamplingPeriod();
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public int[] getImage() {
+      boolean locked = enterNative();
+      try {
+        return camera.getImage();
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public int getWidth() {
+      boolean locked = enterNative();
+      try {
+        return camera.getWidth();
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public int getHeight() {
+      boolean locked = enterNative();
+      try {
+        return camera.getHeight();
+      } finally {
+        exitNative(locked);
+      }
+    }
+  }
+
+  private static class WebotsLed implements LedDevice {
+    private final LED led;
+
+    WebotsLed(LED led) {
+      this.led = led;
+    }
+
+    @Override
+    public void set(int value) {
+      boolean locked = enterNative();
+      try {
+        led.set(value);
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public int get() {
+      boolean locked = enterNative();
+      try {
+        return led.get();
+      } finally {
+        exitNative(locked);
+      }
+    }
+  }
+
+  private static class WebotsSpeaker implements SpeakerDevice {
+    private final Speaker speaker;
+
+    WebotsSpeaker(Speaker speaker) {
+      this.speaker = speaker;
+    }
+
+    @Override
+    public void playSound(String sound, double volume, double pitch, double balance,
+        boolean loop) {
+      boolean locked = enterNative();
+      try {
+        Speaker.playSound(speaker, speaker, sound, volume, pitch, balance, loop);
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public void setLanguage(String language) {
+      boolean locked = enterNative();
+      try {
+        speaker.setLanguage(language);
+      } finally {
+        exitNative(locked);
+      }
+    }
+
+    @Override
+    public void speak(String text, double volume) {
+      boolean locked = enterNative();
+      try {
+        speaker.speak(text, volume);
+      } finally {
+        exitNative(locked);
+      }
+    }
+  }
+
+}
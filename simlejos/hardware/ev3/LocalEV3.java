@@ -2,16 +2,20 @@ package simlejos.hardware.ev3;
 
 import com.cyberbotics.webots.controller.Robot;
 import simlejos.hardware.Audio;
+import simlejos.hardware.backend.Backend;
+import simlejos.hardware.backend.Backends;
+import simlejos.hardware.backend.webots.WebotsBackend;
 import simlejos.hardware.port.Port;
 
 /**
  * This class represents the local instance of an EV3 device. It can be used to
  * obtain access to the various system resources (Sensors, Motors etc.).
+ * The robot is simulated by the backend selected at startup, see {@link Backends}.
  */
 public class LocalEV3 implements EV3 {
   public static final LocalEV3 ev3 = new LocalEV3();
-  //The Webots Robot
-  private static Robot robot;
+  //The simulation backend
+  private static Backend backend;
   //The speaker on the robot
   public static Audio audio;
     
@@ -19,11 +23,11 @@ public class LocalEV3 implements EV3 {
     
   private LocalEV3() {
     //Initialize Robot
-    robot = new Robot();
+    backend = Backends.create();
     //run one physics step to make sure all devices are initialized before reading/writing to them
-    robot.step((int) robot.getBasicTimeStep());
+    backend.step((int) backend.getBasicTimeStep());
     //Initialize audio
-    audio = new Audio(robot);
+    audio = new Audio(backend);
   }
     
   public static EV3 get() {
@@ -32,7 +36,7 @@ public class LocalEV3 implements EV3 {
     
   @Override
   public Port getPort(String portName) {
-    return new Port(robot, portName);
+    return new Port(backend, portName);
   }
 
   @Override
@@ -53,8 +57,22 @@ public class LocalEV3 implements EV3 {
   @Override
   public void setDefault() {}
 
+  /**
+   * Returns the Webots robot.
+   * 
+   * @return the Webots robot, or null if the robot is not simulated by Webots
+   */
   public static Robot getRobot() {
-    return robot;
+    return backend instanceof WebotsBackend ? ((WebotsBackend) backend).getRobot() : null;
+  }
+  
+  /**
+   * Returns the simulation backend.
+   * 
+   * @return the simulation backend
+   */
+  public static Backend getBackend() {
+    return backend;
   }
 
   /**
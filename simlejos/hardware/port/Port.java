@@ -1,6 +1,8 @@
 package simlejos.hardware.port;
 
 import com.cyberbotics.webots.controller.Robot;
+import simlejos.hardware.backend.Backend;
+import simlejos.hardware.backend.webots.WebotsBackend;
 
 /**
  * Interface that provides a binding between a physical port and the different
@@ -10,9 +12,9 @@ import com.cyberbotics.webots.controller.Robot;
 public class Port {
   
   /**
-   * Reference to the parent robot.
+   * Reference to the simulation backend of the parent robot.
    */
-  private Robot robot;
+  private Backend backend;
   
   /**
    * Name of the referenced object.
@@ -31,10 +33,19 @@ public class Port {
   /**
    * Returns a reference to the parent robot.
    * 
-   * @return a reference to the parent robot
+   * @return a reference to the parent robot, or null if the robot is not simulated by Webots
    */
   public Robot getRobot() {
-    return this.robot;
+    return backend instanceof WebotsBackend ? ((WebotsBackend) backend).getRobot() : null;
+  }
+  
+  /**
+   * Returns the simulation backend of the parent robot.
+   * 
+   * @return the simulation backend of the parent robot
+   */
+  public Backend getBackend() {
+    return this.backend;
   }
 
   /**
@@ -44,7 +55,17 @@ public class Port {
    * @param name Name of the target device
    */
   public Port(Robot robot, String name) {
-    this.robot = robot;
+    this(WebotsBackend.of(robot), name);
+  }
+  
+  /**
+   * Creates a new port.
+   * 
+   * @param backend Simulation backend of the containing robot
+   * @param name Name of the target device
+   */
+  public Port(Backend backend, String name) {
+    this.backend = backend;
     this.name = name;
   }
     
@@ -1,11 +1,27 @@
 package simlejos.hardware.sensor;
 
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import simlejos.ExecutionController;
 
 
 /**
  * Wrapper class to simulate a base sensor.
  * 
+ * <p>The sample of each mode is memoized for the current physics step, as counted by the
+ * {@link ExecutionController}: the first fetch of a step reads the device, and the following
+ * fetches of the same step, from any thread, only copy the memoized sample, without locking.
+ * 
+ * <p>The device of the sensor samples at every basic time step by default. Sensors read rarely can
+ * sample less often with {@code setSamplingPeriod()}, and sensors not needed for a while can be
+ * disabled, which saves the simulator the cost of sampling them, for example rendering the camera
+ * of a color sensor. A disabled sensor returns the last sample of each mode, or NaN if the mode was
+ * never fetched.
+ * 
  * @see <a href="http://www.lejos.org/ev3/docs/lejos/hardware/port/package-summary.html">Lejos API</a>
  */
 public class BaseSensor implements SensorModes {
@@ -13,13 +29,29 @@ public class BaseSensor implements SensorModes {
   protected SensorMode[] modes;
   ArrayList<String> modeList;
 
+  /**
+   * Lock for the sampling settings.
+   */
+  private final Lock samplingLock = new ReentrantLock();
+
+  /** The basic time step of the simulation in milliseconds. */
+  private int basicTimeStep = 1;
+
+  /** The sampling period of the device in milliseconds, when enabled. */
+  private volatile int samplingPeriod = 1;
+
+  private volatile boolean enabled = false;
+
   /**
    * Define the set of modes to be made available for this sensor.
    * 
    * @param m An array containing a list of modes
    */
   protected void setModes(SensorMode[] m) {
-    modes = m;
+    modes = new SensorMode[m.length];
+    for (int i = 0; i < m.length; i++) {
+      modes[i] = new MemoizedMode(m[i]);
+    }
     // force the list to be rebuilt
     modeList = null;
     currentMode = 0;
@@ -108,4 +140,218 @@ public class BaseSensor implements SensorModes {
     return modes.length;
   }
 
+  /**
+   * Enables the device of the sensor at every basic time step. Called by the constructors of the
+   * subclasses once the device is available.
+   * 
+   * @param basicTimeStep the basic time step of the simulation in milliseconds
+   */
+  protected void initSampling(int basicTimeStep) {
+    samplingLock.lock();
+    try {
+      this.basicTimeStep = Math.max(basicTimeStep, 1);
+      samplingPeriod = this.basicTimeStep;
+    } finally {
+      samplingLock.unlock();
+    }
+    enable();
+  }
+
+  /**
+   * Enables the device with the given sampling period. Subclasses override it for their device.
+   * 
+   * @param samplingPeriod the sampling period in milliseconds
+   */
+  protected void enableDevice(int samplingPeriod) {
+  }
+
+  /**
+   * Disables the device. Subclasses override it for their device.
+   */
+  protected void disableDevice() {
+  }
+
+  /**
+   * Enables the sensor with its sampling period. The first fetch of each mode after the next
+   * physics step returns a new sample.
+   */
+  public void enable() {
+    samplingLock.lock();
+    try {
+      enableDevice(samplingPeriod);
+      enabled = true;
+    } finally {
+      samplingLock.unlock();
+    }
+  }
+
+  /**
+   * Disables the sensor, so the simulator stops sampling it. Its modes then return their last
+   * sample until the sensor is enabled again.
+   */
+  public void disable() {
+    samplingLock.lock();
+    try {
+      enabled = false;
+      disableDevice();
+    } finally {
+      samplingLock.unlock();
+    }
+  }
+
+  /**
+   * Returns true if the sensor is enabled.
+   * 
+   * @return true if the sensor is enabled
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Sets how often the device samples, rounded up to a multiple of the basic time step. Between two
+   * samples, the modes return the last sample.
+   * 
+   * @param samplingPeriod the sampling period in milliseconds
+   * @throws IllegalArgumentException if the sampling period is not positive
+   */
+  public void setSamplingPeriod(int samplingPeriod) {
+    if (samplingPeriod < 1) {
+      throw new IllegalArgumentException("Invalid sampling period " + samplingPeriod);
+    }
+    samplingLock.lock();
+    try {
+      this.samplingPeriod = (samplingPeriod + basicTimeStep - 1) / basicTimeStep * basicTimeStep;
+      if (enabled) {
+        enableDevice(this.samplingPeriod);
+      }
+    } finally {
+      samplingLock.unlock();
+    }
+  }
+
+  /**
+   * Returns how often the device samples when enabled.
+   * 
+   * @return the sampling period in milliseconds
+   */
+  public int getSamplingPeriod() {
+    return samplingPeriod;
+  }
+
+  /**
+   * Discards the samples memoized for the current step, so the next fetch of each mode reads the
+   * device again. Subclasses call it when a setting changes the samples of their modes.
+   */
+  protected void invalidateSamples() {
+    if (modes != null) {
+      for (SensorMode mode : modes) {
+        ((MemoizedMode) mode).stale = true;
+      }
+    }
+  }
+
+  /**
+   * Mode that memoizes the samples of another mode for the current physics step, and returns the
+   * last sample while the sensor is disabled. The last two samples are kept in preallocated slots
+   * published with a seqlock, so fetching produces no garbage.
+   */
+  private class MemoizedMode implements SensorMode {
+    private final SensorMode mode;
+    private final int sampleSize;
+
+    /** The last two samples, written alternately by the first thread fetching at each step. */
+    private final float[][] samples;
+
+    /** The physics step of each sample. */
+    private final long[] sampleSteps = new long[2];
+
+    /**
+     * Seqlock version of the samples, odd while a sample is being written, and 0 until the first
+     * sample. The latest sample is {@code samples[(version >> 1) & 1]}.
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    /** Set when the memoized samples are discarded, until the next sample is written. */
+    volatile boolean stale = false;
+
+    MemoizedMode(SensorMode mode) {
+      this.mode = mode;
+      this.sampleSize = mode.sampleSize();
+      this.samples = new float[2][sampleSize];
+    }
+
+    @Override
+    public int sampleSize() {
+      return sampleSize;
+    }
+
+    @Override
+    public void fetchSample(float[] sample, int offset) {
+      // Read the step first, so the memoized sample is never older than its step
+      long step = ExecutionController.getStepCount();
+      if (!enabled) {
+        if (stale || !copySample(sample, offset, -1)) {
+          Arrays.fill(sample, offset, offset + sampleSize, Float.NaN);
+        }
+        return;
+      }
+      if (!stale && copySample(sample, offset, step)) {
+        return;
+      }
+      long current = version.get();
+      if ((current & 1) != 0 || !version.compareAndSet(current, current + 1)) {
+        // Another thread is writing a sample, read the device rather than wait for it
+        mode.fetchSample(sample, offset);
+        return;
+      }
+      // Make the version odd before any of the slot changes
+      VarHandle.storeStoreFence();
+      try {
+        stale = false;
+        int slot = (int) ((current >> 1) + 1) & 1;
+        mode.fetchSample(samples[slot], 0);
+        sampleSteps[slot] = step;
+        System.arraycopy(samples[slot], 0, sample, offset, sampleSize);
+      } finally {
+        version.set(current + 2);
+      }
+    }
+
+    /**
+     * Copies the latest sample if it was fetched at the given step.
+     * 
+     * @param sample the array receiving the sample
+     * @param offset the index of the first element of the sample
+     * @param step the physics step, or -1 for any step
+     * @return true if the sample was copied, false if there is none for the step
+     */
+    private boolean copySample(float[] sample, int offset, long step) {
+      while (true) {
+        long current = version.get();
+        if (current < 2) {
+          return false;
+        }
+        int slot = (int) (current >> 1) & 1;
+        long sampleStep = sampleSteps[slot];
+        boolean found = step < 0 || sampleStep == step;
+        if (found) {
+          System.arraycopy(samples[slot], 0, sample, offset, sampleSize);
+        }
+        // Order the reads of the sample before the check of the version
+        VarHandle.acquireFence();
+        // The slot read is only overwritten once a writer starts the sample after the next one
+        if (version.get() < (current & ~1L) + 3) {
+          return found;
+        }
+        Thread.onSpinWait();
+      }
+    }
+
+    @Override
+    public String getName() {
+      return mode.getName();
+    }
+  }
+
 }
@@ -0,0 +1,121 @@
+package simlejos.hardware.sensor;
+
+import java.util.Arrays;
+import simlejos.robotics.Color;
+
+/**
+ * Immutable lookup table from RGB readings to {@link Color} identifiers. The readings are quantized
+ * to 5 bits per channel, and each of the 32768 cells holds the identifier of the reference color
+ * nearest to the center of the cell, so classifying a reading costs one array index. Changing a
+ * reference builds a new table, which can be published without locking.
+ */
+class ColorIdTable {
+
+  /** The number of bits kept per channel. */
+  private static final int BITS = 5;
+
+  /** The number of low bits dropped from each 8-bit channel. */
+  private static final int SHIFT = 8 - BITS;
+
+  /** The number of colors that can have a reference, the identifiers from RED to BROWN. */
+  private static final int COLOR_COUNT = Color.BROWN + 1;
+
+  /**
+   * The table with the default references, the colors of the EV3 color sensor as seen with the
+   * floodlight on.
+   */
+  static final ColorIdTable DEFAULT = new ColorIdTable(defaultReferences());
+
+  /**
+   * The reference red, green and blue of each color identifier, NaN for the colors not classified.
+   */
+  private final float[][] references;
+
+  private final byte[] table = new byte[1 << (3 * BITS)];
+
+  private ColorIdTable(float[][] references) {
+    this.references = references;
+    int half = 1 << (SHIFT - 1);
+    for (int index = 0; index < table.length; index++) {
+      float red = ((index >> (2 * BITS)) << SHIFT) + half;
+      float green = (((index >> BITS) & ((1 << BITS) - 1)) << SHIFT) + half;
+      float blue = ((index & ((1 << BITS) - 1)) << SHIFT) + half;
+      table[index] = (byte) nearest(red, green, blue);
+    }
+  }
+
+  private static float[][] defaultReferences() {
+    float[][] references = new float[COLOR_COUNT][];
+    for (int color = 0; color < COLOR_COUNT; color++) {
+      references[color] = new float[] {Float.NaN, Float.NaN, Float.NaN};
+    }
+    references[Color.BLACK] = new float[] {0, 0, 0};
+    references[Color.BLUE] = new float[] {0, 0, 255};
+    references[Color.GREEN] = new float[] {0, 255, 0};
+    references[Color.YELLOW] = new float[] {255, 255, 0};
+    references[Color.RED] = new float[] {255, 0, 0};
+    references[Color.WHITE] = new float[] {255, 255, 255};
+    references[Color.BROWN] = new float[] {150, 75, 0};
+    return references;
+  }
+
+  /**
+   * Returns the identifier of the reference color nearest to the given color.
+   */
+  private int nearest(float red, float green, float blue) {
+    int nearest = Color.NONE;
+    float nearestDistance = Float.POSITIVE_INFINITY;
+    for (int color = 0; color < COLOR_COUNT; color++) {
+      float[] reference = references[color];
+      if (Float.isNaN(reference[0])) {
+        continue;
+      }
+      float dr = red - reference[0];
+      float dg = green - reference[1];
+      float db = blue - reference[2];
+      float distance = dr * dr + dg * dg + db * db;
+      if (distance < nearestDistance) {
+        nearest = color;
+        nearestDistance = distance;
+      }
+    }
+    return nearest;
+  }
+
+  /**
+   * Returns the identifier of the color of a reading.
+   * 
+   * @param red the red component, between 0 and 255
+   * @param green the green component, between 0 and 255
+   * @param blue the blue component, between 0 and 255
+   * @return the color identifier, or {@link Color#NONE} if no color has a reference
+   */
+  int lookup(float red, float green, float blue) {
+    return table[(quantize(red) << (2 * BITS)) | (quantize(green) << BITS) | quantize(blue)];
+  }
+
+  private static int quantize(float value) {
+    return Math.min(Math.max((int) value, 0), 255) >> SHIFT;
+  }
+
+  /**
+   * Returns a table with the reference of a color changed.
+   * 
+   * @param color the color identifier, from {@link Color#RED} to {@link Color#BROWN}
+   * @param red the reference red, or NaN to stop classifying the color
+   * @param green the reference green
+   * @param blue the reference blue
+   * @return the new table
+   * @throws IllegalArgumentException if the color identifier is invalid
+   */
+  ColorIdTable withReference(int color, float red, float green, float blue) {
+    if (color < 0 || color >= COLOR_COUNT) {
+      throw new IllegalArgumentException("Invalid color ID " + color);
+    }
+    float[][] changed = Arrays.copyOf(references, COLOR_COUNT);
+    changed[color] = Float.isNaN(red) ? new float[] {Float.NaN, Float.NaN, Float.NaN}
+        : new float[] {red, green, blue};
+    return new ColorIdTable(changed);
+  }
+
+}
@@ -1,15 +1,26 @@
 package simlejos.hardware.sensor;
 
-import com.cyberbotics.webots.controller.Camera;
-import com.cyberbotics.webots.controller.LED;
 import com.cyberbotics.webots.controller.Robot;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import simlejos.ExecutionController;
+import simlejos.hardware.backend.Backend;
+import simlejos.hardware.backend.CameraDevice;
+import simlejos.hardware.backend.LedDevice;
+import simlejos.hardware.backend.webots.WebotsBackend;
 import simlejos.hardware.port.Port;
+import simlejos.robotics.Color;
 
 /**
  * Wrapper class around Webots' Camera class to simulate Lejos' EV3ColorSensor class.
- * We simulate the color sensor by using a single pixel camera (a 1x1 image).
+ * We simulate the color sensor by using a small camera, a single pixel (a 1x1 image) by default.
+ * 
+ * <p>The camera image is read at most once per physics step, and the samples of all the modes are
+ * the averages of a region of interest of that image, the whole image by default. Larger cameras
+ * thus give a less noisy color without costing more than one image copy per step.
+ * 
+ * <p>The color ID mode classifies the average color with a lookup table built from calibratable
+ * reference colors, so it costs one array index per sample.
  * 
  * @see <a href="http://www.lejos.org/ev3/docs/lejos/hardware/sensor/EV3ColorSensor.html">Lejos API</a>
  * @see <a href="https://cyberbotics.com/doc/reference/camera?tab-language=java">Webots API</a>
@@ -21,21 +32,51 @@ import simlejos.hardware.port.Port;
 public class EV3ColorSensor extends BaseSensor implements SensorModes {
 
   /**
-   * The Webots sensor to interface with.
+   * The camera to interface with.
    */
-  private final Camera sensor;
+  private final CameraDevice sensor;
   
   /**
-   * The light on the Webots sensor to interface with.
+   * The light on the sensor to interface with.
    */
-  private final LED light;
+  private final LedDevice light;
   
   /**
    * Lock for the sensor.
    */
-  private static Lock lock = new ReentrantLock();
+  private final Lock lock = new ReentrantLock();
   
-  private static final int MODE_COUNT = 3;
+  private static final int MODE_COUNT = 4;
+
+  /**
+   * The size of the camera images, in pixels.
+   */
+  private final int imageWidth;
+  private final int imageHeight;
+
+  // The region of interest of the images, in pixels
+  private int roiX = 0;
+  private int roiY = 0;
+  private int roiWidth;
+  private int roiHeight;
+
+  /**
+   * The last image read, and the physics step at which it was read.
+   */
+  private int[] image;
+  private long imageStep = -1;
+
+  /**
+   * The average red, green and blue of the region of interest, valid when {@code averageStep} is
+   * the current physics step.
+   */
+  private final float[] average = new float[3];
+  private long averageStep = -1;
+
+  /**
+   * The lookup table of the color ID mode, replaced when a reference color changes.
+   */
+  private volatile ColorIdTable colorIdTable = ColorIdTable.DEFAULT;
 
   /**
    * Constructs an EV3ColorSensor.
@@ -44,20 +85,27 @@ public class EV3ColorSensor extends BaseSensor implements SensorModes {
    * @param name the sensor name
    */
   public EV3ColorSensor(Robot robot, String name) {
+    this(WebotsBackend.of(robot), name);
+  }
+  
+  /**
+   * Constructs an EV3ColorSensor.
+   * 
+   * @param backend the simulation backend of the robot
+   * @param name the sensor name
+   */
+  public EV3ColorSensor(Backend backend, String name) {
     //Get target sensor
-    sensor = robot.getCamera(name);
-    light = robot.getLED(name + "-light");
-    setModes(new SensorMode[] {new RedMode(), new RGBMode(), new AmbientMode()});
-    //Enable sensor
-    lock.lock();
-    try {
-      //Set the timestep to that of the robot
-      sensor.enable((int) robot.getBasicTimeStep());
-    } catch (Exception e) {
-      System.err.println("EV3ColorSensor enable exception: " + e.getMessage());
-    } finally {
-      lock.unlock();
-    }
+    sensor = backend.getCamera(name);
+    light = backend.getLed(name + "-light");
+    imageWidth = sensor.getWidth();
+    imageHeight = sensor.getHeight();
+    roiWidth = imageWidth;
+    roiHeight = imageHeight;
+    setModes(new SensorMode[] {new RedMode(), new RGBMode(), new AmbientMode(),
+        new ColorIDMode()});
+    //Sample at every time step of the robot by default
+    initSampling((int) backend.getBasicTimeStep());
     //Turn the light on
     setFloodlight(true);
   }
@@ -68,13 +116,37 @@ public class EV3ColorSensor extends BaseSensor implements SensorModes {
    * @param port the port on which the sensor is attached.
    */
   public EV3ColorSensor(Port port) {
-    this(port.getRobot(), port.getName());
+    this(port.getBackend(), port.getName());
   }
   
   public int getModeCount() {
     return MODE_COUNT;
   }
 
+  @Override
+  protected void enableDevice(int samplingPeriod) {
+    lock.lock();
+    try {
+      sensor.enable(samplingPeriod);
+    } catch (Exception e) {
+      System.err.println("EV3ColorSensor enable exception: " + e.getMessage());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  protected void disableDevice() {
+    lock.lock();
+    try {
+      sensor.disable();
+    } catch (Exception e) {
+      System.err.println("EV3ColorSensor disable exception: " + e.getMessage());
+    } finally {
+      lock.unlock();
+    }
+  }
+
   
   public SensorMode getRedMode() {
     setFloodlight(true);
@@ -91,6 +163,75 @@ public class EV3ColorSensor extends BaseSensor implements SensorModes {
     return getMode(2);
   }
 
+  public SensorMode getColorIDMode() {
+    setFloodlight(true);
+    return getMode(3);
+  }
+
+  /**
+   * Returns the identifier of the color seen by the sensor, see {@code getColorIDMode()}.
+   * 
+   * @return the color identifier, for example {@link Color#RED}, or {@link Color#NONE}
+   */
+  public int getColorID() {
+    lock.lock();
+    try {
+      return classifyAverage();
+    } catch (Exception e) {
+      System.err.println("EV3ColorSensor getColorID exception: " + e.getMessage());
+      return Color.NONE;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets the reading of a color with the floodlight on, as returned by the RGB mode. The color ID
+   * mode then returns the color whose reference is the nearest to the reading. By default, black,
+   * blue, green, yellow, red, white and brown are classified, like on the EV3.
+   * 
+   * @param color the color identifier, from {@link Color#RED} to {@link Color#BROWN}
+   * @param red the reference red, or NaN to stop classifying the color
+   * @param green the reference green
+   * @param blue the reference blue
+   * @throws IllegalArgumentException if the color identifier is invalid
+   */
+  public void setColorIDReference(int color, float red, float green, float blue) {
+    lock.lock();
+    try {
+      colorIdTable = colorIdTable.withReference(color, red, green, blue);
+      invalidateSamples();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets the reference of a color to the color the sensor currently sees, for example with the
+   * sensor over a tile of that color.
+   * 
+   * @param color the color identifier, from {@link Color#RED} to {@link Color#BROWN}
+   * @throws IllegalArgumentException if the color identifier is invalid
+   */
+  public void calibrateColorID(int color) {
+    lock.lock();
+    try {
+      updateAverage();
+      colorIdTable = colorIdTable.withReference(color, average[0], average[1], average[2]);
+      invalidateSamples();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Restores the default reference colors of the color ID mode.
+   */
+  public void resetColorIDReferences() {
+    colorIdTable = ColorIdTable.DEFAULT;
+    invalidateSamples();
+  }
+
     
   
   /**
@@ -122,7 +263,106 @@ public class EV3ColorSensor extends BaseSensor implements SensorModes {
     }
     return state == 1;
   }
+
+  /**
+   * Returns the width of the camera images.
+   * 
+   * @return the width in pixels
+   */
+  public int getImageWidth() {
+    return imageWidth;
+  }
+
+  /**
+   * Returns the height of the camera images.
+   * 
+   * @return the height in pixels
+   */
+  public int getImageHeight() {
+    return imageHeight;
+  }
+
+  /**
+   * Sets the region of the camera images averaged by the modes, for example the center of the
+   * image to ignore its edges.
+   * 
+   * @param x the first column of the region
+   * @param y the first row of the region
+   * @param width the width of the region in pixels
+   * @param height the height of the region in pixels
+   * @throws IllegalArgumentException if the region is empty or not inside the images
+   */
+  public void setRegionOfInterest(int x, int y, int width, int height) {
+    if (x < 0 || y < 0 || width < 1 || height < 1 || x + width > imageWidth
+        || y + height > imageHeight) {
+      throw new IllegalArgumentException("Invalid region of interest " + x + "," + y + " "
+          + width + "x" + height + " of a " + imageWidth + "x" + imageHeight + " image");
+    }
+    lock.lock();
+    try {
+      roiX = x;
+      roiY = y;
+      roiWidth = width;
+      roiHeight = height;
+      averageStep = -1;
+      invalidateSamples();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Updates the average red, green and blue of the region of interest, reading the image if it was
+   * not read yet during the current physics step. Must be called with the lock held.
+   */
+  private void updateAverage() {
+    long step = ExecutionController.getStepCount();
+    // Keep the last average while disabled, the camera has no image
+    if (averageStep == step || !isEnabled()) {
+      return;
+    }
+    if (imageStep != step) {
+      int[] next = sensor.getImage();
+      if (next == null) {
+        // No image yet, right after enabling the camera
+        return;
+      }
+      image = next;
+      imageStep = step;
+    }
+    // Sum each channel in its own accumulator, a loop the JIT compiler can vectorize
+    int red = 0;
+    int green = 0;
+    int blue = 0;
+    for (int row = roiY; row < roiY + roiHeight; row++) {
+      int start = row * imageWidth + roiX;
+      for (int i = start; i < start + roiWidth; i++) {
+        int pixel = image[i];
+        red += (pixel >> 16) & 0xff;
+        green += (pixel >> 8) & 0xff;
+        blue += pixel & 0xff;
+      }
+    }
+    float count = roiWidth * roiHeight;
+    average[0] = red / count;
+    average[1] = green / count;
+    average[2] = blue / count;
+    averageStep = step;
+  }
   
+  /**
+   * Returns the identifier of the color of the average, or {@link Color#NONE} if the sensor has no
+   * average yet, for example while disabled before its first image. Must be called with the lock
+   * held.
+   */
+  private int classifyAverage() {
+    updateAverage();
+    if (averageStep < 0) {
+      return Color.NONE;
+    }
+    return colorIdTable.lookup(average[0], average[1], average[2]);
+  }
+
   private class RGBMode implements SensorMode {
     
     private static final String NAME = "RGB";
@@ -137,9 +377,10 @@ public class EV3ColorSensor extends BaseSensor implements SensorModes {
     public void fetchSample(float[] sample, int offset) {
       lock.lock();
       try {
-        sample[offset] = Camera.imageGetRed(sensor.getImage(), sensor.getWidth(), 0, 0);
-        sample[offset + 1] = Camera.imageGetGreen(sensor.getImage(), sensor.getWidth(), 0, 0);
-        sample[offset + 2] = Camera.imageGetBlue(sensor.getImage(), sensor.getWidth(), 0, 0);
+        updateAverage();
+        sample[offset] = average[0];
+        sample[offset + 1] = average[1];
+        sample[offset + 2] = average[2];
       } catch (Exception e) {
         System.err.println("EV3ColorSensor fetchSample exception: " + e.getMessage());
       } finally {
@@ -168,10 +409,37 @@ public class EV3ColorSensor extends BaseSensor implements SensorModes {
     public void fetchSample(float[] sample, int offset) {
       lock.lock();
       try {
-        float r = Camera.imageGetRed(sensor.getImage(), sensor.getWidth(), 0, 0);
-        float g = Camera.imageGetGreen(sensor.getImage(), sensor.getWidth(), 0, 0);
-        float b = Camera.imageGetBlue(sensor.getImage(), sensor.getWidth(), 0, 0);
-        sample[offset] = (r + g + b) / 3;
+        updateAverage();
+        sample[offset] = (average[0] + average[1] + average[2]) / 3;
+      } catch (Exception e) {
+        System.err.println("EV3ColorSensor fetchSample exception: " + e.getMessage());
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public String getName() {
+      return NAME;
+    }
+     
+  }
+
+  private class ColorIDMode implements SensorMode {
+    
+    private static final String NAME = "ColorID";
+    private static final int SAMPLE_SIZE = 1;
+  
+    @Override
+    public int sampleSize() {
+      return SAMPLE_SIZE;
+    }
+
+    @Override
+    public void fetchSample(float[] sample, int offset) {
+      lock.lock();
+      try {
+        sample[offset] = classifyAverage();
       } catch (Exception e) {
         System.err.println("EV3ColorSensor fetchSample exception: " + e.getMessage());
       } finally {
@@ -200,7 +468,8 @@ public class EV3ColorSensor extends BaseSensor implements SensorModes {
     public void fetchSample(float[] sample, int offset) {
       lock.lock();
       try {
-        sample[offset] = Camera.imageGetRed(sensor.getImage(), sensor.getWidth(), 0, 0);
+        updateAverage();
+        sample[offset] = average[0];
       } catch (Exception e) {
         System.err.println("EV3ColorSensor fetchSample exception: " + e.getMessage());
       } finally {
@@ -1,9 +1,11 @@
 package simlejos.hardware.sensor;
 
-import com.cyberbotics.webots.controller.PositionSensor;
 import com.cyberbotics.webots.controller.Robot;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import simlejos.hardware.backend.Backend;
+import simlejos.hardware.backend.SensorDevice;
+import simlejos.hardware.backend.webots.WebotsBackend;
 import simlejos.hardware.port.Port;
 
 /**
@@ -14,14 +16,14 @@ import simlejos.hardware.port.Port;
 public class EV3TouchSensor extends BaseSensor implements SensorModes {
 
   /**
-   * The Webots sensor to interface with.
+   * The position sensor to interface with.
    */
-  private final PositionSensor sensor;
+  private final SensorDevice sensor;
   
   /**
    * Lock for the sensor.
    */
-  private static Lock lock = new ReentrantLock();
+  private final Lock lock = new ReentrantLock();
   
   private static final int TOUCH_MODE = 0;
   private static final int ANALOG_MODE = 1;
@@ -35,19 +37,21 @@ public class EV3TouchSensor extends BaseSensor implements SensorModes {
    * @param name the sensor name
    */
   public EV3TouchSensor(Robot robot, String name) {
+    this(WebotsBackend.of(robot), name);
+  }
+  
+  /**
+   * Constructs an EV3TouchSensor object.
+   * 
+   * @param backend the simulation backend of the robot
+   * @param name the sensor name
+   */
+  public EV3TouchSensor(Backend backend, String name) {
     //Get target sensor
-    sensor = robot.getPositionSensor(name);
+    sensor = backend.getPositionSensor(name);
     setModes(new SensorMode[] {new TouchMode(), new AnalogMode()});
-    //Enable sensor
-    lock.lock();
-    try {
-      //Set the timestep to that of the robot
-      sensor.enable((int) robot.getBasicTimeStep());
-    } catch (Exception e) {
-      System.err.println("EV3TouchSensor enable exception: " + e.getMessage());
-    } finally {
-      lock.unlock();
-    }
+    //Sample at every time step of the robot by default
+    initSampling((int) backend.getBasicTimeStep());
   }
   
   /**
@@ -56,7 +60,7 @@ public class EV3TouchSensor extends BaseSensor implements SensorModes {
    * @param port the port on which the sensor is attached.
    */
   public EV3TouchSensor(Port port) {
-    this(port.getRobot(), port.getName());
+    this(port.getBackend(), port.getName());
   }
 
   /**
@@ -83,6 +87,30 @@ public class EV3TouchSensor extends BaseSensor implements SensorModes {
     return MODE_COUNT;
   }
 
+  @Override
+  protected void enableDevice(int samplingPeriod) {
+    lock.lock();
+    try {
+      sensor.enable(samplingPeriod);
+    } catch (Exception e) {
+      System.err.println("EV3TouchSensor enable exception: " + e.getMessage());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  protected void disableDevice() {
+    lock.lock();
+    try {
+      sensor.disable();
+    } catch (Exception e) {
+      System.err.println("EV3TouchSensor disable exception: " + e.getMessage());
+    } finally {
+      lock.unlock();
+    }
+  }
+
   /**
    * Digital touch mode for the touch sensor. In this mode, the value of the sample is 0 if the
    * sensor is not pressed and 1 if it is.
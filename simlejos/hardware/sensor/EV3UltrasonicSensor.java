@@ -1,9 +1,11 @@
 package simlejos.hardware.sensor;
 
-import com.cyberbotics.webots.controller.DistanceSensor;
 import com.cyberbotics.webots.controller.Robot;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import simlejos.hardware.backend.Backend;
+import simlejos.hardware.backend.SensorDevice;
+import simlejos.hardware.backend.webots.WebotsBackend;
 import simlejos.hardware.port.Port;
 
 /**
@@ -17,14 +19,14 @@ import simlejos.hardware.port.Port;
 public class EV3UltrasonicSensor extends BaseSensor implements SensorModes {
   
   /**
-   * The Webots sensor to interface with.
+   * The distance sensor to interface with.
    */
-  final DistanceSensor sensor;
+  final SensorDevice sensor;
  
   /**
    * Lock for the sensor.
    */
-  private static Lock lock = new ReentrantLock();
+  private final Lock lock = new ReentrantLock();
   
   private static final int DISTANCE_MODE = 0;
   private static final int MODE_COUNT = 1;
@@ -36,18 +38,21 @@ public class EV3UltrasonicSensor extends BaseSensor implements SensorModes {
    * @param name the sensor name
    */
   public EV3UltrasonicSensor(Robot robot, String name) {
+    this(WebotsBackend.of(robot), name);
+  }
+  
+  /**
+   * Constructs an EV3UltrasonicSensor.
+   * 
+   * @param backend the simulation backend of the robot
+   * @param name the sensor name
+   */
+  public EV3UltrasonicSensor(Backend backend, String name) {
     // Get target sensor
-    sensor = robot.getDistanceSensor(name);
+    sensor = backend.getDistanceSensor(name);
     setModes(new SensorMode[] {new DistanceMode()});
-    lock.lock();
-    try {
-      // Set the timestep to that of the robot
-      sensor.enable((int) robot.getBasicTimeStep());
-    } catch (Exception e) {
-      System.err.println("EV3UltrasonicSensor enable exception: " + e.getMessage());
-    } finally {
-      lock.unlock();
-    }
+    // Sample at every time step of the robot by default
+    initSampling((int) backend.getBasicTimeStep());
   }
 
   /**
@@ -56,7 +61,7 @@ public class EV3UltrasonicSensor extends BaseSensor implements SensorModes {
    * @param port the port on which the sensor is attached.
    */
   public EV3UltrasonicSensor(Port port) {
-    this(port.getRobot(), port.getName());
+    this(port.getBackend(), port.getName());
   }
 
   public SensorMode getDistanceMode() {
@@ -66,6 +71,30 @@ public class EV3UltrasonicSensor extends BaseSensor implements SensorModes {
   public int getModeCount() {
     return MODE_COUNT;
   }
+
+  @Override
+  protected void enableDevice(int samplingPeriod) {
+    lock.lock();
+    try {
+      sensor.enable(samplingPeriod);
+    } catch (Exception e) {
+      System.err.println("EV3UltrasonicSensor enable exception: " + e.getMessage());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  protected void disableDevice() {
+    lock.lock();
+    try {
+      sensor.disable();
+    } catch (Exception e) {
+      System.err.println("EV3UltrasonicSensor disable exception: " + e.getMessage());
+    } finally {
+      lock.unlock();
+    }
+  }
   
   //Distance mode  
   private class DistanceMode implements SensorMode {
@@ -0,0 +1,141 @@
+package simlejos.robotics;
+
+/**
+ * Color identifiers returned by the color ID mode of the color sensor, and a color value with red,
+ * green and blue components.<br>
+ * Adapted from the LejOS distribution.
+ * 
+ * @see <a href="http://www.lejos.org/ev3/docs/lejos/robotics/Color.html">Lejos API Color</a>
+ */
+public class Color {
+
+  public static final int NONE = -1;
+  public static final int RED = 0;
+  public static final int GREEN = 1;
+  public static final int BLUE = 2;
+  public static final int YELLOW = 3;
+  public static final int MAGENTA = 4;
+  public static final int ORANGE = 5;
+  public static final int WHITE = 6;
+  public static final int BLACK = 7;
+  public static final int PINK = 8;
+  public static final int GRAY = 9;
+  public static final int LIGHT_GRAY = 10;
+  public static final int DARK_GRAY = 11;
+  public static final int CYAN = 12;
+  public static final int BROWN = 13;
+
+  private final int red;
+  private final int green;
+  private final int blue;
+  private final int color;
+
+  /**
+   * Creates a color from its components.
+   * 
+   * @param red the red component, between 0 and 255
+   * @param green the green component, between 0 and 255
+   * @param blue the blue component, between 0 and 255
+   */
+  public Color(int red, int green, int blue) {
+    this(red, green, blue, NONE);
+  }
+
+  /**
+   * Creates a color from its components and its identifier.
+   * 
+   * @param red the red component, between 0 and 255
+   * @param green the green component, between 0 and 255
+   * @param blue the blue component, between 0 and 255
+   * @param color the color identifier, for example {@link #RED}
+   */
+  public Color(int red, int green, int blue, int color) {
+    this.red = red;
+    this.green = green;
+    this.blue = blue;
+    this.color = color;
+  }
+
+  /**
+   * Returns the red component.
+   * 
+   * @return the red component, between 0 and 255
+   */
+  public int getRed() {
+    return red;
+  }
+
+  /**
+   * Returns the green component.
+   * 
+   * @return the green component, between 0 and 255
+   */
+  public int getGreen() {
+    return green;
+  }
+
+  /**
+   * Returns the blue component.
+   * 
+   * @return the blue component, between 0 and 255
+   */
+  public int getBlue() {
+    return blue;
+  }
+
+  /**
+   * Returns the color identifier.
+   * 
+   * @return the color identifier, or {@link #NONE}
+   */
+  public int getColor() {
+    return color;
+  }
+
+  /**
+   * Returns the name of a color identifier.
+   * 
+   * @param color the color identifier
+   * @return the name, for example "RED", or "NONE" for an unknown identifier
+   */
+  public static String getName(int color) {
+    switch (color) {
+      case RED:
+        return "RED";
+      case GREEN:
+        return "GREEN";
+      case BLUE:
+        return "BLUE";
+      case YELLOW:
+        return "YELLOW";
+      case MAGENTA:
+        return "MAGENTA";
+      case ORANGE:
+        return "ORANGE";
+      case WHITE:
+        return "WHITE";
+      case BLACK:
+        return "BLACK";
+      case PINK:
+        return "PINK";
+      case GRAY:
+        return "GRAY";
+      case LIGHT_GRAY:
+        return "LIGHT_GRAY";
+      case DARK_GRAY:
+        return "DARK_GRAY";
+      case CYAN:
+        return "CYAN";
+      case BROWN:
+        return "BROWN";
+      default:
+        return "NONE";
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getName(color) + " (" + red + ", " + green + ", " + blue + ")";
+  }
+
+}
@@ -1,11 +1,19 @@
 package simlejos.robotics;
 
-import com.cyberbotics.webots.controller.Motor;
-import com.cyberbotics.webots.controller.PositionSensor;
 import com.cyberbotics.webots.controller.Robot;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 import simlejos.ExecutionController;
+import simlejos.StepListener;
+import simlejos.hardware.backend.Backend;
+import simlejos.hardware.backend.MotorDevice;
+import simlejos.hardware.backend.SensorDevice;
+import simlejos.hardware.backend.webots.WebotsBackend;
 import simlejos.hardware.port.Port;
 
 /**
@@ -26,46 +34,200 @@ import simlejos.hardware.port.Port;
  */
 public class RegulatedMotor {
 
+  // Indices of the values in a snapshot
+  private static final int POSITION = 0;
+  private static final int TORQUE = 1;
+  private static final int DISPLACEMENT = 2;
+  private static final int ROTATION_SPEED = 3;
+  private static final int SNAPSHOT_SIZE = 4;
+
+  /** The number of steps of position history used to estimate the rotation speed. */
+  private static final int HISTORY_SIZE = 8;
+
+  /** The fraction of the commanded speed under which the motor falls behind. */
+  private static final double STALL_SPEED_RATIO = 0.5;
+
+  /** The distance to the target position within which a move is complete, in radians. */
+  private static final double POSITION_TOLERANCE = 0.01;
+
+  /** The displacement over a step under which the motor is stopped, in radians. */
+  private static final double STOPPED_TOLERANCE = 0.000001;
+
   /**
-   * Reference to the robot that contains the sensor.
+   * Reference to the simulation backend of the robot that contains the sensor.
    */
-  private Robot robot;
+  private Backend backend;
 
   /**
-   * The Webots motor to interface with.
+   * The motor to interface with.
    */
-  private Motor target;
+  private MotorDevice target;
 
   /**
-   * The Webots positionSensor to interface with.
+   * The positionSensor to interface with.
    */
-  private PositionSensor sensor;
+  private SensorDevice sensor;
+
+  /**
+   * The maximum velocity of the motor in radians per second, which does not change.
+   */
+  private double maxVelocity = Double.NaN;
   
 
   /**
-   * Direction of the robot.
+   * Direction of the robot. Written with the motor lock held, read without it.
    */
-  private int direction;
+  private volatile int direction;
    
   /**
-   * Speed of the robot.
+   * Speed of the robot. Written with the motor lock held, read without it.
    */
-  private double speed;
+  private volatile double speed;
    
   /**
    * Starting value of the tacho.
    */
-  private double sensorOffset;
+  private volatile double sensorOffset;
    
   /**
-   * Lock for the motor.
+   * Lock for the commands sent to this motor, so that each command sets the position and the
+   * velocity consistently. Reads do not take it.
    */
-  private static Lock motorLock = new ReentrantLock();
-   
+  private final Lock motorLock = new ReentrantLock();
+
+  /**
+   * The last two snapshots of the device values, taken by the stepping thread after every step
+   * since the values only change during a step. Readers use the snapshot instead of calling the
+   * devices, without locking.
+   */
+  private final double[][] snapshots = new double[2][SNAPSHOT_SIZE];
+
+  /**
+   * Seqlock version of the snapshots: twice the number of snapshots taken, plus one while a
+   * snapshot is being written. The latest complete snapshot is
+   * {@code snapshots[(snapshotVersion >> 1) & 1]}.
+   */
+  private volatile long snapshotVersion = 0;
+
+  /**
+   * Whether the step listener that takes the snapshots still has to be registered. It is only
+   * registered once the motor is used, so the motors that a program never uses cost nothing per
+   * step.
+   */
+  private final AtomicBoolean hookPending = new AtomicBoolean();
+
+  /**
+   * Whether commands are buffered and applied once before the next step.
+   */
+  private volatile boolean commandBuffering = false;
+
+  // The commands buffered since the last step, guarded by the motor lock. Only the last value of
+  // each field is applied; NaN means that the field was not commanded.
+  private double pendingPosition = Double.NaN;
+  private double pendingVelocity = Double.NaN;
+  private double pendingAcceleration = Double.NaN;
+
+  /**
+   * The completion of the last move started, or null once it completed. Completed by the stepping
+   * thread, and replaced under the motor lock.
+   */
+  private volatile CompletableFuture<Void> move;
+
+  /**
+   * The target position of the move, or NaN if the move only waits for the motor to stop.
+   */
+  private double moveTarget;
+
+  /**
+   * The step count when the move started. The move completes after a later step.
+   */
+  private long moveStep;
+
+  /**
+   * The basic time step of the simulation in milliseconds.
+   */
+  private double basicTimeStep;
+
+  /**
+   * The number of basic time steps between two samples of the position sensor.
+   */
+  private volatile int samplingSteps = 1;
+
+  /**
+   * The step count of the next snapshot, when the position sensor has a new sample. Only changed
+   * between steps.
+   */
+  private long nextSnapshotStep = 0;
+
+  // The simulation time in seconds and the position in radians after each of the last steps, in a
+  // ring buffer. Only used by the stepping thread.
+  private final double[] historyTimes = new double[HISTORY_SIZE];
+  private final double[] historyPositions = new double[HISTORY_SIZE];
+  private int historyIndex = 0;
+  private int historyLength = 0;
+
+  /**
+   * The last target position commanded, including a buffered one.
+   */
+  private volatile double commandedPosition = 0;
+
+  /**
+   * The last acceleration commanded in radians per second squared, or -1 if unlimited.
+   */
+  private volatile double commandedAcceleration = -1;
+
+  /**
+   * How far in radians the motor must fall behind its commanded motion to be stalled.
+   */
+  private volatile double stallError = 50 * Math.PI / 180;
+
   /**
-   * Lock for the sensor.
+   * How long in seconds the motor must stay that far behind to be stalled.
    */
-  private static Lock sensorLock = new ReentrantLock();
+  private volatile double stallTime = 1;
+
+  /**
+   * Whether the motor is stalled.
+   */
+  private volatile boolean stalled = false;
+
+  // The stall detection state, only used by the stepping thread: the speed the motor should have
+  // reached in radians per second, how far it fell behind in radians, and since when in seconds
+  // it has been behind by more than the stall error.
+  private double idealSpeed = 0;
+  private double lag = 0;
+  private double lagSince = Double.NaN;
+
+  /**
+   * The listener notified when the motor starts or stops rotating.
+   */
+  private volatile RegulatedMotorListener listener;
+
+  /**
+   * Whether the motor moved during the last step. Only used by the stepping thread.
+   */
+  private boolean rotating = false;
+
+  /**
+   * The other motors synchronized with this one.
+   */
+  private RegulatedMotor[] syncList = new RegulatedMotor[0];
+
+  /**
+   * Whether the commands are held until {@code endSynchronization()} is called on the motor that
+   * started the synchronization.
+   */
+  private volatile boolean synchronizing = false;
+
+  /**
+   * The number of device commands applied.
+   */
+  private volatile long appliedCommandCount = 0;
+
+  /**
+   * The number of buffered commands replaced by a later command before they were applied.
+   */
+  private volatile long coalescedCommandCount = 0;
    
 
   /**
@@ -74,7 +236,7 @@ public class RegulatedMotor {
    * @param port the port where the motor is connected
    */
   public RegulatedMotor(Port port) {
-    this(port.getRobot(), port.getName());
+    this(port.getBackend(), port.getName());
   }
   
   /**
@@ -84,27 +246,40 @@ public class RegulatedMotor {
    * @param name the name of the device to use
    */
   public RegulatedMotor(Robot robot, String name) {
-    Motor temp = robot.getMotor(name);
+    this(WebotsBackend.of(robot), name);
+  }
+  
+  /**
+   * Creates a new RegulatedMotor.
+   * 
+   * @param backend the simulation backend of the parent robot
+   * @param name the name of the device to use
+   */
+  public RegulatedMotor(Backend backend, String name) {
+    MotorDevice temp = backend.getMotor(name);
     //Motor not found, skip initialization
     if (temp == null) {
       return;
     }
     //otherwise initialize motor
     try {
-      setRobot(robot);
+      this.backend = backend;
+      basicTimeStep = backend.getBasicTimeStep();
       direction = 1;
       //Get the motor
       target = temp;
       //Get and enable the positionSensor
-      sensor = robot.getPositionSensor(name + "-sensor");
-      sensor.enable((int) robot.getBasicTimeStep());
+      sensor = backend.getPositionSensor(name + "-sensor");
+      sensor.enable((int) backend.getBasicTimeStep());
       //Enable feedback sensors
-      target.enableTorqueFeedback((int) robot.getBasicTimeStep());
+      target.enableTorqueFeedback((int) backend.getBasicTimeStep());
+      maxVelocity = target.getMaxVelocity();
     } catch (Exception e) {
       System.err.println("RegulatedMotor initialization exception: " + e.getMessage());
     }
     resetTachoCount(); // Reset tacho, so that we start at zero
     setSpeed(0); // Set speed to 0 initially
+    hookPending.set(true);
   }
   
   
@@ -112,32 +287,38 @@ public class RegulatedMotor {
    * Causes motor to rotate forward until stop() or flt() is called.
    */
   public void forward() {
+    CompletableFuture<Void> replaced = null;
     motorLock.lock();
     try {
       direction = 1;
-      target.setPosition(Double.POSITIVE_INFINITY);
-      target.setVelocity(direction * speed);
+      replaced = detachMove();
+      commandPosition(Double.POSITIVE_INFINITY);
+      commandVelocity(direction * speed);
     } catch (Exception e) {
       System.err.println("EV3LargeRegulatedMotor forward exception: " + e.getMessage());
     } finally {
       motorLock.unlock();
     }
+    cancel(replaced);
   }
   
   /**
    * Causes motor to rotate backward until stop() or flt() is called.
    */
   public void backward() {
+    CompletableFuture<Void> replaced = null;
     motorLock.lock();
     try {
       direction = -1;
-      target.setPosition(Double.POSITIVE_INFINITY);
-      target.setVelocity(direction * speed);
+      replaced = detachMove();
+      commandPosition(Double.POSITIVE_INFINITY);
+      commandVelocity(direction * speed);
     } catch (Exception e) {
       System.err.println("EV3LargeRegulatedMotor backward exception: " + e.getMessage());
     } finally {
       motorLock.unlock();
     }
+    cancel(replaced);
   }
 
   
@@ -149,7 +330,7 @@ public class RegulatedMotor {
     motorLock.lock();
     try {
       // Need to convert acceleration from degrees/sec/sec to radians/sec/sec
-      target.setAcceleration((double) acceleration * Math.PI / 180);
+      commandAcceleration((double) acceleration * Math.PI / 180);
     } catch (Exception e) {
       System.err.println("EV3LargeRegulatedMotor setAcceleration exception: " + e.getMessage());
     } finally {
@@ -158,11 +339,114 @@ public class RegulatedMotor {
   }
   
   /**
-   * Returns true if the motor is moving.
-   * TODO: Make this better
+   * Returns true if the motor moved during the last physics step. Before the first two steps, when
+   * no motion was measured yet, returns true if the motor was commanded to move.
    */
   public boolean isMoving() {
-    return Math.abs(speed) > 0.0001;
+    double displacement = readSnapshot(DISPLACEMENT);
+    if (Double.isNaN(displacement)) {
+      return Math.abs(speed) > 0.0001;
+    }
+    return Math.abs(displacement) > STOPPED_TOLERANCE;
+  }
+
+  /**
+   * Returns the actual rotation speed of the motor, estimated from its position over the last
+   * physics steps.
+   * 
+   * @return the rotation speed in degrees per second, negative when turning backward
+   */
+  public float getRotationSpeed() {
+    return (float) (readSnapshot(ROTATION_SPEED) * 180 / Math.PI);
+  }
+
+  /**
+   * Returns true if the motor is stalled, that is if it has been turning at less than half its
+   * commanded speed until it fell behind by more than the stall error, for longer than the stall
+   * time, while pushing in the commanded direction.
+   * 
+   * @return true if the motor is stalled
+   */
+  public boolean isStalled() {
+    return stalled;
+  }
+
+  /**
+   * Sets the parameters used to detect a stalled motor. A motor is stalled once it fell behind its
+   * commanded motion by more than the error for longer than the time. The defaults are 50 degrees
+   * and 1000 milliseconds. A stall completes the pending rotation and notifies the listener.
+   * 
+   * @param error the error threshold in degrees
+   * @param time the time in milliseconds
+   */
+  public void setStallThreshold(int error, int time) {
+    stallError = error * Math.PI / 180;
+    stallTime = time / 1000.0;
+  }
+
+  /**
+   * Sets how often the position and torque of the motor are sampled, rounded up to a multiple of
+   * the basic time step. The tacho count, the rotation speed, the stall detection and the
+   * completion of the moves are then updated once per sampling period, so a longer period saves
+   * simulation time at the cost of latency. The default is every basic time step.
+   * 
+   * @param samplingPeriod the sampling period in milliseconds
+   * @throws IllegalArgumentException if the sampling period is not positive
+   */
+  public void setSamplingPeriod(int samplingPeriod) {
+    if (samplingPeriod < 1) {
+      throw new IllegalArgumentException("Invalid sampling period " + samplingPeriod);
+    }
+    int step = (int) Math.max(basicTimeStep, 1);
+    int steps = (samplingPeriod + step - 1) / step;
+    hook();
+    // The devices sample right after the next step and then once per period, so the snapshots
+    // must start together with them
+    ExecutionController.runBetweenSteps(() -> {
+      motorLock.lock();
+      try {
+        sensor.enable(steps * step);
+        target.enableTorqueFeedback(steps * step);
+        samplingSteps = steps;
+        nextSnapshotStep = ExecutionController.getStepCount() + 1;
+      } catch (Exception e) {
+        System.err.println("EV3LargeRegulatedMotor setSamplingPeriod exception: "
+            + e.getMessage());
+      } finally {
+        motorLock.unlock();
+      }
+    });
+  }
+
+  /**
+   * Returns how often the position and torque of the motor are sampled.
+   * 
+   * @return the sampling period in milliseconds
+   */
+  public int getSamplingPeriod() {
+    return samplingSteps * (int) Math.max(basicTimeStep, 1);
+  }
+
+  /**
+   * Adds a listener that is notified when the motor starts or stops rotating, replacing the
+   * previous listener. Like in leJOS, a motor has a single listener.
+   * 
+   * @param listener the listener
+   */
+  public void addListener(RegulatedMotorListener listener) {
+    this.listener = listener;
+    hook();
+  }
+
+  /**
+   * Removes the listener of the motor.
+   * 
+   * @return the removed listener, or null if the motor had none
+   */
+  public RegulatedMotorListener removeListener() {
+    RegulatedMotorListener removed = listener;
+    listener = null;
+    return removed;
   }
   
   
@@ -177,9 +461,9 @@ public class RegulatedMotor {
       speed = Math.abs(velocity) * Math.PI / 180;
       // If the direction is negative, we need to be in velocity mode
       if (direction == -1) {
-        target.setPosition(Double.POSITIVE_INFINITY);
+        commandPosition(Double.POSITIVE_INFINITY);
       }
-      target.setVelocity(direction * speed);
+      commandVelocity(direction * speed);
     } catch (Exception e) {
       System.err.println("EV3LargeRegulatedMotor setSpeed exception: " + e.getMessage());
     } finally {
@@ -191,10 +475,8 @@ public class RegulatedMotor {
    * Returns the current motor speed in degrees per second.
    */
   public int getSpeed() {
-    motorLock.lock();
     // need to convert to degrees
     double velocity = speed * 180 / Math.PI;
-    motorLock.unlock();
     return (int) Math.round(velocity);
   }
 
@@ -202,10 +484,8 @@ public class RegulatedMotor {
    * Returns the maximum speed that can be maintained.
    */
   public float getMaxSpeed() {
-    motorLock.lock();
     // need to convert to degrees
-    double velocity = Math.abs(target.getMaxVelocity()) * 180 / Math.PI;
-    motorLock.unlock();
+    double velocity = Math.abs(maxVelocity) * 180 / Math.PI;
     return (float) velocity;
   }
 
@@ -213,10 +493,7 @@ public class RegulatedMotor {
    * Returns the current motor torque in Newton per Meters.
    */
   public double getTorque() {
-    motorLock.lock();
-    double torque = target.getTorqueFeedback();
-    motorLock.unlock();
-    return torque;
+    return readSnapshot(TORQUE);
   }
   
 
@@ -244,47 +521,310 @@ public class RegulatedMotor {
    *     stops
    */
   public void stop(boolean immediateReturn) {
+    CompletableFuture<Void> stopped = stopAsync();
+    if (!immediateReturn) {
+      //Wait until the motor stops moving
+      waitFor(stopped);
+    }
+  }
+
+  /**
+   * Stops the motor without waiting. Cancels any rotate() orders in progress.
+   * 
+   * @return a future completed by the stepping thread once the motor stopped
+   */
+  public CompletableFuture<Void> stopAsync() {
     //Set speed to 0 to stop the motor
     setSpeed(0);
     //Set the target position to the current position to stop motion
+    CompletableFuture<Void> stopped = new CompletableFuture<>();
+    CompletableFuture<Void> replaced;
     motorLock.lock();
     try {
-      target.setPosition(getSensorValue());
+      commandPosition(getSensorValue());
+      replaced = startMove(stopped, Double.NaN);
     } catch (Exception e) {
       System.err.println("EV3LargeRegulatedMotor stop exception: " + e.getMessage());
+      return CompletableFuture.failedFuture(e);
     } finally {
       motorLock.unlock();
     }
-    if (immediateReturn) {
-      return;
-    }
-    //Wait until the motor stops moving
-    waitUntilStopped();
+    cancel(replaced);
+    return stopped;
+  }
+
+  /**
+   * Rotate by the request number of degrees, and wait until the motor reaches its target.
+   */
+  public void rotate(int angle) {
+    rotate(angle, false);
   }
 
   /**
    * Rotate by the request number of degrees.
    */
   public void rotate(int angle, boolean immediateReturn) {
-    double offsetPosition = (double) angle * Math.PI / 180;
-    double endPosition = getSensorValue() + offsetPosition;
+    CompletableFuture<Void> reached = rotateAsync(angle);
+    if (!immediateReturn) {
+      // Wait until the motor reaches target
+      waitFor(reached);
+    }
+  }
+
+  /**
+   * Rotate by the request number of degrees without waiting. Several motors can be moved from one
+   * thread this way, and their moves composed, for example
+   * {@code CompletableFuture.allOf(left.rotateAsync(360), right.rotateAsync(-360))}.
+   * 
+   * <p>The future is completed by the stepping thread once the motor is within tolerance of its
+   * target and stopped, so dependent actions that are not async run in the stepping thread and
+   * must be quick. The future is cancelled if another move, forward(), backward() or stop()
+   * replaces this rotation first.
+   * 
+   * @param angle the angle to rotate by, in degrees
+   * @return a future completed when the motor reaches its target
+   */
+  public CompletableFuture<Void> rotateAsync(int angle) {
+    return rotateToPosition(getSensorValue() + (double) angle * Math.PI / 180);
+  }
+
+  /**
+   * Rotate to the given angle relative to the last tacho reset, and wait until the motor reaches
+   * it.
+   * 
+   * @param limitAngle the angle to rotate to, in degrees
+   */
+  public void rotateTo(int limitAngle) {
+    rotateTo(limitAngle, false);
+  }
+
+  /**
+   * Rotate to the given angle relative to the last tacho reset.
+   * 
+   * @param limitAngle the angle to rotate to, in degrees
+   * @param immediateReturn whether to return immediately or wait until the motor reaches the angle
+   */
+  public void rotateTo(int limitAngle, boolean immediateReturn) {
+    CompletableFuture<Void> reached = rotateToAsync(limitAngle);
+    if (!immediateReturn) {
+      waitFor(reached);
+    }
+  }
+
+  /**
+   * Rotate to the given angle relative to the last tacho reset without waiting.
+   * 
+   * @param limitAngle the angle to rotate to, in degrees
+   * @return a future completed when the motor reaches its target, see {@code rotateAsync()}
+   */
+  public CompletableFuture<Void> rotateToAsync(int limitAngle) {
+    return rotateToPosition(sensorOffset + (double) limitAngle * Math.PI / 180);
+  }
+
+  /**
+   * Commands the motor to the given position and starts the move.
+   */
+  private CompletableFuture<Void> rotateToPosition(double endPosition) {
+    CompletableFuture<Void> reached = new CompletableFuture<>();
+    CompletableFuture<Void> replaced;
     motorLock.lock();
     try {
       // Velocity must be positive in position control mode
       direction = 1;
-      target.setVelocity(direction * speed);
-      target.setPosition(endPosition);
+      commandVelocity(direction * speed);
+      commandPosition(endPosition);
+      // If velocity is 0, we can never reach position, only wait until the motor stops
+      replaced = startMove(reached, speed == 0 ? Double.NaN : endPosition);
     } catch (Exception e) {
       System.err.println("EV3LargeRegulatedMotor rotate exception: " + e.getMessage());
+      return CompletableFuture.failedFuture(e);
+    } finally {
+      motorLock.unlock();
+    }
+    cancel(replaced);
+    return reached;
+  }
+
+  /**
+   * Replaces the current move with a new one. Must be called with the motor lock held, and the
+   * replaced move cancelled with {@code cancel()} once the lock is released.
+   * 
+   * @param started the completion of the new move
+   * @param targetPosition the target position of the move, or NaN to wait until the motor stops
+   * @return the completion of the replaced move, or null if there was none
+   */
+  private CompletableFuture<Void> startMove(CompletableFuture<Void> started,
+      double targetPosition) {
+    CompletableFuture<Void> replaced = detachMove();
+    moveTarget = targetPosition;
+    moveStep = ExecutionController.getStepCount();
+    move = started;
+    return replaced;
+  }
+
+  /**
+   * Removes the current move. Must be called with the motor lock held, and the move cancelled with
+   * {@code cancel()} once the lock is released.
+   * 
+   * @return the completion of the removed move, or null if there was none
+   */
+  private CompletableFuture<Void> detachMove() {
+    CompletableFuture<Void> current = move;
+    move = null;
+    return current;
+  }
+
+  /**
+   * Cancels a replaced move. Must be called without the motor lock, since the dependent actions of
+   * the move run in the calling thread and may command the motor or wait for a step.
+   * 
+   * @param replaced the completion of the replaced move, or null
+   */
+  private static void cancel(CompletableFuture<Void> replaced) {
+    if (replaced != null) {
+      replaced.cancel(false);
+    }
+  }
+
+  /**
+   * Completes the current move if the motor reached its target and stopped. Called by the stepping
+   * thread after every step.
+   */
+  private void checkMove() {
+    if (move == null) {
+      return;
+    }
+    CompletableFuture<Void> completed = null;
+    motorLock.lock();
+    try {
+      if (move != null && ExecutionController.getStepCount() > moveStep && (stalled
+          || isStopped() && (Double.isNaN(moveTarget)
+              || Math.abs(getSensorValue() - moveTarget) <= POSITION_TOLERANCE))) {
+        completed = move;
+        move = null;
+      }
     } finally {
       motorLock.unlock();
     }
-    if (immediateReturn) {
+    if (completed != null) {
+      completed.complete(null);
+    }
+  }
+
+  /**
+   * Notifies the listener if the motor started or stopped rotating during the last step. Called by
+   * the stepping thread after every step.
+   */
+  private void checkRotation() {
+    double displacement = readSnapshot(DISPLACEMENT);
+    if (Double.isNaN(displacement) || rotating == Math.abs(displacement) > STOPPED_TOLERANCE) {
+      return;
+    }
+    rotating = !rotating;
+    RegulatedMotorListener current = listener;
+    if (current == null) {
       return;
     }
-    // Wait until the motor reaches target
-    waitUntilTargetReached();
-    waitUntilStopped();
+    long timeStamp = Math.round(backend.getTime() * 1000);
+    if (rotating) {
+      current.rotationStarted(this, getTachoCount(), stalled, timeStamp);
+    } else {
+      current.rotationStopped(this, getTachoCount(), stalled, timeStamp);
+    }
+  }
+
+  /**
+   * Adds the position after the last step to the history, and returns the rotation speed over the
+   * history. Called by the stepping thread after every step.
+   * 
+   * @param position the position after the last step in radians
+   * @return the rotation speed in radians per second
+   */
+  private double updateHistory(double position) {
+    if (Double.isNaN(position)) {
+      return 0;
+    }
+    historyTimes[historyIndex] = ExecutionController.getStepCount() * basicTimeStep / 1000;
+    historyPositions[historyIndex] = position;
+    int newest = historyIndex;
+    historyIndex = (historyIndex + 1) % HISTORY_SIZE;
+    historyLength = Math.min(historyLength + 1, HISTORY_SIZE);
+    // The oldest entry is the next one to be overwritten once the buffer is full
+    int oldest = historyLength < HISTORY_SIZE ? 0 : historyIndex;
+    double elapsed = historyTimes[newest] - historyTimes[oldest];
+    return elapsed > 0 ? (historyPositions[newest] - historyPositions[oldest]) / elapsed : 0;
+  }
+
+  /**
+   * Updates the stall detection after a step: the motor falls behind while it turns at less than
+   * half the speed allowed by its commanded speed, acceleration and target, and is stalled once it
+   * stayed behind by more than the stall error for the stall time while pushing in the commanded
+   * direction. Called by the stepping thread after every step.
+   */
+  private void checkStall() {
+    double displacement = readSnapshot(DISPLACEMENT);
+    int newest = (historyIndex + HISTORY_SIZE - 1) % HISTORY_SIZE;
+    double duration = historyLength < 2 ? 0
+        : historyTimes[newest] - historyTimes[(newest + HISTORY_SIZE - 1) % HISTORY_SIZE];
+    double start = readSnapshot(POSITION) - displacement;
+    double targetPosition = commandedPosition;
+    boolean velocityControl = Double.isInfinite(targetPosition);
+    double remaining =
+        velocityControl ? Double.POSITIVE_INFINITY : Math.abs(targetPosition - start);
+    if (Double.isNaN(displacement) || duration <= 0 || speed == 0 || synchronizing
+        || remaining <= POSITION_TOLERANCE) {
+      idealSpeed = 0;
+      lag = 0;
+      lagSince = Double.NaN;
+      setStalled(false);
+      return;
+    }
+    double acceleration = commandedAcceleration;
+    idealSpeed = acceleration > 0 ? Math.min(speed, idealSpeed + acceleration * duration) : speed;
+    double expected = Math.min(idealSpeed * duration, remaining);
+    double sign = velocityControl ? direction : Math.signum(targetPosition - start);
+    double progress = sign * displacement;
+    lag = progress >= STALL_SPEED_RATIO * expected ? 0 : lag + expected - progress;
+    if (lag <= stallError) {
+      lagSince = Double.NaN;
+      setStalled(false);
+      return;
+    }
+    double now = historyTimes[newest];
+    if (Double.isNaN(lagSince)) {
+      lagSince = now;
+    }
+    double torque = readSnapshot(TORQUE);
+    setStalled(now - lagSince >= stallTime && (Double.isNaN(torque) || torque * sign > 0));
+  }
+
+  /**
+   * Sets whether the motor is stalled, notifying the listener when it becomes stalled. Called by
+   * the stepping thread.
+   */
+  private void setStalled(boolean stalled) {
+    if (stalled == this.stalled) {
+      return;
+    }
+    this.stalled = stalled;
+    RegulatedMotorListener current = listener;
+    if (stalled && current != null) {
+      current.rotationStalled(this, getTachoCount(), Math.round(backend.getTime() * 1000));
+    }
+  }
+
+  /**
+   * Blocks until the given move is done, without holding back the other parties.
+   */
+  private static void waitFor(CompletableFuture<Void> done) {
+    ExecutionController.waitUntil(done::isDone);
+  }
+
+  /**
+   * Returns true if the motor did not move during the last step.
+   */
+  private boolean isStopped() {
+    return Math.abs(readSnapshot(DISPLACEMENT)) <= STOPPED_TOLERANCE;
   }
   
   
@@ -293,24 +833,18 @@ public class RegulatedMotor {
    * Blocks while motor is moving.
    */
   public void waitUntilTargetReached() {
-    motorLock.lock();
     try {
       // If velocity is 0, we can never reach position, return immediately
-      if (target.getVelocity() == 0) {
+      if (getCommandedVelocity() == 0) {
         return;
       }
     } catch (Exception e) {
       System.err.println("EV3LargeRegulatedMotor waitUntilTargetReached exception: "
           + e.getMessage());
-    } finally {
-      motorLock.unlock();
-    }
-    // Wait while motor is not at the target position
-    while (Math.abs(getSensorValue() - target.getTargetPosition()) > 0.01) {
-      // System.out.println("target:" + target.getTargetPosition() + "\tposition: "
-      //    + getSensorValue());
-      ExecutionController.waitUntilNextStep(); // Sleep for one physics step
     }
+    // Wait while motor is not at the target position, checked once per physics step
+    ExecutionController.waitUntil(
+        () -> Math.abs(getSensorValue() - getCommandedPosition()) <= POSITION_TOLERANCE);
   }
 
   
@@ -318,16 +852,8 @@ public class RegulatedMotor {
    * Blocks while motor is moving.
    */
   public void waitUntilStopped() {
-    // Wait while motor is moving
-    double position = getSensorValue();
-    double previousPosition = Double.POSITIVE_INFINITY;
-    while (Math.abs(position - previousPosition) > 0.000001) {
-      previousPosition = position;
-      // Sleep for two physics steps
-      ExecutionController.waitUntilNextStep();
-      ExecutionController.waitUntilNextStep();
-      position = getSensorValue();
-    }
+    // Wait while motor is moving, checked once per physics step
+    ExecutionController.waitUntil(new StoppedCondition());
   }
 
 
@@ -336,34 +862,262 @@ public class RegulatedMotor {
 
   
   /*-***************************************
-   ************************* Tacho Functions
+   *** Command Buffering and Synchronization
    ***************************************-*/
-  
-  
+
+
   /**
-   * Resets the tacho offset.
+   * Returns true if commands are buffered until the next physics step.
+   * 
+   * @return true if commands are buffered
    */
-  public void resetTachoCount() {
-    sensorLock.lock();
+  public boolean isCommandBuffering() {
+    return commandBuffering;
+  }
+
+  /**
+   * Sets whether commands are buffered until the next physics step. When buffered, the commands
+   * only update the pending state of the motor, and the last position, velocity and acceleration
+   * commanded are applied together just before the next step. Conflicting commands issued during
+   * the same step, like {@code setSpeed()} followed by {@code forward()}, then cost a single
+   * device command each and are never applied halfway. Turning buffering off applies the pending
+   * commands immediately.
+   * 
+   * @param commandBuffering true to buffer commands
+   */
+  public void setCommandBuffering(boolean commandBuffering) {
+    motorLock.lock();
     try {
-      sensorOffset = sensor.getValue();
-      if (Double.isNaN(sensorOffset)) {
-        sensorOffset = 0;
+      this.commandBuffering = commandBuffering;
+      if (!commandBuffering && !synchronizing) {
+        flushCommands();
       }
     } catch (Exception e) {
-      System.err.println("EV3LargeRegulatedMotor resetTachoCount exception: " + e.getMessage());
+      System.err.println("EV3LargeRegulatedMotor setCommandBuffering exception: "
+          + e.getMessage());
+    } finally {
+      motorLock.unlock();
+    }
+  }
+
+  /**
+   * Specifies the motors that are synchronized with this one. The commands sent to this motor and
+   * to the synchronized motors between {@code startSynchronization()} and
+   * {@code endSynchronization()}, called on this motor, take effect together at the same physics
+   * step.
+   * 
+   * @param syncList the motors to synchronize with this one
+   */
+  public void synchronizeWith(RegulatedMotor[] syncList) {
+    motorLock.lock();
+    try {
+      this.syncList = Arrays.stream(syncList)
+          .filter(motor -> motor != null && motor != this)
+          .distinct()
+          .toArray(RegulatedMotor[]::new);
+    } finally {
+      motorLock.unlock();
+    }
+  }
+
+  /**
+   * Starts holding the commands sent to this motor and to the motors given to
+   * {@code synchronizeWith()}, until {@code endSynchronization()} is called. Only call methods that
+   * return immediately meanwhile, since the held commands do not move the motors.
+   * 
+   * <p>For example, to start both wheels at the same step:
+   * <pre>
+   * leftMotor.synchronizeWith(new RegulatedMotor[] {rightMotor});
+   * leftMotor.startSynchronization();
+   * leftMotor.forward();
+   * rightMotor.forward();
+   * leftMotor.endSynchronization();
+   * </pre>
+   */
+  public void startSynchronization() {
+    for (RegulatedMotor motor : getSyncGroup()) {
+      motor.motorLock.lock();
+      try {
+        motor.synchronizing = true;
+      } finally {
+        motor.motorLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Applies the commands held since {@code startSynchronization()} to all the synchronized motors
+   * at once, between two physics steps. With command buffering, they are applied together just
+   * before the next step.
+   */
+  public void endSynchronization() {
+    RegulatedMotor[] group = getSyncGroup();
+    ExecutionController.runBetweenSteps(() -> {
+      for (RegulatedMotor motor : group) {
+        motor.motorLock.lock();
+        try {
+          motor.synchronizing = false;
+          if (!motor.commandBuffering) {
+            motor.flushCommands();
+          }
+        } catch (Exception e) {
+          System.err.println("EV3LargeRegulatedMotor endSynchronization exception: "
+              + e.getMessage());
+        } finally {
+          motor.motorLock.unlock();
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns this motor followed by the motors synchronized with it.
+   */
+  private RegulatedMotor[] getSyncGroup() {
+    motorLock.lock();
+    try {
+      RegulatedMotor[] group = new RegulatedMotor[syncList.length + 1];
+      group[0] = this;
+      System.arraycopy(syncList, 0, group, 1, syncList.length);
+      return group;
+    } finally {
+      motorLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of commands applied to the motor device.
+   * 
+   * @return the number of commands applied
+   */
+  public long getAppliedCommandCount() {
+    return appliedCommandCount;
+  }
+
+  /**
+   * Returns the number of buffered commands that were replaced by a later command of the same
+   * field before the next step, and so were never applied.
+   * 
+   * @return the number of coalesced commands
+   */
+  public long getCoalescedCommandCount() {
+    return coalescedCommandCount;
+  }
+
+  /**
+   * Commands the target position, or buffers it. Must be called with the motor lock held.
+   */
+  private void commandPosition(double position) {
+    hook();
+    commandedPosition = position;
+    if (commandBuffering || synchronizing) {
+      if (!Double.isNaN(pendingPosition)) {
+        coalescedCommandCount++;
+      }
+      pendingPosition = position;
+    } else {
+      target.setPosition(position);
+      appliedCommandCount++;
+    }
+  }
+
+  /**
+   * Commands the velocity, or buffers it. Must be called with the motor lock held.
+   */
+  private void commandVelocity(double velocity) {
+    hook();
+    if (commandBuffering || synchronizing) {
+      if (!Double.isNaN(pendingVelocity)) {
+        coalescedCommandCount++;
+      }
+      pendingVelocity = velocity;
+    } else {
+      target.setVelocity(velocity);
+      appliedCommandCount++;
+    }
+  }
+
+  /**
+   * Commands the acceleration, or buffers it. Must be called with the motor lock held.
+   */
+  private void commandAcceleration(double acceleration) {
+    hook();
+    commandedAcceleration = acceleration;
+    if (commandBuffering || synchronizing) {
+      if (!Double.isNaN(pendingAcceleration)) {
+        coalescedCommandCount++;
+      }
+      pendingAcceleration = acceleration;
+    } else {
+      target.setAcceleration(acceleration);
+      appliedCommandCount++;
+    }
+  }
+
+  /**
+   * Applies the buffered commands to the device. Must be called with the motor lock held.
+   */
+  private void flushCommands() {
+    if (!Double.isNaN(pendingAcceleration)) {
+      target.setAcceleration(pendingAcceleration);
+      pendingAcceleration = Double.NaN;
+      appliedCommandCount++;
+    }
+    if (!Double.isNaN(pendingPosition)) {
+      target.setPosition(pendingPosition);
+      pendingPosition = Double.NaN;
+      appliedCommandCount++;
+    }
+    if (!Double.isNaN(pendingVelocity)) {
+      target.setVelocity(pendingVelocity);
+      pendingVelocity = Double.NaN;
+      appliedCommandCount++;
+    }
+  }
+
+  /**
+   * Returns the last velocity commanded, including a buffered one.
+   */
+  private double getCommandedVelocity() {
+    motorLock.lock();
+    try {
+      return Double.isNaN(pendingVelocity) ? target.getVelocity() : pendingVelocity;
     } finally {
-      sensorLock.unlock();
+      motorLock.unlock();
     }
   }
 
+  /**
+   * Returns the last target position commanded, including a buffered one.
+   */
+  private double getCommandedPosition() {
+    motorLock.lock();
+    try {
+      return Double.isNaN(pendingPosition) ? target.getTargetPosition() : pendingPosition;
+    } finally {
+      motorLock.unlock();
+    }
+  }
+
+  /*-***************************************
+   ************************* Tacho Functions
+   ***************************************-*/
+  
+  
+  /**
+   * Resets the tacho offset.
+   */
+  public void resetTachoCount() {
+    sensorOffset = getSensorValue();
+  }
+
   /**
    * Returns the robot.
    * 
-   * @return the robot
+   * @return the robot, or null if the robot is not simulated by Webots
    */
   public Robot getRobot() {
-    return robot;
+    return backend instanceof WebotsBackend ? ((WebotsBackend) backend).getRobot() : null;
   }
 
   /**
@@ -372,22 +1126,23 @@ public class RegulatedMotor {
    * @param robot the robot to set
    */
   public void setRobot(Robot robot) {
-    this.robot = robot;
+    this.backend = WebotsBackend.of(robot);
+  }
+  
+  /**
+   * Returns the simulation backend of the robot.
+   * 
+   * @return the simulation backend of the robot
+   */
+  public Backend getBackend() {
+    return backend;
   }
 
   /**
    * Reads sensor value.
    */
   public double getSensorValue() {
-    double value = 0;
-    sensorLock.lock();
-    try {
-      value = sensor.getValue();
-    } catch (Exception e) {
-      System.err.println("EV3LargeRegulatedMotor getSensorValue exception: " + e.getMessage());
-    } finally {
-      sensorLock.unlock();
-    }
+    double value = readSnapshot(POSITION);
     // Sometimes, the first few measures return NaN, so we fix that by returning 0,
     // as the initial value should be 0
     if (Double.isNaN(value)) {
@@ -400,18 +1155,9 @@ public class RegulatedMotor {
    * Reads sensor value, relative to last tacho reset.
    */
   public double getOffsetSensorValue() {
-    double value = 0;
-    sensorLock.lock();
-    try {
-      value = sensor.getValue() - sensorOffset;
-      if (Double.isNaN(value)) {
-        value = 0;
-      }
-    } catch (Exception e) {
-      System.err.println("EV3LargeRegulatedMotor getOffsetSensorValue exception: "
-          + e.getMessage());
-    } finally {
-      sensorLock.unlock();
+    double value = readSnapshot(POSITION) - sensorOffset;
+    if (Double.isNaN(value)) {
+      value = 0;
     }
     return value;
   }
@@ -428,4 +1174,128 @@ public class RegulatedMotor {
     return (int) Math.round(degrees);
   }
 
+  /**
+   * Applies the buffered commands before every step and takes the snapshot after every step.
+   */
+  private class StepHook implements StepListener {
+    @Override
+    public void beforeStep() {
+      if (!commandBuffering || synchronizing) {
+        return;
+      }
+      motorLock.lock();
+      try {
+        flushCommands();
+      } finally {
+        motorLock.unlock();
+      }
+    }
+
+    @Override
+    public void afterStep() {
+      // The devices only have new values once their sampling period elapsed
+      long step = ExecutionController.getStepCount();
+      if (step < nextSnapshotStep) {
+        return;
+      }
+      nextSnapshotStep = step + samplingSteps;
+      takeSnapshot();
+      checkStall();
+      checkMove();
+      checkRotation();
+    }
+  }
+
+  /**
+   * Reads the devices into the next snapshot. Called by the stepping thread after every step.
+   */
+  private void takeSnapshot() {
+    long version = snapshotVersion;
+    double previousPosition =
+        version < 2 ? Double.NaN : snapshots[(int) (version >> 1) & 1][POSITION];
+    double[] snapshot = snapshots[(int) ((version >> 1) + 1) & 1];
+    snapshotVersion = version + 1;
+    // Make the version odd before any of the slot changes
+    VarHandle.storeStoreFence();
+    try {
+      snapshot[POSITION] = sensor.getValue();
+      snapshot[DISPLACEMENT] = snapshot[POSITION] - previousPosition;
+      snapshot[TORQUE] = target.getTorqueFeedback();
+      snapshot[ROTATION_SPEED] = updateHistory(snapshot[POSITION]);
+    } finally {
+      snapshotVersion = version + 2;
+    }
+  }
+
+  /**
+   * Returns a value of the latest snapshot, or reads it from the device before the first step.
+   * 
+   * @param index the index of the value in the snapshot
+   * @return the value
+   */
+  private double readSnapshot(int index) {
+    hook();
+    while (true) {
+      long version = snapshotVersion;
+      if (version < 2) {
+        return readDevice(index);
+      }
+      double value = snapshots[(int) (version >> 1) & 1][index];
+      // Order the read of the value before the check of the version
+      VarHandle.acquireFence();
+      // The slot read is only overwritten once the writer starts the snapshot after the next one
+      if (snapshotVersion < (version & ~1L) + 3) {
+        return value;
+      }
+    }
+  }
+
+  /**
+   * Registers the step listener that applies the buffered commands before every step and takes the
+   * snapshot after every step, on the first use of the motor. The snapshots start after the next
+   * step, and the values are read from the devices until then.
+   */
+  private void hook() {
+    if (hookPending.get() && hookPending.compareAndSet(true, false)) {
+      ExecutionController.addStepListener(new StepHook());
+    }
+  }
+
+  /**
+   * Reads a value of the snapshot directly from the device.
+   * 
+   * @param index the index of the value in the snapshot
+   * @return the value, or NaN if the device cannot be read
+   */
+  private double readDevice(int index) {
+    try {
+      switch (index) {
+        case POSITION:
+          return sensor.getValue();
+        case TORQUE:
+          return target.getTorqueFeedback();
+        case ROTATION_SPEED:
+          return 0;
+        default:
+          // The displacement is only known once two steps were taken
+          return Double.NaN;
+      }
+    } catch (Exception e) {
+      System.err.println("EV3LargeRegulatedMotor read exception: " + e.getMessage());
+      return Double.NaN;
+    }
+  }
+
+  /**
+   * Holds once the motor did not move during a physics step that ended after its creation.
+   */
+  private class StoppedCondition implements BooleanSupplier {
+    private final long startStep = ExecutionController.getStepCount();
+
+    @Override
+    public boolean getAsBoolean() {
+      return ExecutionController.getStepCount() > startStep && isStopped();
+    }
+  }
+
 }
@@ -0,0 +1,47 @@
+package simlejos.robotics;
+
+/**
+ * Listener notified when a motor starts or stops rotating. The events are based on the measured
+ * motion of the motor, not on the commands it receives, and are fired by the thread that performs
+ * the physics steps, right after the step in which the motion started or stopped. Listeners must
+ * therefore return quickly and must not wait for a step.
+ * 
+ * @see <a href="http://www.lejos.org/ev3/docs/lejos/robotics/RegulatedMotorListener.html">
+ *     Lejos API RegulatedMotorListener</a>
+ */
+public interface RegulatedMotorListener {
+
+  /**
+   * Called when the motor starts rotating.
+   * 
+   * @param motor the motor that started rotating
+   * @param tachoCount the tacho count of the motor, in degrees
+   * @param stalled true if the motor is stalled
+   * @param timeStamp the simulation time of the step, in milliseconds
+   */
+  public void rotationStarted(RegulatedMotor motor, int tachoCount, boolean stalled,
+      long timeStamp);
+
+  /**
+   * Called when the motor stops rotating.
+   * 
+   * @param motor the motor that stopped rotating
+   * @param tachoCount the tacho count of the motor, in degrees
+   * @param stalled true if the motor is stalled
+   * @param timeStamp the simulation time of the step, in milliseconds
+   */
+  public void rotationStopped(RegulatedMotor motor, int tachoCount, boolean stalled,
+      long timeStamp);
+
+  /**
+   * Called when the motor becomes stalled, see {@code RegulatedMotor.setStallThreshold()}. Does
+   * nothing by default, so leJOS listeners need not implement it.
+   * 
+   * @param motor the stalled motor
+   * @param tachoCount the tacho count of the motor, in degrees
+   * @param timeStamp the simulation time of the step, in milliseconds
+   */
+  public default void rotationStalled(RegulatedMotor motor, int tachoCount, long timeStamp) {
+    // Nothing to do by default
+  }
+}
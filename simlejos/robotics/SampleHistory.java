@@ -0,0 +1,243 @@
+package simlejos.robotics;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import simlejos.ExecutionController;
+import simlejos.StepListener;
+import simlejos.hardware.ev3.LocalEV3;
+
+/**
+ * Records the samples of a sample provider after every physics step, with their simulation time,
+ * in a ring buffer of a fixed capacity. The thread that performs the steps fetches the samples, so
+ * consumers no longer need to wake up at every step: they can wait for several steps and then
+ * fetch all the samples recorded meanwhile in one call, without losing any as long as the buffer
+ * does not fill up. In event-driven mode, the physics does not skip steps while a history records,
+ * so that every basic time step is recorded.
+ * 
+ * <p>For example, to process the ultrasonic readings ten steps at a time:
+ * <pre>
+ * SampleHistory history = new SampleHistory(ultrasonicSensor.getDistanceMode(), 64);
+ * float[] distances = new float[64];
+ * long[] times = new long[64];
+ * while (true) {
+ *   ExecutionController.performPhysicsSteps(10);
+ *   int count = history.fetchSamples(distances, times, 64);
+ *   ...
+ * }
+ * </pre>
+ * 
+ * <p>The history is also a sample provider, whose sample is the last one recorded.
+ */
+public class SampleHistory implements SampleProvider {
+
+  private final SampleProvider source;
+
+  private final int sampleSize;
+
+  private final int capacity;
+
+  /** The basic time step of the simulation in milliseconds. */
+  private final double basicTimeStep;
+
+  /** The samples, one after the other. */
+  private final float[] samples;
+
+  /** The simulation time of each sample in milliseconds. */
+  private final long[] times;
+
+  /**
+   * Lock for the buffer.
+   */
+  private final Lock lock = new ReentrantLock();
+
+  /** The number of samples recorded since the history was created. */
+  private long recorded = 0;
+
+  /** The number of samples drained by {@code fetchSamples()} or lost. */
+  private long drained = 0;
+
+  /** The number of samples overwritten before they were drained. */
+  private long lost = 0;
+
+  private final StepListener listener = new StepListener() {
+    @Override
+    public void afterStep() {
+      record();
+    }
+
+    @Override
+    public boolean needsEveryStep() {
+      return true;
+    }
+  };
+
+  /**
+   * Creates a history of the given sample provider and starts recording after every step.
+   * 
+   * @param source the sample provider to record
+   * @param capacity the number of samples kept
+   */
+  public SampleHistory(SampleProvider source, int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Invalid capacity " + capacity);
+    }
+    this.source = source;
+    this.sampleSize = source.sampleSize();
+    this.capacity = capacity;
+    this.basicTimeStep = LocalEV3.getBackend().getBasicTimeStep();
+    samples = new float[sampleSize * capacity];
+    times = new long[capacity];
+    ExecutionController.addStepListener(listener);
+  }
+
+  /**
+   * Stops recording. The samples recorded so far can still be fetched.
+   */
+  public void close() {
+    ExecutionController.removeStepListener(listener);
+  }
+
+  /**
+   * Records a sample. Called by the stepping thread after every step.
+   */
+  private void record() {
+    lock.lock();
+    try {
+      int slot = (int) (recorded % capacity);
+      source.fetchSample(samples, slot * sampleSize);
+      times[slot] = Math.round(ExecutionController.getStepCount() * basicTimeStep);
+      recorded++;
+      if (recorded - drained > capacity) {
+        drained++;
+        lost++;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of elements in a sample of the recorded provider.
+   * 
+   * @return the number of elements in a sample
+   */
+  @Override
+  public int sampleSize() {
+    return sampleSize;
+  }
+
+  /**
+   * Returns the number of samples kept.
+   * 
+   * @return the capacity
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the number of samples recorded and not fetched yet by {@code fetchSamples()}.
+   * 
+   * @return the number of samples available
+   */
+  public int available() {
+    lock.lock();
+    try {
+      return (int) (recorded - drained);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of samples overwritten before {@code fetchSamples()} fetched them, which
+   * means that the capacity is too small for the rate at which the samples are fetched.
+   * 
+   * @return the number of samples lost
+   */
+  public long getLostSampleCount() {
+    lock.lock();
+    try {
+      return lost;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Fetches the oldest samples not fetched yet, oldest first, and removes them from the history.
+   * 
+   * @param samples the array receiving the samples, one after the other
+   * @param times the array receiving the simulation time of each sample in milliseconds, or null
+   * @param max the maximum number of samples to fetch
+   * @return the number of samples fetched
+   */
+  public int fetchSamples(float[] samples, long[] times, int max) {
+    lock.lock();
+    try {
+      int count = (int) Math.min(max, recorded - drained);
+      copy(drained, count, samples, times);
+      drained += count;
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reads the most recent samples, oldest first, without removing them from the history, for
+   * example to look at the trace of a sensor over the last second.
+   * 
+   * @param samples the array receiving the samples, one after the other
+   * @param times the array receiving the simulation time of each sample in milliseconds, or null
+   * @param max the maximum number of samples to read
+   * @return the number of samples read
+   */
+  public int readLatest(float[] samples, long[] times, int max) {
+    lock.lock();
+    try {
+      int count = (int) Math.min(Math.min(max, capacity), recorded);
+      copy(recorded - count, count, samples, times);
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Copies samples from the ring buffer, in at most two parts. Must be called with the lock held.
+   */
+  private void copy(long first, int count, float[] samples, long[] times) {
+    int start = (int) (first % capacity);
+    int head = Math.min(count, capacity - start);
+    System.arraycopy(this.samples, start * sampleSize, samples, 0, head * sampleSize);
+    System.arraycopy(this.samples, 0, samples, head * sampleSize, (count - head) * sampleSize);
+    if (times != null) {
+      System.arraycopy(this.times, start, times, 0, head);
+      System.arraycopy(this.times, 0, times, head, count - head);
+    }
+  }
+
+  /**
+   * Fetches the last sample recorded, or NaN before the first step.
+   * 
+   * @param sample the array receiving the sample
+   * @param offset the index of the first element of the sample
+   */
+  @Override
+  public void fetchSample(float[] sample, int offset) {
+    lock.lock();
+    try {
+      if (recorded == 0) {
+        Arrays.fill(sample, offset, offset + sampleSize, Float.NaN);
+      } else {
+        int slot = (int) ((recorded - 1) % capacity);
+        System.arraycopy(samples, slot * sampleSize, sample, offset, sampleSize);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -0,0 +1,164 @@
+package simlejos.robotics;
+
+import java.lang.invoke.VarHandle;
+import simlejos.ExecutionController;
+import simlejos.StepListener;
+import simlejos.hardware.ev3.LocalEV3;
+
+/**
+ * Reads several sample providers together, right after every physics step, into one frame. The
+ * frame is the samples of the providers one after the other, so all of them come from the same
+ * simulation time, which fusing the readings of several sensors requires. Reading the frame never
+ * blocks: the thread that performs the steps writes the next frame while the previous one can
+ * still be read.
+ * 
+ * <p>For example, to read an ultrasonic sensor and two color sensors together:
+ * <pre>
+ * SensorGroup group = new SensorGroup(ultrasonicSensor.getDistanceMode(),
+ *     leftColorSensor.getRedMode(), rightColorSensor.getRedMode());
+ * float[] frame = new float[group.sampleSize()];
+ * long step = group.fetchFrame(frame, 0);
+ * float distance = frame[group.getOffset(0)];
+ * </pre>
+ */
+public class SensorGroup implements SampleProvider {
+
+  private final SampleProvider[] providers;
+
+  /** The index in the frame of the first element of each provider. */
+  private final int[] offsets;
+
+  private final int sampleSize;
+
+  /** The basic time step of the simulation in milliseconds. */
+  private final double basicTimeStep;
+
+  /**
+   * The last two frames, written alternately by the stepping thread.
+   */
+  private final float[][] frames;
+
+  /** The physics step of each frame. */
+  private final long[] frameSteps = new long[2];
+
+  /**
+   * Seqlock version of the frames, odd while a frame is being written. The latest frame is
+   * {@code frames[(version >> 1) & 1]}.
+   */
+  private volatile long version = 0;
+
+  private final StepListener listener = this::update;
+
+  /**
+   * Creates a group of sample providers, reads a first frame and starts reading a frame after every
+   * step.
+   * 
+   * @param providers the sample providers, usually sensor modes
+   */
+  public SensorGroup(SampleProvider... providers) {
+    this.providers = providers.clone();
+    offsets = new int[providers.length];
+    int size = 0;
+    for (int i = 0; i < providers.length; i++) {
+      offsets[i] = size;
+      size += providers[i].sampleSize();
+    }
+    sampleSize = size;
+    basicTimeStep = LocalEV3.getBackend().getBasicTimeStep();
+    frames = new float[2][size];
+    update();
+    ExecutionController.addStepListener(listener);
+  }
+
+  /**
+   * Stops reading frames. The last frame can still be read.
+   */
+  public void close() {
+    ExecutionController.removeStepListener(listener);
+  }
+
+  /**
+   * Reads the providers into the next frame. Called by the stepping thread after every step.
+   */
+  private void update() {
+    long current = version;
+    int slot = (int) ((current >> 1) + 1) & 1;
+    float[] frame = frames[slot];
+    version = current + 1;
+    // Make the version odd before any of the frame changes
+    VarHandle.storeStoreFence();
+    try {
+      for (int i = 0; i < providers.length; i++) {
+        providers[i].fetchSample(frame, offsets[i]);
+      }
+      frameSteps[slot] = ExecutionController.getStepCount();
+    } finally {
+      version = current + 2;
+    }
+  }
+
+  /**
+   * Returns the number of elements in a frame, the sum of the sample sizes of the providers.
+   * 
+   * @return the number of elements in a frame
+   */
+  @Override
+  public int sampleSize() {
+    return sampleSize;
+  }
+
+  /**
+   * Returns the index in the frame of the first element of a provider.
+   * 
+   * @param index the index of the provider, in the order given to the constructor
+   * @return the index of its first element in the frame
+   */
+  public int getOffset(int index) {
+    return offsets[index];
+  }
+
+  /**
+   * Fetches the latest frame. Never blocks.
+   * 
+   * @param sample the array receiving the frame
+   * @param offset the index of the first element of the frame
+   */
+  @Override
+  public void fetchSample(float[] sample, int offset) {
+    fetchFrame(sample, offset);
+  }
+
+  /**
+   * Fetches the latest frame and returns the physics step it was read at. Never blocks.
+   * 
+   * @param sample the array receiving the frame
+   * @param offset the index of the first element of the frame
+   * @return the physics step of the frame, see {@code getTime()} for its simulation time
+   */
+  public long fetchFrame(float[] sample, int offset) {
+    while (true) {
+      long current = version;
+      int slot = (int) (current >> 1) & 1;
+      System.arraycopy(frames[slot], 0, sample, offset, sampleSize);
+      long step = frameSteps[slot];
+      // Order the reads of the frame before the check of the version
+      VarHandle.acquireFence();
+      // The slot read is only overwritten once the writer starts the frame after the next one
+      if (version < (current & ~1L) + 3) {
+        return step;
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  /**
+   * Returns the simulation time of a physics step, for example of a frame.
+   * 
+   * @param step the physics step
+   * @return the simulation time in milliseconds
+   */
+  public long getTime(long step) {
+    return Math.round(step * basicTimeStep);
+  }
+
+}
@@ -0,0 +1,56 @@
+package simlejos.robotics.filter;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import simlejos.robotics.SampleProvider;
+
+/**
+ * Base class of the sample filters. A filter is a {@link SampleProvider} that fetches the samples
+ * of another sample provider and processes them, so filters can be stacked, for example a median
+ * filter over a sensor mode followed by a low-pass filter.
+ * 
+ * <p>Filters that keep state fetch a sample from their source on every {@code fetchSample()}, so
+ * they are meant to be fetched once per physics step, and preallocate all their buffers so that
+ * filtering produces no garbage. They can be fetched by several threads.
+ * 
+ * @see <a href="http://www.lejos.org/ev3/docs/lejos/robotics/filter/AbstractFilter.html">
+ *     Lejos API AbstractFilter</a>
+ */
+public abstract class AbstractFilter implements SampleProvider {
+
+  /**
+   * The filtered sample provider.
+   */
+  protected final SampleProvider source;
+
+  /**
+   * The number of elements in a sample of the source.
+   */
+  protected final int sampleSize;
+
+  /**
+   * Lock for the state of the filter.
+   */
+  protected final Lock lock = new ReentrantLock();
+
+  /**
+   * Creates a filter of the given sample provider.
+   * 
+   * @param source the sample provider to filter
+   */
+  public AbstractFilter(SampleProvider source) {
+    this.source = source;
+    this.sampleSize = source.sampleSize();
+  }
+
+  @Override
+  public int sampleSize() {
+    return sampleSize;
+  }
+
+  @Override
+  public void fetchSample(float[] sample, int offset) {
+    source.fetchSample(sample, offset);
+  }
+
+}
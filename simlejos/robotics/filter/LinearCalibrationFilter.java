@@ -0,0 +1,185 @@
+package simlejos.robotics.filter;
+
+import java.util.Arrays;
+import simlejos.robotics.SampleProvider;
+
+/**
+ * Filter that corrects the samples of its source with an offset and a scale per element, computed
+ * as {@code (value - offset) * scale}. The corrections can be set directly or calibrated: between
+ * {@code startCalibration()} and {@code stopCalibration()}, the filter records the range of each
+ * element, and then maps that range to the range given to {@code setRange()}, -1 to 1 by default.
+ * For example, a color sensor moved between black and white tiles during calibration returns 0 to
+ * 1 afterwards with {@code setRange(0, 1)}.
+ * 
+ * @see <a href="http://www.lejos.org/ev3/docs/lejos/robotics/filter/LinearCalibrationFilter.html">
+ *     Lejos API LinearCalibrationFilter</a>
+ */
+public class LinearCalibrationFilter extends AbstractFilter {
+
+  private final float[] offsets;
+
+  private final float[] scales;
+
+  private final float[] minimums;
+
+  private final float[] maximums;
+
+  private float lowerBound = -1;
+
+  private float upperBound = 1;
+
+  private boolean calibrating = false;
+
+  /**
+   * Creates a filter with no correction.
+   * 
+   * @param source the sample provider to filter
+   */
+  public LinearCalibrationFilter(SampleProvider source) {
+    super(source);
+    offsets = new float[sampleSize];
+    scales = new float[sampleSize];
+    minimums = new float[sampleSize];
+    maximums = new float[sampleSize];
+    Arrays.fill(scales, 1);
+  }
+
+  /**
+   * Sets the offset of each element, subtracted before scaling.
+   * 
+   * @param offsets the offsets
+   */
+  public void setOffsetCorrection(float[] offsets) {
+    lock.lock();
+    try {
+      System.arraycopy(offsets, 0, this.offsets, 0, sampleSize);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets the scale of each element, applied after the offset.
+   * 
+   * @param scales the scales
+   */
+  public void setScaleCorrection(float[] scales) {
+    lock.lock();
+    try {
+      System.arraycopy(scales, 0, this.scales, 0, sampleSize);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the offset of each element.
+   * 
+   * @return a copy of the offsets
+   */
+  public float[] getOffsetCorrection() {
+    lock.lock();
+    try {
+      return offsets.clone();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the scale of each element.
+   * 
+   * @return a copy of the scales
+   */
+  public float[] getScaleCorrection() {
+    lock.lock();
+    try {
+      return scales.clone();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets the range that the calibrated range of each element is mapped to.
+   * 
+   * @param lowerBound the value of the minimum seen during calibration
+   * @param upperBound the value of the maximum seen during calibration
+   */
+  public void setRange(float lowerBound, float upperBound) {
+    lock.lock();
+    try {
+      this.lowerBound = lowerBound;
+      this.upperBound = upperBound;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Starts recording the range of each element. The samples are not corrected meanwhile.
+   */
+  public void startCalibration() {
+    lock.lock();
+    try {
+      Arrays.fill(minimums, Float.POSITIVE_INFINITY);
+      Arrays.fill(maximums, Float.NEGATIVE_INFINITY);
+      calibrating = true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stops recording and computes the corrections that map the recorded ranges to the range given
+   * to {@code setRange()}. Elements that did not change keep their corrections.
+   */
+  public void stopCalibration() {
+    lock.lock();
+    try {
+      calibrating = false;
+      for (int i = 0; i < sampleSize; i++) {
+        if (maximums[i] > minimums[i]) {
+          scales[i] = (upperBound - lowerBound) / (maximums[i] - minimums[i]);
+          offsets[i] = minimums[i] - lowerBound / scales[i];
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns true between {@code startCalibration()} and {@code stopCalibration()}.
+   * 
+   * @return true while calibrating
+   */
+  public boolean isCalibrating() {
+    lock.lock();
+    try {
+      return calibrating;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void fetchSample(float[] sample, int offset) {
+    lock.lock();
+    try {
+      source.fetchSample(sample, offset);
+      for (int i = 0; i < sampleSize; i++) {
+        float value = sample[offset + i];
+        if (calibrating) {
+          minimums[i] = Math.min(minimums[i], value);
+          maximums[i] = Math.max(maximums[i], value);
+        } else {
+          sample[offset + i] = (value - offsets[i]) * scales[i];
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -0,0 +1,87 @@
+package simlejos.robotics.filter;
+
+import simlejos.ExecutionController;
+import simlejos.hardware.ev3.LocalEV3;
+import simlejos.robotics.SampleProvider;
+
+/**
+ * Filter that smooths the samples of its source with a first-order low-pass filter. The weight of
+ * each new sample depends on the simulation time elapsed since the previous fetch, so the filter
+ * behaves the same whatever the fetch rate, and fetching again during the same physics step
+ * returns the same value.
+ * 
+ * @see <a href="http://www.lejos.org/ev3/docs/lejos/robotics/filter/LowPassFilter.html">
+ *     Lejos API LowPassFilter</a>
+ */
+public class LowPassFilter extends AbstractFilter {
+
+  /** The basic time step of the simulation in seconds. */
+  private final double basicTimeStep;
+
+  private final float[] buffer;
+
+  private final float[] smoothed;
+
+  private volatile float timeConstant;
+
+  /** The physics step of the last fetch, or -1 before the first fetch. */
+  private long lastStep = -1;
+
+  /**
+   * Creates a low-pass filter.
+   * 
+   * @param source the sample provider to filter
+   * @param timeConstant the time constant of the filter in seconds, 0 to not filter
+   */
+  public LowPassFilter(SampleProvider source, float timeConstant) {
+    super(source);
+    basicTimeStep = LocalEV3.getBackend().getBasicTimeStep() / 1000;
+    buffer = new float[sampleSize];
+    smoothed = new float[sampleSize];
+    setTimeConstant(timeConstant);
+  }
+
+  /**
+   * Sets the time constant of the filter.
+   * 
+   * @param timeConstant the time constant in seconds, 0 to not filter
+   */
+  public void setTimeConstant(float timeConstant) {
+    if (!(timeConstant >= 0)) {
+      throw new IllegalArgumentException("Invalid time constant " + timeConstant);
+    }
+    this.timeConstant = timeConstant;
+  }
+
+  /**
+   * Returns the time constant of the filter.
+   * 
+   * @return the time constant in seconds
+   */
+  public float getTimeConstant() {
+    return timeConstant;
+  }
+
+  @Override
+  public void fetchSample(float[] sample, int offset) {
+    lock.lock();
+    try {
+      long step = ExecutionController.getStepCount();
+      if (lastStep < 0) {
+        source.fetchSample(smoothed, 0);
+      } else if (step != lastStep) {
+        source.fetchSample(buffer, 0);
+        double elapsed = (step - lastStep) * basicTimeStep;
+        float weight = (float) (elapsed / (timeConstant + elapsed));
+        for (int i = 0; i < sampleSize; i++) {
+          smoothed[i] += weight * (buffer[i] - smoothed[i]);
+        }
+      }
+      lastStep = step;
+      System.arraycopy(smoothed, 0, sample, offset, sampleSize);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
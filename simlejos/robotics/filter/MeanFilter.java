@@ -0,0 +1,44 @@
+package simlejos.robotics.filter;
+
+import simlejos.robotics.SampleProvider;
+
+/**
+ * Filter that returns the mean of the last samples of its source, a moving average. Each fetch
+ * takes a sample from the source and updates the mean in constant time.
+ * 
+ * @see <a href="http://www.lejos.org/ev3/docs/lejos/robotics/filter/MeanFilter.html">
+ *     Lejos API MeanFilter</a>
+ */
+public class MeanFilter extends AbstractFilter {
+
+  private final SampleWindow window;
+
+  private final float[] buffer;
+
+  /**
+   * Creates a filter averaging the given number of samples.
+   * 
+   * @param source the sample provider to filter
+   * @param bufferSize the number of samples averaged
+   */
+  public MeanFilter(SampleProvider source, int bufferSize) {
+    super(source);
+    window = new SampleWindow(sampleSize, bufferSize);
+    buffer = new float[sampleSize];
+  }
+
+  @Override
+  public void fetchSample(float[] sample, int offset) {
+    lock.lock();
+    try {
+      source.fetchSample(buffer, 0);
+      window.add(buffer, 0);
+      for (int i = 0; i < sampleSize; i++) {
+        sample[offset + i] = (float) window.mean(i);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -0,0 +1,48 @@
+package simlejos.robotics.filter;
+
+import simlejos.robotics.SampleProvider;
+
+/**
+ * Filter that returns the median of the last samples of its source, which removes outliers such as
+ * the spurious readings of the ultrasonic sensor. Each fetch takes a sample from the source and
+ * updates the median in logarithmic time of the number of samples.
+ * 
+ * @see <a href="http://www.lejos.org/ev3/docs/lejos/robotics/filter/MedianFilter.html">
+ *     Lejos API MedianFilter</a>
+ */
+public class MedianFilter extends AbstractFilter {
+
+  private final SlidingMedian[] medians;
+
+  private final float[] buffer;
+
+  /**
+   * Creates a filter over the given number of samples.
+   * 
+   * @param source the sample provider to filter
+   * @param bufferSize the number of samples in the window
+   */
+  public MedianFilter(SampleProvider source, int bufferSize) {
+    super(source);
+    medians = new SlidingMedian[sampleSize];
+    for (int i = 0; i < sampleSize; i++) {
+      medians[i] = new SlidingMedian(bufferSize);
+    }
+    buffer = new float[sampleSize];
+  }
+
+  @Override
+  public void fetchSample(float[] sample, int offset) {
+    lock.lock();
+    try {
+      source.fetchSample(buffer, 0);
+      for (int i = 0; i < sampleSize; i++) {
+        medians[i].add(buffer[i]);
+        sample[offset + i] = medians[i].median();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -0,0 +1,112 @@
+package simlejos.robotics.filter;
+
+/**
+ * The last samples of a sample provider in a ring buffer, with the mean and variance of each
+ * element over the window updated in constant time. The running values are recomputed exactly
+ * every time the ring wraps around, so rounding errors do not accumulate. Not thread safe.
+ */
+class SampleWindow {
+
+  private final int sampleSize;
+
+  private final int capacity;
+
+  /** The samples, one after the other. */
+  private final float[] values;
+
+  private final double[] means;
+
+  /** The sums of the squared differences to the means. */
+  private final double[] squares;
+
+  /** The index of the slot of the next sample. */
+  private int next = 0;
+
+  private int count = 0;
+
+  SampleWindow(int sampleSize, int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Invalid window size " + capacity);
+    }
+    this.sampleSize = sampleSize;
+    this.capacity = capacity;
+    values = new float[sampleSize * capacity];
+    means = new double[sampleSize];
+    squares = new double[sampleSize];
+  }
+
+  /**
+   * Adds a sample, replacing the oldest one once the window is full.
+   * 
+   * @param sample the array holding the sample
+   * @param offset the index of the first element of the sample
+   */
+  void add(float[] sample, int offset) {
+    int base = next * sampleSize;
+    boolean full = count == capacity;
+    if (!full) {
+      count++;
+    }
+    for (int i = 0; i < sampleSize; i++) {
+      float value = sample[offset + i];
+      if (full) {
+        // Replace the oldest value, Welford's update for a sliding window
+        double old = values[base + i];
+        double mean = means[i] + (value - old) / count;
+        squares[i] += (value - old) * (value - mean + old - means[i]);
+        means[i] = mean;
+      } else {
+        double delta = value - means[i];
+        means[i] += delta / count;
+        squares[i] += delta * (value - means[i]);
+      }
+      values[base + i] = value;
+    }
+    next = (next + 1) % capacity;
+    if (next == 0 && full) {
+      recompute();
+    }
+  }
+
+  /**
+   * Recomputes the means and variances from the samples in the window.
+   */
+  private void recompute() {
+    for (int i = 0; i < sampleSize; i++) {
+      double sum = 0;
+      for (int slot = 0; slot < count; slot++) {
+        sum += values[slot * sampleSize + i];
+      }
+      double mean = sum / count;
+      double square = 0;
+      for (int slot = 0; slot < count; slot++) {
+        double delta = values[slot * sampleSize + i] - mean;
+        square += delta * delta;
+      }
+      means[i] = mean;
+      squares[i] = square;
+    }
+  }
+
+  /**
+   * Returns the number of samples in the window.
+   */
+  int size() {
+    return count;
+  }
+
+  /**
+   * Returns the mean of an element over the window.
+   */
+  double mean(int element) {
+    return count == 0 ? Double.NaN : means[element];
+  }
+
+  /**
+   * Returns the population variance of an element over the window.
+   */
+  double variance(int element) {
+    return count == 0 ? Double.NaN : Math.max(0, squares[element] / count);
+  }
+
+}
@@ -0,0 +1,170 @@
+package simlejos.robotics.filter;
+
+/**
+ * The median of the last values of a stream, updated in logarithmic time. The values of the window
+ * are split between a max-heap of the lower half and a min-heap of the upper half, and every slot
+ * of the ring buffer knows its position in its heap, so the oldest value can be removed without a
+ * search. Not thread safe.
+ */
+class SlidingMedian {
+
+  private final int capacity;
+
+  /** The values, by slot of the ring buffer. */
+  private final float[] values;
+
+  /** The index in its heap of the value of each slot. */
+  private final int[] positions;
+
+  /** True for the slots whose value is in the lower half. */
+  private final boolean[] lower;
+
+  /** The slots of the lower half, a max-heap by value. */
+  private final int[] low;
+
+  /** The slots of the upper half, a min-heap by value. */
+  private final int[] high;
+
+  private int lowSize = 0;
+
+  private int highSize = 0;
+
+  /** The slot of the next value. */
+  private int next = 0;
+
+  SlidingMedian(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Invalid window size " + capacity);
+    }
+    this.capacity = capacity;
+    values = new float[capacity];
+    positions = new int[capacity];
+    lower = new boolean[capacity];
+    low = new int[capacity];
+    high = new int[capacity];
+  }
+
+  /**
+   * Adds a value, replacing the oldest one once the window is full.
+   */
+  void add(float value) {
+    int slot = next;
+    next = (next + 1) % capacity;
+    if (lowSize + highSize == capacity) {
+      remove(slot);
+    }
+    values[slot] = value;
+    // Push into the lower half and move its largest value to the upper half, so every value of the
+    // lower half stays below every value of the upper half
+    lower[slot] = true;
+    push(low, lowSize++, slot, true);
+    int moved = pop(low, lowSize--, true);
+    lower[moved] = false;
+    push(high, highSize++, moved, false);
+    // Keep the lower half the same size as the upper half, or one larger
+    if (highSize > lowSize) {
+      moved = pop(high, highSize--, false);
+      lower[moved] = true;
+      push(low, lowSize++, moved, true);
+    }
+  }
+
+  /**
+   * Returns the median of the window, the mean of the two middle values for an even count.
+   */
+  float median() {
+    if (lowSize == 0) {
+      return Float.NaN;
+    }
+    if (lowSize > highSize) {
+      return values[low[0]];
+    }
+    return (values[low[0]] + values[high[0]]) / 2;
+  }
+
+  /**
+   * Removes the value of a slot from its heap.
+   */
+  private void remove(int slot) {
+    int[] heap;
+    int size;
+    boolean max = lower[slot];
+    if (max) {
+      heap = low;
+      size = --lowSize;
+    } else {
+      heap = high;
+      size = --highSize;
+    }
+    int index = positions[slot];
+    if (index != size) {
+      int last = heap[size];
+      place(heap, index, last);
+      siftUp(heap, index, max);
+      siftDown(heap, positions[last], size, max);
+    }
+  }
+
+  private void push(int[] heap, int size, int slot, boolean max) {
+    place(heap, size, slot);
+    siftUp(heap, size, max);
+  }
+
+  /**
+   * Removes the top of a heap of the given size and returns its slot.
+   */
+  private int pop(int[] heap, int size, boolean max) {
+    int top = heap[0];
+    size--;
+    if (size > 0) {
+      place(heap, 0, heap[size]);
+      siftDown(heap, 0, size, max);
+    }
+    return top;
+  }
+
+  private void place(int[] heap, int index, int slot) {
+    heap[index] = slot;
+    positions[slot] = index;
+  }
+
+  /**
+   * Returns true if the value of slot a must be above the value of slot b in the heap.
+   */
+  private boolean above(int a, int b, boolean max) {
+    return max ? values[a] > values[b] : values[a] < values[b];
+  }
+
+  private void siftUp(int[] heap, int index, boolean max) {
+    int slot = heap[index];
+    while (index > 0) {
+      int parent = (index - 1) / 2;
+      if (!above(slot, heap[parent], max)) {
+        break;
+      }
+      place(heap, index, heap[parent]);
+      index = parent;
+    }
+    place(heap, index, slot);
+  }
+
+  private void siftDown(int[] heap, int index, int size, boolean max) {
+    int slot = heap[index];
+    while (true) {
+      int child = 2 * index + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && above(heap[child + 1], heap[child], max)) {
+        child++;
+      }
+      if (!above(heap[child], slot, max)) {
+        break;
+      }
+      place(heap, index, heap[child]);
+      index = child;
+    }
+    place(heap, index, slot);
+  }
+
+}
@@ -0,0 +1,42 @@
+package simlejos.robotics.filter;
+
+import simlejos.robotics.SampleProvider;
+
+/**
+ * Filter that returns the variance of the last samples of its source, for example to detect that
+ * a sensor reading is noisy or settled. Each fetch takes a sample from the source and updates the
+ * variance in constant time.
+ */
+public class VarianceFilter extends AbstractFilter {
+
+  private final SampleWindow window;
+
+  private final float[] buffer;
+
+  /**
+   * Creates a filter over the given number of samples.
+   * 
+   * @param source the sample provider to filter
+   * @param bufferSize the number of samples in the window
+   */
+  public VarianceFilter(SampleProvider source, int bufferSize) {
+    super(source);
+    window = new SampleWindow(sampleSize, bufferSize);
+    buffer = new float[sampleSize];
+  }
+
+  @Override
+  public void fetchSample(float[] sample, int offset) {
+    lock.lock();
+    try {
+      source.fetchSample(buffer, 0);
+      window.add(buffer, 0);
+      for (int i = 0; i < sampleSize; i++) {
+        sample[offset + i] = (float) window.variance(i);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -0,0 +1,262 @@
+package simlejos.robotics.localization;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import simlejos.ExecutionController;
+import simlejos.StepListener;
+import simlejos.robotics.RegulatedMotor;
+import simlejos.robotics.navigation.Pose;
+
+/**
+ * Odometry for a differential drive robot, updated by the thread that performs the physics steps
+ * right after every step, so no odometer thread or barrier party is needed. The pose is integrated
+ * from the rotation of both wheels along exact arcs, and can be read by any thread without
+ * blocking.
+ * 
+ * <p>Distances are in the unit of the wheel radius and the track width, for example meters. The
+ * heading is in degrees, counterclockwise from the x axis, like in leJOS. The robot starts at the
+ * origin, heading along the x axis.
+ * 
+ * <p>For example:
+ * <pre>
+ * OdometryPoseProvider odometry =
+ *     new OdometryPoseProvider(Motor.A, Motor.D, WHEEL_RADIUS, TRACK_WIDTH);
+ * ...
+ * Pose pose = odometry.getPose();
+ * </pre>
+ * 
+ * @see <a href="http://www.lejos.org/ev3/docs/lejos/robotics/localization/OdometryPoseProvider.html">
+ *     Lejos API OdometryPoseProvider</a>
+ */
+public class OdometryPoseProvider {
+
+  private final RegulatedMotor leftMotor;
+
+  private final RegulatedMotor rightMotor;
+
+  private final double wheelRadius;
+
+  private final double trackWidth;
+
+  /**
+   * Lock for the writers of the pose: the stepping thread and the corrections.
+   */
+  private final Lock lock = new ReentrantLock();
+
+  /**
+   * Seqlock version of the pose, odd while the pose is being written.
+   */
+  private volatile long version = 0;
+
+  // The pose, in the unit of the wheels and in radians
+  private double x = 0;
+  private double y = 0;
+  private double theta = 0;
+
+  // The wheel positions at the last update in radians, only used by the stepping thread
+  private double lastLeftPosition;
+  private double lastRightPosition;
+
+  private final StepListener listener = this::update;
+
+  /**
+   * Creates an odometry for a differential drive robot and starts updating it after every step.
+   * 
+   * @param leftMotor the motor of the left wheel
+   * @param rightMotor the motor of the right wheel
+   * @param wheelRadius the radius of the wheels
+   * @param trackWidth the distance between the wheels
+   */
+  public OdometryPoseProvider(RegulatedMotor leftMotor, RegulatedMotor rightMotor,
+      double wheelRadius, double trackWidth) {
+    if (!(wheelRadius > 0) || !(trackWidth > 0)) {
+      throw new IllegalArgumentException("Invalid wheel radius " + wheelRadius
+          + " or track width " + trackWidth);
+    }
+    this.leftMotor = leftMotor;
+    this.rightMotor = rightMotor;
+    this.wheelRadius = wheelRadius;
+    this.trackWidth = trackWidth;
+    lastLeftPosition = leftMotor.getSensorValue();
+    lastRightPosition = rightMotor.getSensorValue();
+    ExecutionController.addStepListener(listener);
+  }
+
+  /**
+   * Stops updating the odometry. The pose keeps its last value.
+   */
+  public void close() {
+    ExecutionController.removeStepListener(listener);
+  }
+
+  /**
+   * Returns the current pose. Never blocks.
+   * 
+   * @return a new pose with the current position and heading
+   */
+  public Pose getPose() {
+    double[] xyt = getXyt();
+    return new Pose((float) xyt[0], (float) xyt[1], (float) xyt[2]);
+  }
+
+  /**
+   * Returns the current position and heading, read together. Never blocks.
+   * 
+   * @return the x and y coordinates and the heading in degrees
+   */
+  public double[] getXyt() {
+    while (true) {
+      long current = version;
+      double currentX = x;
+      double currentY = y;
+      double currentTheta = theta;
+      // Order the reads of the pose before the check of the version
+      VarHandle.acquireFence();
+      if ((current & 1) == 0 && version == current) {
+        return new double[] {currentX, currentY, Math.toDegrees(currentTheta)};
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  /**
+   * Returns the x coordinate. Never blocks.
+   * 
+   * @return the x coordinate
+   */
+  public double getX() {
+    return getXyt()[0];
+  }
+
+  /**
+   * Returns the y coordinate. Never blocks.
+   * 
+   * @return the y coordinate
+   */
+  public double getY() {
+    return getXyt()[1];
+  }
+
+  /**
+   * Returns the heading. Never blocks.
+   * 
+   * @return the heading in degrees, counterclockwise from the x axis, between -180 and 180
+   */
+  public double getHeading() {
+    return getXyt()[2];
+  }
+
+  /**
+   * Sets the pose, for example to correct it from a known landmark. Later motion is integrated
+   * from this pose.
+   * 
+   * @param pose the new pose
+   */
+  public void setPose(Pose pose) {
+    lock.lock();
+    try {
+      write(pose.getX(), pose.getY(), Math.toRadians(pose.getHeading()));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Resets the pose to the origin, heading along the x axis.
+   */
+  public void reset() {
+    setPose(new Pose());
+  }
+
+  /**
+   * Corrects the x coordinate, keeping the rest of the pose.
+   * 
+   * @param x the x coordinate
+   */
+  public void setX(double x) {
+    lock.lock();
+    try {
+      write(x, y, theta);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Corrects the y coordinate, keeping the rest of the pose.
+   * 
+   * @param y the y coordinate
+   */
+  public void setY(double y) {
+    lock.lock();
+    try {
+      write(x, y, theta);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Corrects the heading, keeping the position.
+   * 
+   * @param heading the heading in degrees, counterclockwise from the x axis
+   */
+  public void setHeading(double heading) {
+    lock.lock();
+    try {
+      write(x, y, Math.toRadians(heading));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Integrates the motion of the wheels during the last step. Called by the stepping thread.
+   */
+  private void update() {
+    double leftPosition = leftMotor.getSensorValue();
+    double rightPosition = rightMotor.getSensorValue();
+    double left = (leftPosition - lastLeftPosition) * wheelRadius;
+    double right = (rightPosition - lastRightPosition) * wheelRadius;
+    lastLeftPosition = leftPosition;
+    lastRightPosition = rightPosition;
+    if (left == 0 && right == 0) {
+      return;
+    }
+    double distance = (left + right) / 2;
+    double rotation = (right - left) / trackWidth;
+    lock.lock();
+    try {
+      double newX;
+      double newY;
+      if (Math.abs(rotation) < 1e-12) {
+        newX = x + distance * Math.cos(theta);
+        newY = y + distance * Math.sin(theta);
+      } else {
+        // Follow the arc of the given length and angle
+        double radius = distance / rotation;
+        newX = x + radius * (Math.sin(theta + rotation) - Math.sin(theta));
+        newY = y - radius * (Math.cos(theta + rotation) - Math.cos(theta));
+      }
+      write(newX, newY, theta + rotation);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Publishes a new pose. Must be called with the lock held.
+   */
+  private void write(double x, double y, double theta) {
+    long current = version;
+    version = current + 1;
+    // Make the version odd before any of the pose changes
+    VarHandle.storeStoreFence();
+    this.x = x;
+    this.y = y;
+    this.theta = Math.atan2(Math.sin(theta), Math.cos(theta));
+    version = current + 2;
+  }
+
+}
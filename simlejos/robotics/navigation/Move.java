@@ -0,0 +1,92 @@
+package simlejos.robotics.navigation;
+
+/**
+ * A movement of a {@link MovePilot}: the distance traveled and the angle turned, either planned
+ * when the move starts or done so far.<br>
+ * Adapted from the LejOS distribution.
+ * 
+ * @see <a href="http://www.lejos.org/ev3/docs/lejos/robotics/navigation/Move.html">
+ *     Lejos API Move</a>
+ */
+public class Move {
+
+  /**
+   * The kinds of movement.
+   */
+  public enum MoveType {
+    /** Straight line, forward or backward. */
+    TRAVEL,
+    /** Rotation in place. */
+    ROTATE,
+    /** Arc of a circle. */
+    ARC,
+    /** No movement. */
+    STOP
+  }
+
+  private final MoveType moveType;
+
+  private final float distanceTraveled;
+
+  private final float angleTurned;
+
+  private final boolean moving;
+
+  /**
+   * Creates a move.
+   * 
+   * @param moveType the kind of movement
+   * @param distanceTraveled the distance traveled by the center of the robot, negative backward
+   * @param angleTurned the angle turned in degrees, counterclockwise
+   * @param moving true if the robot is still moving
+   */
+  public Move(MoveType moveType, float distanceTraveled, float angleTurned, boolean moving) {
+    this.moveType = moveType;
+    this.distanceTraveled = distanceTraveled;
+    this.angleTurned = angleTurned;
+    this.moving = moving;
+  }
+
+  /**
+   * Returns the kind of movement.
+   * 
+   * @return the kind of movement
+   */
+  public MoveType getMoveType() {
+    return moveType;
+  }
+
+  /**
+   * Returns the distance traveled by the center of the robot.
+   * 
+   * @return the distance, negative when traveling backward, infinite for an endless move
+   */
+  public float getDistanceTraveled() {
+    return distanceTraveled;
+  }
+
+  /**
+   * Returns the angle turned.
+   * 
+   * @return the angle in degrees, counterclockwise
+   */
+  public float getAngleTurned() {
+    return angleTurned;
+  }
+
+  /**
+   * Returns true if the robot is still moving.
+   * 
+   * @return true if the robot is still moving
+   */
+  public boolean isMoving() {
+    return moving;
+  }
+
+  @Override
+  public String toString() {
+    return moveType + " distance:" + distanceTraveled + " angle:" + angleTurned
+        + (moving ? " moving" : "");
+  }
+
+}
@@ -0,0 +1,29 @@
+package simlejos.robotics.navigation;
+
+/**
+ * Listener notified when a {@link MovePilot} starts or stops a move. Moves are started by the
+ * thread that calls the pilot. A move that completes is stopped by the thread that performs the
+ * physics steps, so listeners must return quickly and must not wait for a step.<br>
+ * Adapted from the LejOS distribution.
+ * 
+ * @see <a href="http://www.lejos.org/ev3/docs/lejos/robotics/navigation/MoveListener.html">
+ *     Lejos API MoveListener</a>
+ */
+public interface MoveListener {
+
+  /**
+   * Called when a move starts.
+   * 
+   * @param event the planned move
+   * @param pilot the pilot performing the move
+   */
+  public void moveStarted(Move event, MovePilot pilot);
+
+  /**
+   * Called when a move completes or is interrupted by another move or by {@code stop()}.
+   * 
+   * @param event the move done
+   * @param pilot the pilot that performed the move
+   */
+  public void moveStopped(Move event, MovePilot pilot);
+}
@@ -0,0 +1,463 @@
+package simlejos.robotics.navigation;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import simlejos.ExecutionController;
+import simlejos.robotics.RegulatedMotor;
+import simlejos.robotics.navigation.Move.MoveType;
+
+/**
+ * Pilot for a differential drive robot, which travels straight lines, rotates in place and drives
+ * along arcs. The commands of both wheels are synchronized, so they take effect at the same physics
+ * step, and the completion of a move is detected by the thread that performs the steps, so a
+ * non-blocking move costs no thread and no polling. Moves are started between two physics steps,
+ * so they can also be started by the stepping thread, from a dependent action of another move.
+ * 
+ * <p>Distances are in the unit of the wheel radius and the track width, for example meters. Angles
+ * are in degrees, counterclockwise. An arc with a positive radius turns around a center on the
+ * left of the robot.
+ * 
+ * <p>For example, to drive a square without blocking between the sides:
+ * <pre>
+ * MovePilot pilot = new MovePilot(Motor.A, Motor.D, WHEEL_RADIUS, TRACK_WIDTH);
+ * CompletableFuture&lt;Void&gt; square = CompletableFuture.completedFuture(null);
+ * for (int i = 0; i &lt; 4; i++) {
+ *   square = square.thenCompose(v -&gt; pilot.travelAsync(0.5))
+ *       .thenCompose(v -&gt; pilot.rotateAsync(90));
+ * }
+ * </pre>
+ * 
+ * @see <a href="http://www.lejos.org/ev3/docs/lejos/robotics/navigation/MovePilot.html">
+ *     Lejos API MovePilot</a>
+ */
+public class MovePilot {
+
+  private final RegulatedMotor leftMotor;
+
+  private final RegulatedMotor rightMotor;
+
+  private final double wheelRadius;
+
+  private final double trackWidth;
+
+  private final List<MoveListener> listeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * The move in progress, or null. Only replaced between steps.
+   */
+  private final AtomicReference<ActiveMove> current = new AtomicReference<>();
+
+  /** The speed of the robot in a straight line, in distance units per second. */
+  private volatile double linearSpeed;
+
+  /** The speed of the robot when rotating in place, in degrees per second. */
+  private volatile double angularSpeed;
+
+  /**
+   * Creates a pilot for the given wheels. The left motor is synchronized with the right one, which
+   * replaces any list given to {@code leftMotor.synchronizeWith()}. The default speeds turn the
+   * wheels at 180 degrees per second.
+   * 
+   * @param leftMotor the motor of the left wheel
+   * @param rightMotor the motor of the right wheel
+   * @param wheelRadius the radius of the wheels
+   * @param trackWidth the distance between the centers of the wheels
+   */
+  public MovePilot(RegulatedMotor leftMotor, RegulatedMotor rightMotor, double wheelRadius,
+      double trackWidth) {
+    this.leftMotor = leftMotor;
+    this.rightMotor = rightMotor;
+    this.wheelRadius = wheelRadius;
+    this.trackWidth = trackWidth;
+    leftMotor.synchronizeWith(new RegulatedMotor[] {rightMotor});
+    linearSpeed = Math.toRadians(180) * wheelRadius;
+    angularSpeed = Math.toDegrees(2 * linearSpeed / trackWidth);
+  }
+
+  /**
+   * Sets the speed of the robot in a straight line and along arcs. Takes effect at the next move.
+   * 
+   * @param speed the speed in distance units per second
+   */
+  public void setLinearSpeed(double speed) {
+    linearSpeed = Math.abs(speed);
+  }
+
+  /**
+   * Returns the speed of the robot in a straight line and along arcs.
+   * 
+   * @return the speed in distance units per second
+   */
+  public double getLinearSpeed() {
+    return linearSpeed;
+  }
+
+  /**
+   * Sets the speed of the robot when rotating in place. Takes effect at the next move.
+   * 
+   * @param speed the speed in degrees per second
+   */
+  public void setAngularSpeed(double speed) {
+    angularSpeed = Math.abs(speed);
+  }
+
+  /**
+   * Returns the speed of the robot when rotating in place.
+   * 
+   * @return the speed in degrees per second
+   */
+  public double getAngularSpeed() {
+    return angularSpeed;
+  }
+
+  /**
+   * Adds a listener notified when moves start and stop.
+   * 
+   * @param listener the listener
+   */
+  public void addMoveListener(MoveListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Removes a listener added with {@code addMoveListener()}.
+   * 
+   * @param listener the listener
+   */
+  public void removeMoveListener(MoveListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Starts traveling forward until stop() or another move is called.
+   */
+  public void forward() {
+    startMove(MoveType.TRAVEL, Float.POSITIVE_INFINITY, 0, 1, 1, linearSpeed, true);
+  }
+
+  /**
+   * Starts traveling backward until stop() or another move is called.
+   */
+  public void backward() {
+    startMove(MoveType.TRAVEL, Float.NEGATIVE_INFINITY, 0, -1, -1, linearSpeed, true);
+  }
+
+  /**
+   * Travels the given distance, and waits until the robot gets there.
+   * 
+   * @param distance the distance, negative to travel backward
+   */
+  public void travel(double distance) {
+    travel(distance, false);
+  }
+
+  /**
+   * Travels the given distance.
+   * 
+   * @param distance the distance, negative to travel backward
+   * @param immediateReturn whether to return immediately or wait until the robot gets there
+   */
+  public void travel(double distance, boolean immediateReturn) {
+    complete(travelAsync(distance), immediateReturn);
+  }
+
+  /**
+   * Travels the given distance without waiting.
+   * 
+   * @param distance the distance, negative to travel backward
+   * @return a future completed when the robot gets there, see {@code rotateAsync()}
+   */
+  public CompletableFuture<Void> travelAsync(double distance) {
+    return startMove(MoveType.TRAVEL, distance, 0, distance, distance, linearSpeed, false);
+  }
+
+  /**
+   * Rotates in place by the given angle, and waits until the rotation is done.
+   * 
+   * @param angle the angle in degrees, counterclockwise
+   */
+  public void rotate(double angle) {
+    rotate(angle, false);
+  }
+
+  /**
+   * Rotates in place by the given angle.
+   * 
+   * @param angle the angle in degrees, counterclockwise
+   * @param immediateReturn whether to return immediately or wait until the rotation is done
+   */
+  public void rotate(double angle, boolean immediateReturn) {
+    complete(rotateAsync(angle), immediateReturn);
+  }
+
+  /**
+   * Rotates in place by the given angle without waiting. The future is completed by the stepping
+   * thread once both wheels reached their targets and stopped, so dependent actions that are not
+   * async run in the stepping thread and must be quick. It is cancelled if stop() or another move
+   * replaces this one first.
+   * 
+   * @param angle the angle in degrees, counterclockwise
+   * @return a future completed when the rotation is done
+   */
+  public CompletableFuture<Void> rotateAsync(double angle) {
+    double wheelDistance = Math.toRadians(angle) * trackWidth / 2;
+    double wheelSpeed = Math.toRadians(angularSpeed) * trackWidth / 2;
+    return startMove(MoveType.ROTATE, 0, angle, -wheelDistance, wheelDistance, wheelSpeed, false);
+  }
+
+  /**
+   * Drives along an arc, and waits until the robot turned by the given angle.
+   * 
+   * @param radius the radius of the arc, positive when turning left
+   * @param angle the angle to turn in degrees, negative to drive the arc backward
+   */
+  public void arc(double radius, double angle) {
+    arc(radius, angle, false);
+  }
+
+  /**
+   * Drives along an arc.
+   * 
+   * @param radius the radius of the arc, positive when turning left
+   * @param angle the angle to turn in degrees, negative to drive the arc backward
+   * @param immediateReturn whether to return immediately or wait until the arc is done
+   */
+  public void arc(double radius, double angle, boolean immediateReturn) {
+    complete(arcAsync(radius, angle), immediateReturn);
+  }
+
+  /**
+   * Drives along an arc without waiting. The outer wheel turns at the linear speed.
+   * 
+   * @param radius the radius of the arc, positive when turning left
+   * @param angle the angle to turn in degrees, negative to drive the arc backward
+   * @return a future completed when the arc is done, see {@code rotateAsync()}
+   */
+  public CompletableFuture<Void> arcAsync(double radius, double angle) {
+    double radians = Math.toRadians(angle);
+    // The heading turns the opposite way when the center of the arc is on the right
+    double turned = radius < 0 ? -angle : angle;
+    return startMove(MoveType.ARC, Math.abs(radius) * radians, turned,
+        (radius - trackWidth / 2) * radians * Math.signum(radius),
+        (radius + trackWidth / 2) * radians * Math.signum(radius), linearSpeed, false);
+  }
+
+  /**
+   * Stops the robot, and waits until it stopped.
+   */
+  public void stop() {
+    complete(stopAsync(), false);
+  }
+
+  /**
+   * Stops the robot without waiting. Cancels the move in progress.
+   * 
+   * @return a future completed by the stepping thread once both wheels stopped
+   */
+  public CompletableFuture<Void> stopAsync() {
+    ActiveMove stop = new ActiveMove(MoveType.STOP, 0, 0);
+    ExecutionController.runBetweenSteps(() -> {
+      stop.interrupted = replaceMove(null);
+      leftMotor.startSynchronization();
+      try {
+        stop.completion = CompletableFuture.allOf(leftMotor.stopAsync(), rightMotor.stopAsync());
+      } finally {
+        leftMotor.endSynchronization();
+      }
+    });
+    if (stop.interrupted != null) {
+      stop.interrupted.interrupt();
+    }
+    return stop.completion;
+  }
+
+  /**
+   * Returns true while a move started by this pilot is in progress or either wheel turns.
+   * 
+   * @return true if the robot is moving
+   */
+  public boolean isMoving() {
+    return current.get() != null || leftMotor.isMoving() || rightMotor.isMoving();
+  }
+
+  /**
+   * Returns the move in progress, with the distance traveled and the angle turned so far.
+   * 
+   * @return the move in progress, or a STOP move if the robot is not moving
+   */
+  public Move getMovement() {
+    ActiveMove move = current.get();
+    return move == null ? new Move(MoveType.STOP, 0, 0, false) : move.progress(true);
+  }
+
+  /**
+   * Commands both wheels at the same step and returns a future completed when both reached their
+   * targets. The wheel distances are scaled so that the faster wheel turns at the given speed.
+   */
+  private CompletableFuture<Void> startMove(MoveType type, double distance, double angle,
+      double leftDistance, double rightDistance, double speed, boolean endless) {
+    ActiveMove move = new ActiveMove(type, (float) distance, (float) angle);
+    ExecutionController.runBetweenSteps(
+        () -> commandWheels(move, leftDistance, rightDistance, speed, endless));
+    if (move.interrupted != null) {
+      move.interrupted.interrupt();
+    }
+    for (MoveListener listener : listeners) {
+      listener.moveStarted(new Move(type, (float) distance, (float) angle, true), this);
+    }
+    move.completion.whenComplete((result, failure) -> move.finish(failure));
+    return move.result;
+  }
+
+  /**
+   * Makes the given move the move in progress and commands both wheels. Called between steps.
+   */
+  private void commandWheels(ActiveMove move, double leftDistance, double rightDistance,
+      double speed, boolean endless) {
+    move.interrupted = replaceMove(move);
+    double maxDistance = Math.max(Math.abs(leftDistance), Math.abs(rightDistance));
+    double wheelSpeed = Math.toDegrees(speed / wheelRadius);
+    int leftSpeed = maxDistance == 0 ? 0
+        : (int) Math.round(wheelSpeed * Math.abs(leftDistance) / maxDistance);
+    int rightSpeed = maxDistance == 0 ? 0
+        : (int) Math.round(wheelSpeed * Math.abs(rightDistance) / maxDistance);
+    leftMotor.startSynchronization();
+    try {
+      leftMotor.setSpeed(leftSpeed);
+      rightMotor.setSpeed(rightSpeed);
+      if (endless) {
+        if (leftDistance > 0) {
+          leftMotor.forward();
+          rightMotor.forward();
+        } else {
+          leftMotor.backward();
+          rightMotor.backward();
+        }
+        // Endless moves only end when interrupted
+        move.completion = new CompletableFuture<>();
+      } else {
+        move.completion = CompletableFuture.allOf(
+            leftMotor.rotateAsync(toWheelDegrees(leftDistance)),
+            rightMotor.rotateAsync(toWheelDegrees(rightDistance)));
+      }
+    } finally {
+      leftMotor.endSynchronization();
+    }
+  }
+
+  /**
+   * Replaces the move in progress. Called between steps.
+   * 
+   * @param next the new move in progress, or null
+   * @return the replaced move if it did not end yet, to be interrupted once the step lock is
+   *     released, or null
+   */
+  private ActiveMove replaceMove(ActiveMove next) {
+    ActiveMove replaced = current.getAndSet(next);
+    return replaced != null && replaced.claim() ? replaced : null;
+  }
+
+  /**
+   * Converts a distance traveled by a wheel to the rotation of the wheel.
+   */
+  private int toWheelDegrees(double distance) {
+    return (int) Math.round(Math.toDegrees(distance / wheelRadius));
+  }
+
+  /**
+   * Waits for a move to complete unless returning immediately.
+   */
+  private static void complete(CompletableFuture<Void> move, boolean immediateReturn) {
+    if (!immediateReturn) {
+      ExecutionController.waitUntil(move::isDone);
+    }
+  }
+
+  /**
+   * A move started by the pilot, which remembers the wheel positions at the start to report the
+   * distance traveled and the angle turned.
+   */
+  private class ActiveMove {
+    private final MoveType type;
+    private final float distance;
+    private final float angle;
+    private final double leftStart = leftMotor.getSensorValue();
+    private final double rightStart = rightMotor.getSensorValue();
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    /** Completed when the move ends, or cancelled if another move or stop() interrupts it. */
+    final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    /** Completed when both wheels are done. Set between steps by the thread starting the move. */
+    CompletableFuture<Void> completion;
+
+    /** The move interrupted by this one, or null. Set with {@code completion}. */
+    ActiveMove interrupted;
+
+    ActiveMove(MoveType type, float distance, float angle) {
+      this.type = type;
+      this.distance = distance;
+      this.angle = angle;
+    }
+
+    /**
+     * Returns the distance traveled and the angle turned since the start of the move.
+     */
+    Move progress(boolean moving) {
+      double left = (leftMotor.getSensorValue() - leftStart) * wheelRadius;
+      double right = (rightMotor.getSensorValue() - rightStart) * wheelRadius;
+      return new Move(type, (float) ((left + right) / 2),
+          (float) Math.toDegrees((right - left) / trackWidth), moving);
+    }
+
+    /**
+     * Takes over the end of the move, so that it ends once.
+     * 
+     * @return false if the move already ended
+     */
+    boolean claim() {
+      return finished.compareAndSet(false, true);
+    }
+
+    /**
+     * Ends the move when both wheels are done, unless it was interrupted first.
+     * 
+     * @param failure the failure of a wheel, or null
+     */
+    void finish(Throwable failure) {
+      if (!claim()) {
+        return;
+      }
+      current.compareAndSet(this, null);
+      notifyStopped();
+      if (failure == null) {
+        result.complete(null);
+      } else {
+        result.completeExceptionally(failure);
+      }
+    }
+
+    /**
+     * Ends a move claimed by the move or the stop that interrupts it. Called once the step lock is
+     * released, so that the listeners and the dependent actions do not run under it.
+     */
+    void interrupt() {
+      notifyStopped();
+      result.cancel(false);
+    }
+
+    /**
+     * Notifies the listeners that the move stopped.
+     */
+    private void notifyStopped() {
+      Move done = progress(false);
+      for (MoveListener listener : listeners) {
+        listener.moveStopped(done, MovePilot.this);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,146 @@
+package simlejos.robotics.navigation;
+
+/**
+ * The position and heading of a robot on the plane. The heading is in degrees, counterclockwise
+ * from the x axis, between -180 and 180.<br>
+ * Adapted from the LejOS distribution.
+ * 
+ * @see <a href="http://www.lejos.org/ev3/docs/lejos/robotics/navigation/Pose.html">
+ *     Lejos API Pose</a>
+ */
+public class Pose {
+
+  private float x;
+
+  private float y;
+
+  private float heading;
+
+  /**
+   * Creates a pose at the origin, heading along the x axis.
+   */
+  public Pose() {
+    this(0, 0, 0);
+  }
+
+  /**
+   * Creates a pose.
+   * 
+   * @param x the x coordinate
+   * @param y the y coordinate
+   * @param heading the heading in degrees, counterclockwise from the x axis
+   */
+  public Pose(float x, float y, float heading) {
+    this.x = x;
+    this.y = y;
+    this.heading = normalize(heading);
+  }
+
+  /**
+   * Returns the x coordinate.
+   * 
+   * @return the x coordinate
+   */
+  public float getX() {
+    return x;
+  }
+
+  /**
+   * Returns the y coordinate.
+   * 
+   * @return the y coordinate
+   */
+  public float getY() {
+    return y;
+  }
+
+  /**
+   * Returns the heading.
+   * 
+   * @return the heading in degrees, counterclockwise from the x axis, between -180 and 180
+   */
+  public float getHeading() {
+    return heading;
+  }
+
+  /**
+   * Sets the location.
+   * 
+   * @param x the x coordinate
+   * @param y the y coordinate
+   */
+  public void setLocation(float x, float y) {
+    this.x = x;
+    this.y = y;
+  }
+
+  /**
+   * Sets the heading.
+   * 
+   * @param heading the heading in degrees, counterclockwise from the x axis
+   */
+  public void setHeading(float heading) {
+    this.heading = normalize(heading);
+  }
+
+  /**
+   * Moves the pose by the given distance along its heading.
+   * 
+   * @param distance the distance to move
+   */
+  public void moveUpdate(float distance) {
+    double angle = Math.toRadians(heading);
+    x += (float) (distance * Math.cos(angle));
+    y += (float) (distance * Math.sin(angle));
+  }
+
+  /**
+   * Rotates the pose by the given angle.
+   * 
+   * @param angle the angle in degrees, counterclockwise
+   */
+  public void rotateUpdate(float angle) {
+    heading = normalize(heading + angle);
+  }
+
+  /**
+   * Returns the distance from this pose to the given point.
+   * 
+   * @param x the x coordinate of the point
+   * @param y the y coordinate of the point
+   * @return the distance
+   */
+  public float distanceTo(float x, float y) {
+    return (float) Math.hypot(x - this.x, y - this.y);
+  }
+
+  /**
+   * Returns the direction from this pose to the given point.
+   * 
+   * @param x the x coordinate of the point
+   * @param y the y coordinate of the point
+   * @return the direction in degrees, counterclockwise from the x axis, between -180 and 180
+   */
+  public float angleTo(float x, float y) {
+    return (float) Math.toDegrees(Math.atan2(y - this.y, x - this.x));
+  }
+
+  @Override
+  public String toString() {
+    return "X:" + x + " Y:" + y + " H:" + heading;
+  }
+
+  /**
+   * Returns the given angle between -180 and 180 degrees.
+   */
+  private static float normalize(float angle) {
+    float normalized = angle % 360;
+    if (normalized > 180) {
+      normalized -= 360;
+    } else if (normalized <= -180) {
+      normalized += 360;
+    }
+    return normalized;
+  }
+
+}